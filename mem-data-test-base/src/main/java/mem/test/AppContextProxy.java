@@ -56,4 +56,29 @@ public final class AppContextProxy {
 
 		return f;
 	}
+
+	/**
+	 * Like {@link #proxyGetBean(ApplicationContext, Map)}, but the overrides
+	 * are also seen by the other bean lookups and can be changed later, and
+	 * nothing goes through reflection. <br/><br/>
+	 * Example:<br/>
+	 * <code>BeanOverrideContext overrides = AppContextProxy.overrideBeans(originalContext, beanNameToNewObject, true);<br/>
+	 * SqlContextFactory.setContext(overrides);<br/>
+	 * overrides.overrideSql("getIcreCreditRefId", "SELECT CREDIT_REFERENCE_ID_SEQ.NEXTVAL FROM DUAL");<br/>
+	 </code>
+	 *
+	 * @param myOriginalAppContext
+	 *            the original application context
+	 * @param beanNameToNewObjectMap
+	 *            the map of bean name to object to override, copied
+	 * @param translateSql
+	 *            true to translate the String values from Oracle to HSQL
+	 *            once here rather than each time they're run
+	 * @return the new app context to set on your current app context factory
+	 */
+	public static BeanOverrideContext overrideBeans(final ApplicationContext myOriginalAppContext,
+			final Map<String, ?> beanNameToNewObjectMap, final boolean translateSql) {
+		return new BeanOverrideContext(myOriginalAppContext).overrideAll(beanNameToNewObjectMap,
+				translateSql);
+	}
 }
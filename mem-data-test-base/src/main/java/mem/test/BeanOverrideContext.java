@@ -0,0 +1,365 @@
+package mem.test;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mem.test.db.TransformToHSQL;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanNotOfRequiredTypeException;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.MessageSourceResolvable;
+import org.springframework.context.NoSuchMessageException;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.Resource;
+
+/**
+ * An application context answering some bean names with objects of your
+ * own and passing everything else to the context it wraps. <br/><br/>
+ * Every <code>getBean</code> overload looks at the overrides first, as do
+ * <code>containsBean</code>, <code>getType</code>,
+ * <code>isTypeMatch</code>, the singleton and prototype checks and
+ * <code>getBeansOfType</code>. The rest are plain calls on the wrapped
+ * context, no reflection, so a DAO fetching its SQL bean per request pays
+ * for one map lookup. Overrides are matched on the name asked for, not its
+ * aliases, and may be null. The class is compiled against the Spring
+ * version the pom pins; methods a later Spring adds to the interface are
+ * not implemented. <br/><br/>
+ * Contexts stack: wrap one in another to override on top of it, and go
+ * back to it with {@link #getDelegate()}. Overrides can be added and removed
+ * while the context is in use.
+ *
+ */
+public class BeanOverrideContext implements ApplicationContext {
+
+	/** Stands for a null override, the map doesn't take nulls */
+	private static final Object NULL = new Object();
+
+	private final ApplicationContext delegate;
+	private final Map<String, Object> overrides = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * @param delegate
+	 *            the context to pass everything not overridden to, possibly
+	 *            another BeanOverrideContext
+	 */
+	public BeanOverrideContext(final ApplicationContext delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @param name
+	 *            the bean name
+	 * @param bean
+	 *            what to answer it with, possibly null
+	 * @return this
+	 */
+	public BeanOverrideContext override(final String name, final Object bean) {
+		overrides.put(name, bean == null ? NULL : bean);
+		return this;
+	}
+
+	/**
+	 * Override a SQL bean with an Oracle query, translated to HSQL now
+	 * rather than each time it's run. See
+	 * {@link TransformToHSQL#transformQuery(String)}.
+	 *
+	 * @param name
+	 *            the bean name
+	 * @param oracleSql
+	 *            the SQL
+	 * @return this
+	 */
+	public BeanOverrideContext overrideSql(final String name, final String oracleSql) {
+		return override(name, oracleSql == null ? null : TransformToHSQL.transformQuery(oracleSql));
+	}
+
+	/**
+	 * @param beans
+	 *            bean name to what to answer it with
+	 * @param translateSql
+	 *            true to translate the String values from Oracle to HSQL
+	 * @return this
+	 */
+	public BeanOverrideContext overrideAll(final Map<String, ?> beans, final boolean translateSql) {
+		for (Map.Entry<String, ?> e : beans.entrySet()) {
+			if (translateSql && e.getValue() instanceof String) {
+				overrideSql(e.getKey(), (String) e.getValue());
+			} else {
+				override(e.getKey(), e.getValue());
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @param name
+	 *            the bean name
+	 * @return the override taken out, null if there wasn't one or it was
+	 *         null
+	 */
+	public Object removeOverride(final String name) {
+		return name == null ? null : unmask(overrides.remove(name));
+	}
+
+	/**
+	 * @return the overridden names and what they're answered with
+	 */
+	public Map<String, Object> getOverrides() {
+		Map<String, Object> copy = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Object> e : overrides.entrySet()) {
+			copy.put(e.getKey(), unmask(e.getValue()));
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * @return the wrapped context
+	 */
+	public ApplicationContext getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * @return the override, NULL for a null one, or null if the name isn't
+	 *         overridden. Null names are never overridden, the map would
+	 *         throw.
+	 */
+	private Object lookup(final String name) {
+		return name == null ? null : overrides.get(name);
+	}
+
+	private boolean isOverridden(final String name) {
+		return name != null && overrides.containsKey(name);
+	}
+
+	private static Object unmask(final Object bean) {
+		return bean == NULL ? null : bean;
+	}
+
+	public Object getBean(final String name) throws BeansException {
+		Object bean = lookup(name);
+		return bean != null ? unmask(bean) : delegate.getBean(name);
+	}
+
+	public <T> T getBean(final String name, final Class<T> requiredType) throws BeansException {
+		Object bean = lookup(name);
+		if (bean == null) {
+			return delegate.getBean(name, requiredType);
+		}
+		return checkType(name, unmask(bean), requiredType);
+	}
+
+	/**
+	 * The override of the only bean of the type if it's overridden, the
+	 * wrapped context's bean otherwise
+	 */
+	public <T> T getBean(final Class<T> requiredType) throws BeansException {
+		if (!overrides.isEmpty()) {
+			String[] names = delegate.getBeanNamesForType(requiredType);
+			if (names.length == 1 && overrides.containsKey(names[0])) {
+				return checkType(names[0], unmask(overrides.get(names[0])), requiredType);
+			}
+		}
+		return delegate.getBean(requiredType);
+	}
+
+	/**
+	 * Overrides are answered as they are, the arguments aren't used
+	 */
+	public Object getBean(final String name, final Object... args) throws BeansException {
+		Object bean = lookup(name);
+		return bean != null ? unmask(bean) : delegate.getBean(name, args);
+	}
+
+	private static <T> T checkType(final String name, final Object bean, final Class<T> requiredType) {
+		if (bean != null && requiredType != null && !requiredType.isInstance(bean)) {
+			throw new BeanNotOfRequiredTypeException(name, requiredType, bean.getClass());
+		}
+		@SuppressWarnings("unchecked")
+		T t = (T) bean;
+		return t;
+	}
+
+	public boolean containsBean(final String name) {
+		return isOverridden(name) || delegate.containsBean(name);
+	}
+
+	public boolean isSingleton(final String name) throws NoSuchBeanDefinitionException {
+		return isOverridden(name) || delegate.isSingleton(name);
+	}
+
+	public boolean isPrototype(final String name) throws NoSuchBeanDefinitionException {
+		return !isOverridden(name) && delegate.isPrototype(name);
+	}
+
+	public boolean isTypeMatch(final String name, final Class<?> targetType)
+			throws NoSuchBeanDefinitionException {
+		Object bean = lookup(name);
+		if (bean == null) {
+			return delegate.isTypeMatch(name, targetType);
+		}
+		return targetType == null || targetType.isInstance(unmask(bean));
+	}
+
+	public Class<?> getType(final String name) throws NoSuchBeanDefinitionException {
+		Object bean = lookup(name);
+		if (bean == null) {
+			return delegate.getType(name);
+		}
+		return bean == NULL ? null : bean.getClass();
+	}
+
+	public String[] getAliases(final String name) {
+		return delegate.getAliases(name);
+	}
+
+	/**
+	 * The wrapped context's beans with overridden ones replaced by their
+	 * override where it is of the type, and dropped where it isn't
+	 */
+	public <T> Map<String, T> getBeansOfType(final Class<T> type) throws BeansException {
+		return overrideBeans(delegate.getBeansOfType(type), type);
+	}
+
+	public <T> Map<String, T> getBeansOfType(final Class<T> type,
+			final boolean includeNonSingletons, final boolean allowEagerInit)
+			throws BeansException {
+		return overrideBeans(delegate.getBeansOfType(type, includeNonSingletons, allowEagerInit),
+				type);
+	}
+
+	private <T> Map<String, T> overrideBeans(final Map<String, T> beans, final Class<T> type) {
+		if (overrides.isEmpty()) {
+			return beans;
+		}
+		Map<String, T> result = new LinkedHashMap<String, T>(beans);
+		for (String name : beans.keySet()) {
+			Object bean = overrides.get(name);
+			if (bean == null) {
+				continue;
+			}
+			bean = unmask(bean);
+			if (bean == null || type == null || type.isInstance(bean)) {
+				@SuppressWarnings("unchecked")
+				T t = (T) bean;
+				result.put(name, t);
+			} else {
+				result.remove(name);
+			}
+		}
+		return result;
+	}
+
+	public boolean containsBeanDefinition(final String beanName) {
+		return delegate.containsBeanDefinition(beanName);
+	}
+
+	public int getBeanDefinitionCount() {
+		return delegate.getBeanDefinitionCount();
+	}
+
+	public String[] getBeanDefinitionNames() {
+		return delegate.getBeanDefinitionNames();
+	}
+
+	public String[] getBeanNamesForType(final Class<?> type) {
+		return delegate.getBeanNamesForType(type);
+	}
+
+	public String[] getBeanNamesForType(final Class<?> type, final boolean includeNonSingletons,
+			final boolean allowEagerInit) {
+		return delegate.getBeanNamesForType(type, includeNonSingletons, allowEagerInit);
+	}
+
+	public Map<String, Object> getBeansWithAnnotation(final Class<? extends Annotation> annotationType)
+			throws BeansException {
+		return delegate.getBeansWithAnnotation(annotationType);
+	}
+
+	public <A extends Annotation> A findAnnotationOnBean(final String beanName,
+			final Class<A> annotationType) {
+		return delegate.findAnnotationOnBean(beanName, annotationType);
+	}
+
+	public BeanFactory getParentBeanFactory() {
+		return delegate.getParentBeanFactory();
+	}
+
+	public boolean containsLocalBean(final String name) {
+		return isOverridden(name) || delegate.containsLocalBean(name);
+	}
+
+	public String getId() {
+		return delegate.getId();
+	}
+
+	public String getApplicationName() {
+		return delegate.getApplicationName();
+	}
+
+	public String getDisplayName() {
+		return delegate.getDisplayName();
+	}
+
+	public long getStartupDate() {
+		return delegate.getStartupDate();
+	}
+
+	public ApplicationContext getParent() {
+		return delegate.getParent();
+	}
+
+	public AutowireCapableBeanFactory getAutowireCapableBeanFactory() throws IllegalStateException {
+		return delegate.getAutowireCapableBeanFactory();
+	}
+
+	public Environment getEnvironment() {
+		return delegate.getEnvironment();
+	}
+
+	public String getMessage(final String code, final Object[] args, final String defaultMessage,
+			final Locale locale) {
+		return delegate.getMessage(code, args, defaultMessage, locale);
+	}
+
+	public String getMessage(final String code, final Object[] args, final Locale locale)
+			throws NoSuchMessageException {
+		return delegate.getMessage(code, args, locale);
+	}
+
+	public String getMessage(final MessageSourceResolvable resolvable, final Locale locale)
+			throws NoSuchMessageException {
+		return delegate.getMessage(resolvable, locale);
+	}
+
+	public void publishEvent(final ApplicationEvent event) {
+		delegate.publishEvent(event);
+	}
+
+	public Resource[] getResources(final String locationPattern) throws IOException {
+		return delegate.getResources(locationPattern);
+	}
+
+	public Resource getResource(final String location) {
+		return delegate.getResource(location);
+	}
+
+	public ClassLoader getClassLoader() {
+		return delegate.getClassLoader();
+	}
+
+	@Override
+	public String toString() {
+		return "BeanOverrideContext " + overrides.keySet() + " over " + delegate;
+	}
+}
@@ -0,0 +1,178 @@
+package mem.test.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+/**
+ * Inserts rows through one reused {@link PreparedStatement} on a pinned
+ * connection, sending them to the database in JDBC batches. When the
+ * connection is not in auto commit every batch is committed so that the
+ * database never holds more than one batch of undo, unless the connection
+ * belongs to a Spring managed transaction: that is left to its owner to
+ * commit or roll back.
+ *
+ */
+final class BatchInserter {
+
+	static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private final Connection connection;
+	private final PreparedStatement statement;
+	private final int[] sqlTypes;
+	private final int batchSize;
+	private final boolean ownsStatement;
+	private final boolean commits;
+	private final long start = System.nanoTime();
+	private int pending;
+	private long rows;
+
+	/**
+	 * @param connection
+	 *            the pinned connection, the caller owns it
+	 * @param dataSource
+	 *            where the connection came from
+	 * @param insertSql
+	 *            a parameterized insert, already in HSQL syntax
+	 * @param sqlTypes
+	 *            the {@link java.sql.Types} of each parameter, used for nulls
+	 * @param batchSize
+	 *            rows per JDBC batch
+	 * @throws SQLException
+	 *             if the statement could not be prepared
+	 */
+	BatchInserter(final Connection connection, final DataSource dataSource, final String insertSql,
+			final int[] sqlTypes, final int batchSize) throws SQLException {
+		this.connection = connection;
+		this.commits = !DataSourceUtils.isConnectionTransactional(connection, dataSource);
+		this.statement = connection.prepareStatement(insertSql);
+		this.sqlTypes = sqlTypes;
+		this.batchSize = batchSize < 1 ? DEFAULT_BATCH_SIZE : batchSize;
+		this.ownsStatement = true;
+	}
+
+	/**
+	 * Batch through a statement someone else prepared, for example inside a
+	 * {@link org.springframework.jdbc.core.PreparedStatementCallback}. The
+	 * statement is not closed by {@link #close()}.
+	 *
+	 * @param statement
+	 *            the prepared insert
+	 * @param dataSource
+	 *            where the connection of the statement came from
+	 * @param sqlTypes
+	 *            the {@link java.sql.Types} of each parameter, used for nulls
+	 * @param batchSize
+	 *            rows per JDBC batch
+	 * @throws SQLException
+	 *             if the connection of the statement could not be had
+	 */
+	BatchInserter(final PreparedStatement statement, final DataSource dataSource,
+			final int[] sqlTypes, final int batchSize) throws SQLException {
+		this.connection = statement.getConnection();
+		this.commits = !DataSourceUtils.isConnectionTransactional(connection, dataSource);
+		this.statement = statement;
+		this.sqlTypes = sqlTypes;
+		this.batchSize = batchSize < 1 ? DEFAULT_BATCH_SIZE : batchSize;
+		this.ownsStatement = false;
+	}
+
+	/**
+	 * @param table
+	 *            the table to build the insert for
+	 * @param columns
+	 *            the columns the rows will hold, in order
+	 * @return the {@link java.sql.Types} of the named columns
+	 */
+	static int[] sqlTypes(final TableMetaData table, final List<String> columns) {
+		int[] types = new int[columns.size()];
+		for (int i = 0; i < types.length; i++) {
+			TableMetaData.Column c = table.getColumn(columns.get(i));
+			if (c == null) {
+				throw new IllegalArgumentException("No column " + columns.get(i) + " in "
+						+ table.getQualifiedName());
+			}
+			types[i] = c.getSqlType();
+		}
+		return types;
+	}
+
+	/**
+	 * Add a row to the current batch, sending the batch if it is full.
+	 *
+	 * @param values
+	 *            one value per parameter, nulls allowed
+	 * @throws SQLException
+	 *             if the batch failed
+	 */
+	void addRow(final Object[] values) throws SQLException {
+		for (int i = 0; i < sqlTypes.length; i++) {
+			Object value = (i < values.length ? values[i] : null);
+			if (value == null) {
+				statement.setNull(i + 1, sqlTypes[i]);
+			} else {
+				statement.setObject(i + 1, value, sqlTypes[i]);
+			}
+		}
+		statement.addBatch();
+		if (++pending >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Send whatever is in the current batch.
+	 *
+	 * @throws SQLException
+	 *             if the batch failed
+	 */
+	void flush() throws SQLException {
+		if (pending == 0) {
+			return;
+		}
+		statement.executeBatch();
+		if (commits && !connection.getAutoCommit()) {
+			connection.commit();
+		}
+		rows += pending;
+		pending = 0;
+	}
+
+	/**
+	 * Flush and close the statement if we prepared it. The connection is left
+	 * open.
+	 *
+	 * @return the number of rows inserted
+	 * @throws SQLException
+	 *             if the last batch failed
+	 */
+	long close() throws SQLException {
+		try {
+			flush();
+		} finally {
+			if (ownsStatement) {
+				statement.close();
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @return rows sent to the database so far
+	 */
+	long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return nanos since this inserter was created
+	 */
+	long getElapsedNanos() {
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,463 @@
+package mem.test.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+/**
+ * Dumps tables to a compact typed binary file and loads them back, so an
+ * expensive seed can be captured once and reloaded quickly in every build.
+ * <br/><br/>
+ * Usage: <code>BinaryTableDump &lt;database name&gt; &lt;file&gt; [table ...]</code>
+ * dumps tables of the named {@link MemTest} database. Loading is done with
+ * {@link #load(File, DataSource)}.<br/><br/>
+ * The file is a header followed by length prefixed blocks. Each table is a
+ * table block (name and typed columns), any number of row blocks and an end
+ * block. Rows hold a null bitmap followed by the non null values in their
+ * binary form. Loading maps the file and feeds the values straight into one
+ * reused batched insert per table, no SQL is parsed or transformed.
+ *
+ */
+public final class BinaryTableDump {
+
+	private static final Log LOG = LogFactory.getLog(BinaryTableDump.class);
+
+	private static final int MAGIC = 0x4D544442; // MTDB
+	private static final int VERSION = 1;
+
+	private static final byte BLOCK_TABLE = 'T';
+	private static final byte BLOCK_ROWS = 'R';
+	private static final byte BLOCK_END = 'E';
+
+	private static final byte T_LONG = 1;
+	private static final byte T_DOUBLE = 2;
+	private static final byte T_DECIMAL = 3;
+	private static final byte T_STRING = 4;
+	private static final byte T_TIMESTAMP = 5;
+	private static final byte T_BOOLEAN = 6;
+	private static final byte T_BYTES = 7;
+
+	private static final int ROWS_PER_BLOCK = 1000;
+	private static final int MAX_BLOCK_BYTES = 1 << 20;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 *
+	 */
+	private BinaryTableDump() {
+	}
+
+	/**
+	 * @param args
+	 *            database name, dump file, then the tables to dump. No tables
+	 *            dumps every table, parents first.
+	 */
+	public static void main(final String... args) throws IOException {
+		if (args.length < 2) {
+			LOG.error("Usage: BinaryTableDump <database name> <file> [table ...]");
+			return;
+		}
+		String[] tables = Arrays.copyOfRange(args, 2, args.length);
+		LoadReport report = dump(MemTest.getARDataSource(args[0]), new File(args[1]), tables);
+		LOG.info("Dumped to " + args[1] + "\n" + report);
+	}
+
+	/**
+	 * Dump tables to a file.
+	 *
+	 * @param dataSource
+	 *            the database to dump
+	 * @param file
+	 *            the file to write, replaced if it exists
+	 * @param tables
+	 *            the tables to dump, in order. Null or empty dumps every
+	 *            table in the default schema, parents first.
+	 * @return how many rows were dumped per table and how fast
+	 * @throws IOException
+	 *             if there was a problem writing the file
+	 */
+	public static LoadReport dump(final DataSource dataSource, final File file,
+			final String... tables) throws IOException {
+		LoadReport report = new LoadReport();
+		FileOutputStream fos = new FileOutputStream(file);
+		FileChannel channel = fos.getChannel();
+		Connection c = DataSourceUtils.getConnection(dataSource);
+		try {
+			List<String> names = new ArrayList<String>();
+			if (tables == null || tables.length == 0) {
+				List<TableMetaData> all = TableMetaData.readAll(c.getMetaData(), null);
+				for (TableMetaData t : TableMetaData.sortParentsFirst(all)) {
+					names.add(t.getName());
+				}
+			} else {
+				names.addAll(Arrays.asList(tables));
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			writeFully(channel, header);
+
+			for (String table : names) {
+				long start = System.nanoTime();
+				long rows = dumpTable(c, table, channel);
+				report.add(table.toUpperCase(), rows, System.nanoTime() - start);
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Problem dumping tables", e);
+		} finally {
+			DataSourceUtils.releaseConnection(c, dataSource);
+			IOUtils.closeQuietly(fos);
+		}
+		return report;
+	}
+
+	private static long dumpTable(final Connection c, final String table,
+			final FileChannel channel) throws SQLException, IOException {
+		PreparedStatement ps = c.prepareStatement("select * from " + table);
+		long rows = 0;
+		try {
+			ps.setFetchSize(ROWS_PER_BLOCK);
+			ResultSet rs = ps.executeQuery();
+			ResultSetMetaData md = rs.getMetaData();
+			int count = md.getColumnCount();
+			byte[] codes = new byte[count];
+
+			Block block = new Block();
+			block.out.writeByte(BLOCK_TABLE);
+			block.out.writeUTF(table.toUpperCase());
+			block.out.writeShort(count);
+			for (int i = 0; i < count; i++) {
+				codes[i] = typeCode(md.getColumnType(i + 1));
+				block.out.writeUTF(md.getColumnName(i + 1));
+				block.out.writeByte(codes[i]);
+			}
+			block.writeTo(channel);
+
+			byte[] nulls = new byte[(count + 7) / 8];
+			Block values = new Block();
+			int blockRows = 0;
+			block.out.writeByte(BLOCK_ROWS);
+			while (rs.next()) {
+				Arrays.fill(nulls, (byte) 0);
+				values.bytes.reset();
+				for (int i = 0; i < count; i++) {
+					if (!writeValue(rs, i + 1, codes[i], values.out)) {
+						nulls[i >> 3] |= 1 << (i & 7);
+					}
+				}
+				block.out.write(nulls);
+				values.bytes.writeTo(block.out);
+				rows++;
+
+				if (++blockRows >= ROWS_PER_BLOCK || block.bytes.size() >= MAX_BLOCK_BYTES) {
+					block.writeTo(channel);
+					block.out.writeByte(BLOCK_ROWS);
+					blockRows = 0;
+				}
+			}
+			rs.close();
+			if (blockRows > 0) {
+				block.writeTo(channel);
+			} else {
+				block.bytes.reset();
+			}
+
+			block.out.writeByte(BLOCK_END);
+			block.writeTo(channel);
+		} finally {
+			ps.close();
+		}
+		LOG.debug("Dumped " + rows + " rows of " + table);
+		return rows;
+	}
+
+	/**
+	 * @return false if the value was null and nothing was written
+	 */
+	private static boolean writeValue(final ResultSet rs, final int column, final byte code,
+			final DataOutputStream out) throws SQLException, IOException {
+		switch (code) {
+		case T_LONG:
+			long l = rs.getLong(column);
+			if (rs.wasNull()) {
+				return false;
+			}
+			out.writeLong(l);
+			return true;
+		case T_DOUBLE:
+			double d = rs.getDouble(column);
+			if (rs.wasNull()) {
+				return false;
+			}
+			out.writeDouble(d);
+			return true;
+		case T_BOOLEAN:
+			boolean b = rs.getBoolean(column);
+			if (rs.wasNull()) {
+				return false;
+			}
+			out.writeBoolean(b);
+			return true;
+		case T_DECIMAL:
+			BigDecimal bd = rs.getBigDecimal(column);
+			if (bd == null) {
+				return false;
+			}
+			out.writeInt(bd.scale());
+			writeBytes(out, bd.unscaledValue().toByteArray());
+			return true;
+		case T_TIMESTAMP:
+			Timestamp ts = rs.getTimestamp(column);
+			if (ts == null) {
+				return false;
+			}
+			out.writeLong(ts.getTime());
+			out.writeInt(ts.getNanos());
+			return true;
+		case T_BYTES:
+			byte[] bytes = rs.getBytes(column);
+			if (bytes == null) {
+				return false;
+			}
+			writeBytes(out, bytes);
+			return true;
+		default:
+			String s = rs.getString(column);
+			if (s == null) {
+				return false;
+			}
+			writeBytes(out, s.getBytes(UTF_8));
+			return true;
+		}
+	}
+
+	private static void writeBytes(final DataOutputStream out, final byte[] bytes)
+			throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Load a dump into a database whose tables already exist. Tables are
+	 * loaded in the order they were dumped.
+	 *
+	 * @param file
+	 *            the dump
+	 * @param dataSource
+	 *            the database to load
+	 * @return how many rows went into each table and how fast
+	 * @throws IOException
+	 *             if there was a problem reading the dump
+	 */
+	public static LoadReport load(final File file, final DataSource dataSource)
+			throws IOException {
+		LoadReport report = new LoadReport();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedBlockReader reader = new MappedBlockReader(raf.getChannel());
+		Connection c = DataSourceUtils.getConnection(dataSource);
+		boolean autoCommit = true;
+		try {
+			autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+			DatabaseMetaData meta = c.getMetaData();
+
+			ByteBuffer header = reader.next(8);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException(file + " is not a table dump this version can read");
+			}
+
+			while (reader.hasNext()) {
+				ByteBuffer block = reader.next();
+				if (block.get() != BLOCK_TABLE) {
+					throw new IOException("Expected a table block in " + file);
+				}
+				long start = System.nanoTime();
+				String table = readUTF(block);
+				long rows = loadTable(reader, block, c, dataSource,
+						TableMetaData.read(meta, null, table));
+				report.add(table, rows, System.nanoTime() - start);
+				LOG.info("Loaded " + rows + " rows into " + table);
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Problem loading " + file, e);
+		} finally {
+			try {
+				c.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				LOG.warn("Could not restore auto commit", e);
+			}
+			DataSourceUtils.releaseConnection(c, dataSource);
+			IOUtils.closeQuietly(raf);
+		}
+		return report;
+	}
+
+	private static long loadTable(final MappedBlockReader reader, final ByteBuffer tableBlock,
+			final Connection c, final DataSource dataSource, final TableMetaData table)
+			throws IOException, SQLException {
+		int count = tableBlock.getShort();
+		List<String> columns = new ArrayList<String>(count);
+		byte[] codes = new byte[count];
+		for (int i = 0; i < count; i++) {
+			columns.add(readUTF(tableBlock));
+			codes[i] = tableBlock.get();
+		}
+
+		BatchInserter inserter = new BatchInserter(c, dataSource, table.getInsertSql(columns),
+				BatchInserter.sqlTypes(table, columns), ROWS_PER_BLOCK);
+		byte[] nulls = new byte[(count + 7) / 8];
+		Object[] row = new Object[count];
+		try {
+			while (true) {
+				ByteBuffer block = reader.next();
+				byte type = block.get();
+				if (type == BLOCK_END) {
+					break;
+				} else if (type != BLOCK_ROWS) {
+					throw new IOException("Unexpected block " + (char) type + " in "
+							+ table.getName());
+				}
+				while (block.hasRemaining()) {
+					block.get(nulls);
+					for (int i = 0; i < count; i++) {
+						if ((nulls[i >> 3] & (1 << (i & 7))) != 0) {
+							row[i] = null;
+						} else {
+							row[i] = readValue(block, codes[i]);
+						}
+					}
+					inserter.addRow(row);
+				}
+			}
+		} finally {
+			inserter.close();
+		}
+		return inserter.getRows();
+	}
+
+	private static Object readValue(final ByteBuffer block, final byte code) {
+		switch (code) {
+		case T_LONG:
+			return Long.valueOf(block.getLong());
+		case T_DOUBLE:
+			return Double.valueOf(block.getDouble());
+		case T_BOOLEAN:
+			return Boolean.valueOf(block.get() != 0);
+		case T_DECIMAL:
+			int scale = block.getInt();
+			return new BigDecimal(new BigInteger(readBytes(block)), scale);
+		case T_TIMESTAMP:
+			Timestamp ts = new Timestamp(block.getLong());
+			ts.setNanos(block.getInt());
+			return ts;
+		case T_BYTES:
+			return readBytes(block);
+		default:
+			return new String(readBytes(block), UTF_8);
+		}
+	}
+
+	private static byte[] readBytes(final ByteBuffer block) {
+		byte[] bytes = new byte[block.getInt()];
+		block.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Reads what {@link DataOutputStream#writeUTF(String)} wrote
+	 */
+	private static String readUTF(final ByteBuffer block) {
+		byte[] bytes = new byte[block.getShort() & 0xFFFF];
+		block.get(bytes);
+		// modified UTF-8 only differs for nulls and supplementary characters,
+		// neither of which we have in table and column names
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * @param sqlType
+	 *            the {@link Types} constant of the column
+	 * @return how the column is stored in the dump
+	 */
+	private static byte typeCode(final int sqlType) {
+		switch (sqlType) {
+		case Types.BIGINT:
+		case Types.INTEGER:
+		case Types.SMALLINT:
+		case Types.TINYINT:
+			return T_LONG;
+		case Types.FLOAT:
+		case Types.DOUBLE:
+		case Types.REAL:
+			return T_DOUBLE;
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+			return T_DECIMAL;
+		case Types.DATE:
+		case Types.TIME:
+		case Types.TIMESTAMP:
+			return T_TIMESTAMP;
+		case Types.BOOLEAN:
+		case Types.BIT:
+			return T_BOOLEAN;
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			return T_BYTES;
+		default:
+			return T_STRING;
+		}
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * A block being built, written out with its length in front
+	 */
+	private static final class Block {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_BLOCK_BYTES);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		void writeTo(final FileChannel channel) throws IOException {
+			out.flush();
+			ByteBuffer length = ByteBuffer.allocate(4);
+			length.putInt(bytes.size()).flip();
+			writeFully(channel, length);
+			writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+			bytes.reset();
+		}
+	}
+}
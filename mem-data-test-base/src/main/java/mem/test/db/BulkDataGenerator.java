@@ -0,0 +1,537 @@
+package mem.test.db;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import mem.test.TestObjectFactory;
+
+import org.apache.commons.lang.math.RandomUtils;
+import org.apache.commons.lang.time.DateUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+/**
+ * Fills tables with random rows straight from their JDBC metadata, for load
+ * tests that need far more rows than an insert script can hold. <br/><br/>
+ * Example:<br/>
+ * <code>Map&lt;String, Long&gt; rows = new HashMap&lt;String, Long&gt;();<br/>
+ * rows.put("REMEDIATION_TYPE", 50L);<br/>
+ * rows.put("REMEDIATION", 10000000L);<br/>
+ * LoadReport report = BulkDataGenerator.forDatabase("ar").generate(rows);<br/>
+ * </code><br/>
+ * Tables are filled parents first. Foreign key columns only get values that
+ * exist in the parent table, wherever its schema, each parent key at most
+ * once when the foreign key holds the whole primary key. Primary key columns
+ * get increasing values past whatever is already there, failing up front if
+ * the column is too small to hold them. Dates are spread over the last few
+ * years and everything else comes from the {@link TestObjectFactory} random
+ * generators. Unique and check constraints other than the primary key are
+ * not known about.
+ *
+ */
+public class BulkDataGenerator {
+	private static final Log LOG = LogFactory.getLog(BulkDataGenerator.class);
+
+	/**
+	 * How many parent keys to hold on to when picking foreign key values
+	 */
+	private static final int MAX_PARENT_KEYS = 100000;
+
+	/**
+	 * Generated dates fall this many days back from today
+	 */
+	private static final int DATE_SPREAD_DAYS = 3 * 365;
+
+	private final DataSource dataSource;
+	private String schema = TableMetaData.DEFAULT_SCHEMA;
+	private int batchSize = BatchInserter.DEFAULT_BATCH_SIZE;
+
+	/**
+	 * @param dataSource
+	 *            the database to fill
+	 */
+	public BulkDataGenerator(final DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * @param name
+	 *            the name of the {@link MemTest} database to fill
+	 * @return a generator for the named database
+	 */
+	public static BulkDataGenerator forDatabase(final String name) throws IOException {
+		return new BulkDataGenerator(MemTest.getARDataSource(name));
+	}
+
+	/**
+	 * @param schema
+	 *            the schema the tables live in
+	 */
+	public void setSchema(final String schema) {
+		this.schema = schema;
+	}
+
+	/**
+	 * @param batchSize
+	 *            rows per JDBC batch (and per commit)
+	 */
+	public void setBatchSize(final int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Fill a single table. Its parent tables must already have rows.
+	 *
+	 * @param table
+	 *            the table to fill
+	 * @param rows
+	 *            how many rows to add
+	 * @return how many rows were written and how fast
+	 */
+	public LoadReport generate(final String table, final long rows) {
+		Map<String, Long> m = new HashMap<String, Long>();
+		m.put(table, Long.valueOf(rows));
+		return generate(m);
+	}
+
+	/**
+	 * Fill several tables, parents before children.
+	 *
+	 * @param rowsPerTable
+	 *            table name to the number of rows to add to it
+	 * @return how many rows were written and how fast
+	 */
+	public LoadReport generate(final Map<String, Long> rowsPerTable) {
+		LoadReport report = new LoadReport();
+		Connection c = DataSourceUtils.getConnection(dataSource);
+		boolean autoCommit = true;
+		try {
+			autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+
+			DatabaseMetaData meta = c.getMetaData();
+			Map<String, Long> counts = new HashMap<String, Long>();
+			List<TableMetaData> tables = new ArrayList<TableMetaData>();
+			for (Map.Entry<String, Long> e : rowsPerTable.entrySet()) {
+				TableMetaData t = TableMetaData.read(meta, schema, e.getKey());
+				tables.add(t);
+				counts.put(t.getName(), e.getValue());
+			}
+
+			for (TableMetaData t : TableMetaData.sortParentsFirst(tables)) {
+				long rows = counts.get(t.getName()).longValue();
+				long start = System.nanoTime();
+				long written = fill(c, t, rows);
+				long elapsed = System.nanoTime() - start;
+				report.add(t.getName(), written, elapsed);
+				LOG.info(String.format("generated %d rows into %s in %d ms (%.0f rows/sec)",
+						written, t.getName(), elapsed / 1000000L, report.getRowsPerSecond(t.getName())));
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Problem generating rows", e);
+		} finally {
+			try {
+				c.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				LOG.warn("Could not restore auto commit", e);
+			}
+			DataSourceUtils.releaseConnection(c, dataSource);
+		}
+		return report;
+	}
+
+	private long fill(final Connection c, final TableMetaData t, final long rows)
+			throws SQLException {
+		List<TableMetaData.Column> columns = t.getColumns();
+		ValueSource[] sources = new ValueSource[columns.size()];
+		int[] types = new int[columns.size()];
+		List<ParentKeys> parents = new ArrayList<ParentKeys>();
+
+		// foreign keys first so a key column that is also a foreign key keeps
+		// pointing at the parent
+		for (TableMetaData.ForeignKey fk : t.getForeignKeys()) {
+			// a child sharing its parent's key, one to one, takes each parent once
+			boolean unique = !t.getPrimaryKey().isEmpty()
+					&& fk.getColumns().containsAll(t.getPrimaryKey());
+			ParentKeys keys = new ParentKeys(loadParentKeys(c, t, fk, unique ? rows : 0), unique);
+			if (unique && keys.size() < rows) {
+				throw new IllegalStateException(t.getName() + " shares its key with "
+						+ fk.getParentTable() + ", which only has " + keys.size()
+						+ " rows without one, not " + rows);
+			}
+			parents.add(keys);
+			for (int k = 0; k < fk.getColumns().size(); k++) {
+				int index = t.getColumnNames().indexOf(fk.getColumns().get(k));
+				sources[index] = new ForeignKeySource(keys, k, columns.get(index).isNullable(),
+						fk.getParentTable());
+			}
+		}
+
+		for (String pk : t.getPrimaryKey()) {
+			int index = t.getColumnNames().indexOf(pk);
+			if (sources[index] == null) {
+				SequentialSource keys = new SequentialSource(columns.get(index), maxKey(c, t,
+						columns.get(index)));
+				if (keys.remaining() < rows) {
+					throw new IllegalStateException("Primary key " + t.getName() + "." + pk
+							+ " only has room for " + keys.remaining() + " more generated values, not "
+							+ rows);
+				}
+				sources[index] = keys;
+			}
+		}
+
+		for (int i = 0; i < sources.length; i++) {
+			types[i] = columns.get(i).getSqlType();
+			if (sources[i] == null) {
+				sources[i] = new RandomSource(columns.get(i));
+			}
+		}
+
+		BatchInserter inserter = new BatchInserter(c, dataSource, t.getInsertSql(), types,
+				batchSize);
+		try {
+			Object[] row = new Object[sources.length];
+			for (long r = 0; r < rows; r++) {
+				for (ParentKeys p : parents) {
+					p.pick();
+				}
+				for (int i = 0; i < sources.length; i++) {
+					row[i] = sources[i].next();
+				}
+				inserter.addRow(row);
+			}
+		} finally {
+			inserter.close();
+		}
+		return inserter.getRows();
+	}
+
+	/**
+	 * @param unused
+	 *            0 for a sample of the parent keys, otherwise how many of the
+	 *            keys no row of the child points at yet to load at least
+	 */
+	private List<Object[]> loadParentKeys(final Connection c, final TableMetaData t,
+			final TableMetaData.ForeignKey fk, final long unused) throws SQLException {
+		StringBuilder cols = new StringBuilder();
+		StringBuilder join = new StringBuilder();
+		for (int i = 0; i < fk.getParentColumns().size(); i++) {
+			if (i > 0) {
+				cols.append(", ");
+				join.append(" and ");
+			}
+			cols.append("p.").append(fk.getParentColumns().get(i));
+			join.append("x.").append(fk.getColumns().get(i)).append(" = p.")
+					.append(fk.getParentColumns().get(i));
+		}
+		String sql = "select distinct " + cols + " from " + fk.getParentSchema() + "."
+				+ fk.getParentTable() + " p";
+		if (unused > 0) {
+			sql += " where not exists (select 1 from " + t.getQualifiedName() + " x where "
+					+ join + ")";
+		}
+		List<Object[]> keys = new ArrayList<Object[]>();
+		PreparedStatement ps = c.prepareStatement(sql);
+		try {
+			ps.setMaxRows((int) Math.min(Integer.MAX_VALUE, Math.max(unused, MAX_PARENT_KEYS)));
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				Object[] key = new Object[fk.getParentColumns().size()];
+				for (int i = 0; i < key.length; i++) {
+					key[i] = rs.getObject(i + 1);
+				}
+				keys.add(key);
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return keys;
+	}
+
+	private Object maxKey(final Connection c, final TableMetaData t,
+			final TableMetaData.Column column) throws SQLException {
+		String name = column.getName();
+		String sql = "select max(" + name + ") from " + t.getQualifiedName();
+		if (SequentialSource.isCharacter(column)) {
+			// as text "z" sorts after "10", base 36 counters sort by length first
+			sql = "select " + name + " from " + t.getQualifiedName() + " order by length(trim("
+					+ name + ")) desc, upper(trim(" + name + ")) desc";
+		}
+		PreparedStatement ps = c.prepareStatement(sql);
+		try {
+			ps.setMaxRows(1);
+			ResultSet rs = ps.executeQuery();
+			Object max = rs.next() ? rs.getObject(1) : null;
+			rs.close();
+			return max;
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * Produces the value of one column for each generated row
+	 */
+	private interface ValueSource {
+		Object next();
+	}
+
+	/**
+	 * Random values by column type, from the {@link TestObjectFactory}
+	 * generators
+	 */
+	private static final class RandomSource implements ValueSource {
+		private final TableMetaData.Column column;
+
+		RandomSource(final TableMetaData.Column column) {
+			this.column = column;
+		}
+
+		public Object next() {
+			return randomValue(column);
+		}
+	}
+
+	/**
+	 * Increasing values past the current maximum, for primary keys
+	 */
+	private static final class SequentialSource implements ValueSource {
+		private final TableMetaData.Column column;
+		private final long limit;
+		private long next;
+
+		SequentialSource(final TableMetaData.Column column, final Object currentMax) {
+			this.column = column;
+			this.limit = limit(column);
+			if (currentMax instanceof Number) {
+				next = ((Number) currentMax).longValue() + 1;
+			} else if (currentMax != null) {
+				// character keys we generated before are base 36 counters
+				try {
+					next = Long.parseLong(currentMax.toString().trim(), Character.MAX_RADIX) + 1;
+				} catch (NumberFormatException e) {
+					next = 1;
+				}
+			} else {
+				next = 1;
+			}
+		}
+
+		static boolean isCharacter(final TableMetaData.Column column) {
+			switch (column.getSqlType()) {
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * @return how many more values fit the column
+		 */
+		long remaining() {
+			return Math.max(0, limit - next);
+		}
+
+		/**
+		 * @return the first value too big for the column, Long.MAX_VALUE if
+		 *         there is no telling
+		 */
+		private static long limit(final TableMetaData.Column column) {
+			int size = column.getSize();
+			if (isCharacter(column)) {
+				// base 36, 36^12 is the last power that fits a long
+				return size > 0 && size <= 12 ? power(Character.MAX_RADIX, size) : Long.MAX_VALUE;
+			}
+			switch (column.getSqlType()) {
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				int digits = size - Math.max(column.getScale(), 0);
+				return size > 0 && digits < 19 ? power(10, Math.max(digits, 0)) : Long.MAX_VALUE;
+			case Types.INTEGER:
+				return (long) Integer.MAX_VALUE + 1;
+			case Types.SMALLINT:
+				return (long) Short.MAX_VALUE + 1;
+			case Types.TINYINT:
+				return (long) Byte.MAX_VALUE + 1;
+			default:
+				return Long.MAX_VALUE;
+			}
+		}
+
+		private static long power(final int base, final int exponent) {
+			long result = 1;
+			for (int i = 0; i < exponent; i++) {
+				result *= base;
+			}
+			return result;
+		}
+
+		public Object next() {
+			long value = next++;
+			switch (column.getSqlType()) {
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+				return Long.toString(value, Character.MAX_RADIX);
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				return BigDecimal.valueOf(value);
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return Integer.valueOf((int) value);
+			default:
+				return Long.valueOf(value);
+			}
+		}
+	}
+
+	/**
+	 * One column of a (possibly composite) foreign key. All the columns of a
+	 * key share a {@link ParentKeys} so they point at the same parent row.
+	 */
+	private static final class ForeignKeySource implements ValueSource {
+		private final ParentKeys keys;
+		private final int position;
+
+		ForeignKeySource(final ParentKeys keys, final int position, final boolean nullable,
+				final String parentTable) {
+			if (keys.isEmpty() && !nullable) {
+				throw new IllegalStateException("Parent table " + parentTable
+						+ " has no rows to reference, fill it first");
+			}
+			this.keys = keys;
+			this.position = position;
+		}
+
+		public Object next() {
+			Object[] key = keys.current();
+			return key == null ? null : key[position];
+		}
+	}
+
+	/**
+	 * Sample of parent keys, one of which is picked per row. Unique keys
+	 * are shuffled and each handed out once.
+	 */
+	private static final class ParentKeys {
+		private final List<Object[]> keys;
+		private final boolean unique;
+		private int next;
+		private Object[] current;
+
+		ParentKeys(final List<Object[]> keys, final boolean unique) {
+			this.keys = keys;
+			this.unique = unique;
+			if (unique) {
+				Collections.shuffle(keys);
+			}
+		}
+
+		boolean isEmpty() {
+			return keys.isEmpty();
+		}
+
+		int size() {
+			return keys.size();
+		}
+
+		Object[] current() {
+			return current;
+		}
+
+		void pick() {
+			if (keys.isEmpty()) {
+				current = null;
+			} else if (unique) {
+				current = keys.get(next++);
+			} else {
+				current = keys.get(RandomUtils.nextInt(keys.size()));
+			}
+		}
+	}
+
+	/**
+	 * @param column
+	 *            the column to generate a value for
+	 * @return a random value that fits the column
+	 */
+	static Object randomValue(final TableMetaData.Column column) {
+		int size = column.getSize();
+		switch (column.getSqlType()) {
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.CLOB:
+			return TestObjectFactory.getRandomString(size > 0 && size < 10 ? size : 10);
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+			int precision = (size > 0 ? Math.min(size, 15) : 8);
+			return BigDecimal.valueOf(TestObjectFactory.getRandomLong(precision),
+					Math.min(column.getScale(), precision));
+		case Types.BIGINT:
+			return Long.valueOf(TestObjectFactory.getRandomLong(8));
+		case Types.INTEGER:
+			return Integer.valueOf(TestObjectFactory.getRandomInt(8));
+		case Types.SMALLINT:
+			return Short.valueOf((short) TestObjectFactory.getRandomInt(4));
+		case Types.TINYINT:
+			return Byte.valueOf((byte) TestObjectFactory.getRandomInt(2));
+		case Types.FLOAT:
+		case Types.DOUBLE:
+		case Types.REAL:
+			return Double.valueOf(RandomUtils.nextDouble() * 1000);
+		case Types.BOOLEAN:
+		case Types.BIT:
+			return Boolean.valueOf(RandomUtils.nextBoolean());
+		case Types.DATE:
+			return new Timestamp(randomDay().getTime());
+		case Types.TIMESTAMP:
+		case Types.TIME:
+			return new Timestamp(randomDay().getTime()
+					+ RandomUtils.nextInt((int) DateUtils.MILLIS_PER_DAY));
+		default:
+			if (column.isNullable()) {
+				return null;
+			}
+			throw new IllegalStateException("Unable to generate a value for column "
+					+ column.getName() + " of type " + column.getSqlType());
+		}
+	}
+
+	/**
+	 * @return midnight of a random day in the last {@link #DATE_SPREAD_DAYS} days
+	 */
+	private static Date randomDay() {
+		return DateUtils.addDays(DateUtils.truncate(new Date(), Calendar.DATE),
+				-RandomUtils.nextInt(DATE_SPREAD_DAYS));
+	}
+}
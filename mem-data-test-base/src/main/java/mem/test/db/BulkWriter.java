@@ -0,0 +1,242 @@
+package mem.test.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+/**
+ * Runs one statement for many rows of arguments on a pinned connection,
+ * sending them in JDBC batches and committing once at the end. Behind
+ * {@link TestJdbcTemplateWrapper#bulkUpdate(String, Iterable, int, int)}.
+ * <br/>
+ * <br/>
+ * A single row <code>INSERT ... VALUES (...)</code> can be folded: every
+ * so many rows go in one multi-row <code>VALUES (...), (...)</code>
+ * statement, so HSQL parses and plans the insert once per group rather
+ * than once per row. Rows left over at the end go through the single row
+ * statement.
+ *
+ */
+final class BulkWriter {
+
+	private static final Pattern INSERT = Pattern.compile(
+			"^\\s*(insert\\s+into\\s+[^\\s(]+\\s*(?:\\([^)]*\\))?\\s*values)\\s*(\\(.*\\))\\s*;?\\s*$",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private static final Pattern TABLE = Pattern.compile(
+			"^\\s*(?:insert\\s+into|update|delete\\s+from|merge\\s+into)\\s+([^\\s(]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	private final String sql;
+	private final String foldedSql;
+	private final int width;
+	private final int batchSize;
+	private final int rowsPerInsert;
+
+	/**
+	 * @param sql
+	 *            the statement, already in HSQL syntax
+	 * @param batchSize
+	 *            rows per JDBC batch
+	 * @param rowsPerInsert
+	 *            rows to fold into each insert, 1 or less not to fold.
+	 *            Ignored unless the statement is a single row insert.
+	 */
+	BulkWriter(final String sql, final int batchSize, final int rowsPerInsert) {
+		this.sql = sql;
+		this.batchSize = batchSize < 1 ? BatchInserter.DEFAULT_BATCH_SIZE : batchSize;
+		Matcher insert = INSERT.matcher(sql);
+		String tuple = insert.matches() ? insert.group(2) : null;
+		if (rowsPerInsert > 1 && tuple != null && isSingleTuple(tuple)) {
+			StringBuilder folded = new StringBuilder(insert.group(1)).append(' ').append(tuple);
+			for (int i = 1; i < rowsPerInsert; i++) {
+				folded.append(", ").append(tuple);
+			}
+			this.foldedSql = folded.toString();
+			this.width = parameters(tuple);
+			this.rowsPerInsert = rowsPerInsert;
+		} else {
+			this.foldedSql = null;
+			this.width = -1;
+			this.rowsPerInsert = 1;
+		}
+	}
+
+	/**
+	 * @return whether inserts are folded
+	 */
+	boolean isFolding() {
+		return foldedSql != null;
+	}
+
+	/**
+	 * @return the table the statement writes, or the statement itself if it
+	 *         can't be told
+	 */
+	String getTable() {
+		Matcher m = TABLE.matcher(sql);
+		return m.find() ? m.group(1).toUpperCase() : sql;
+	}
+
+	/**
+	 * Write the rows in one transaction. A transaction already bound to the
+	 * thread is joined and left to its owner to commit, otherwise one is
+	 * begun on the connection and committed at the end, or rolled back if
+	 * anything failed.
+	 *
+	 * @param dataSource
+	 *            where to get the connection
+	 * @param rows
+	 *            the arguments for each row
+	 * @param report
+	 *            gets the rows written and the time taken
+	 * @throws SQLException
+	 *             if a batch failed
+	 */
+	void write(final DataSource dataSource, final Iterable<Object[]> rows, final LoadReport report)
+			throws SQLException {
+		long start = System.nanoTime();
+		Connection c = DataSourceUtils.getConnection(dataSource);
+		boolean ownTransaction = !DataSourceUtils.isConnectionTransactional(c, dataSource);
+		boolean autoCommit = c.getAutoCommit();
+		boolean done = false;
+		try {
+			if (ownTransaction && autoCommit) {
+				c.setAutoCommit(false);
+			}
+			long written = write(c, rows);
+			if (ownTransaction) {
+				c.commit();
+			}
+			done = true;
+			report.add(getTable(), written, System.nanoTime() - start);
+		} finally {
+			try {
+				if (ownTransaction && !done) {
+					c.rollback();
+				}
+				if (ownTransaction && autoCommit) {
+					c.setAutoCommit(true);
+				}
+			} finally {
+				DataSourceUtils.releaseConnection(c, dataSource);
+			}
+		}
+	}
+
+	private long write(final Connection c, final Iterable<Object[]> rows) throws SQLException {
+		PreparedStatement single = c.prepareStatement(sql);
+		PreparedStatement folded = null;
+		try {
+			folded = foldedSql == null ? null : c.prepareStatement(foldedSql);
+			Object[][] group = new Object[rowsPerInsert][];
+			int grouped = 0;
+			int pendingSingle = 0;
+			int pendingFolded = 0;
+			long written = 0;
+			for (Object[] row : rows) {
+				if (folded == null) {
+					bind(single, row, 1);
+					single.addBatch();
+					pendingSingle++;
+				} else {
+					group[grouped++] = row;
+					if (grouped == rowsPerInsert) {
+						for (int i = 0; i < grouped; i++) {
+							bind(folded, group[i], i * width + 1);
+						}
+						folded.addBatch();
+						pendingFolded += grouped;
+						grouped = 0;
+					}
+				}
+				written++;
+				if (pendingSingle + pendingFolded >= batchSize) {
+					flush(single, pendingSingle, folded, pendingFolded);
+					pendingSingle = 0;
+					pendingFolded = 0;
+				}
+			}
+			for (int i = 0; i < grouped; i++) {
+				bind(single, group[i], 1);
+				single.addBatch();
+				pendingSingle++;
+			}
+			flush(single, pendingSingle, folded, pendingFolded);
+			return written;
+		} finally {
+			try {
+				if (folded != null) {
+					folded.close();
+				}
+			} finally {
+				single.close();
+			}
+		}
+	}
+
+	private static void flush(final PreparedStatement single, final int pendingSingle,
+			final PreparedStatement folded, final int pendingFolded) throws SQLException {
+		if (pendingFolded > 0) {
+			folded.executeBatch();
+		}
+		if (pendingSingle > 0) {
+			single.executeBatch();
+		}
+	}
+
+	private void bind(final PreparedStatement ps, final Object[] row, final int first)
+			throws SQLException {
+		if (width >= 0 && row.length != width) {
+			throw new IllegalArgumentException(row.length + " values for an insert taking " + width);
+		}
+		for (int i = 0; i < row.length; i++) {
+			StatementCreatorUtils.setParameterValue(ps, first + i, SqlTypeValue.TYPE_UNKNOWN,
+					row[i]);
+		}
+	}
+
+	/**
+	 * @return whether the text is one parenthesised tuple, not several
+	 */
+	static boolean isSingleTuple(final String tuple) {
+		int depth = 0;
+		boolean quoted = false;
+		for (int i = 0; i < tuple.length(); i++) {
+			char c = tuple.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && c == '(') {
+				depth++;
+			} else if (!quoted && c == ')' && --depth == 0 && i < tuple.length() - 1) {
+				return false;
+			}
+		}
+		return depth == 0 && !quoted;
+	}
+
+	/**
+	 * @return the number of ? markers outside quotes
+	 */
+	private static int parameters(final String tuple) {
+		int count = 0;
+		boolean quoted = false;
+		for (int i = 0; i < tuple.length(); i++) {
+			char c = tuple.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && c == '?') {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,336 @@
+package mem.test.db;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * The rows and metadata of a query, read once and replayed as read only,
+ * forward only result sets with their own cursors, so the caller's row
+ * mappers and extractors can run on them as if HSQL had answered. <br/><br/>
+ * Values are kept as <code>getObject</code> returned them, lobs read into
+ * strings and byte arrays, and the typed getters convert from those.
+ *
+ */
+final class CachedResultSet {
+
+	/**
+	 * Reads a whole result set
+	 */
+	static final ResultSetExtractor<CachedResultSet> EXTRACTOR = new ResultSetExtractor<CachedResultSet>() {
+		public CachedResultSet extractData(final ResultSet rs) throws SQLException {
+			return read(rs);
+		}
+	};
+
+	private static final Set<String> NUMBER_GETTERS = new HashSet<String>(Arrays.asList("getInt",
+			"getLong", "getDouble", "getFloat", "getShort", "getByte"));
+
+	private final int columnCount;
+	private final Map<String, Object[]> metaData;
+	private final Map<String, Integer> columns = new HashMap<String, Integer>();
+	private final List<Object[]> rows = new ArrayList<Object[]>();
+
+	private CachedResultSet(final ResultSetMetaData md) throws SQLException {
+		columnCount = md.getColumnCount();
+		metaData = new HashMap<String, Object[]>();
+		// keep everything the metadata says about each column
+		for (Method m : ResultSetMetaData.class.getMethods()) {
+			Class<?>[] params = m.getParameterTypes();
+			if (params.length == 1 && params[0] == int.class) {
+				Object[] values = new Object[columnCount];
+				for (int i = 0; i < columnCount; i++) {
+					values[i] = invoke(md, m, i + 1);
+				}
+				metaData.put(m.getName(), values);
+			}
+		}
+		// labels win over names, the first of duplicates wins
+		for (int i = columnCount; i > 0; i--) {
+			columns.put(md.getColumnName(i).toUpperCase(), Integer.valueOf(i));
+		}
+		for (int i = columnCount; i > 0; i--) {
+			columns.put(md.getColumnLabel(i).toUpperCase(), Integer.valueOf(i));
+		}
+	}
+
+	/**
+	 * @param rs
+	 *            the result set to read to the end, left open
+	 * @return its rows
+	 */
+	static CachedResultSet read(final ResultSet rs) throws SQLException {
+		CachedResultSet cached = new CachedResultSet(rs.getMetaData());
+		while (rs.next()) {
+			Object[] row = new Object[cached.columnCount];
+			for (int i = 0; i < row.length; i++) {
+				Object value = rs.getObject(i + 1);
+				if (value instanceof Clob) {
+					Clob clob = (Clob) value;
+					value = clob.getSubString(1, (int) clob.length());
+				} else if (value instanceof Blob) {
+					Blob blob = (Blob) value;
+					value = blob.getBytes(1, (int) blob.length());
+				}
+				row[i] = value;
+			}
+			cached.rows.add(row);
+		}
+		return cached;
+	}
+
+	/**
+	 * @return how many rows there are
+	 */
+	int size() {
+		return rows.size();
+	}
+
+	/**
+	 * @return a new result set over the rows, positioned before the first
+	 */
+	ResultSet open() {
+		return (ResultSet) Proxy.newProxyInstance(CachedResultSet.class.getClassLoader(),
+				new Class[] { ResultSet.class }, new Cursor());
+	}
+
+	private static Object invoke(final Object target, final Method m, final Object... args)
+			throws SQLException {
+		try {
+			return m.invoke(target, args);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			if (e.getTargetException() instanceof SQLFeatureNotSupportedException) {
+				return null;
+			}
+			if (e.getTargetException() instanceof SQLException) {
+				throw (SQLException) e.getTargetException();
+			}
+			throw new IllegalStateException(e.getTargetException());
+		}
+	}
+
+	/**
+	 * Metadata of the cached columns
+	 */
+	private final class MetaData implements InvocationHandler {
+		public Object invoke(final Object proxy, final Method method, final Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("getColumnCount")) {
+				return Integer.valueOf(columnCount);
+			}
+			Object[] values = metaData.get(name);
+			if (values != null && args != null && args.length == 1) {
+				int column = ((Integer) args[0]).intValue();
+				if (column < 1 || column > columnCount) {
+					throw new SQLException("Column index out of range: " + column);
+				}
+				return values[column - 1];
+			}
+			return objectMethod(proxy, method, args);
+		}
+	}
+
+	/**
+	 * One pass over the cached rows
+	 */
+	private final class Cursor implements InvocationHandler {
+		private int position = -1;
+		private boolean wasNull;
+		private boolean closed;
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("next")) {
+				position = Math.min(position + 1, rows.size());
+				return Boolean.valueOf(position < rows.size());
+			} else if (name.equals("close")) {
+				closed = true;
+				return null;
+			} else if (name.equals("isClosed")) {
+				return Boolean.valueOf(closed);
+			} else if (name.equals("wasNull")) {
+				return Boolean.valueOf(wasNull);
+			} else if (name.equals("getMetaData")) {
+				return Proxy.newProxyInstance(CachedResultSet.class.getClassLoader(),
+						new Class[] { ResultSetMetaData.class }, new MetaData());
+			} else if (name.equals("findColumn")) {
+				return Integer.valueOf(column(args[0]));
+			} else if (name.equals("getRow")) {
+				return Integer.valueOf(position >= 0 && position < rows.size() ? position + 1 : 0);
+			} else if (name.equals("isBeforeFirst")) {
+				return Boolean.valueOf(position < 0 && !rows.isEmpty());
+			} else if (name.equals("isAfterLast")) {
+				return Boolean.valueOf(position >= rows.size() && !rows.isEmpty());
+			} else if (name.equals("isFirst")) {
+				return Boolean.valueOf(position == 0 && !rows.isEmpty());
+			} else if (name.equals("isLast")) {
+				return Boolean.valueOf(position == rows.size() - 1);
+			} else if (name.equals("getType")) {
+				return Integer.valueOf(ResultSet.TYPE_FORWARD_ONLY);
+			} else if (name.equals("getConcurrency")) {
+				return Integer.valueOf(ResultSet.CONCUR_READ_ONLY);
+			} else if (name.equals("getFetchSize") || name.equals("getFetchDirection")) {
+				return Integer.valueOf(name.equals("getFetchSize") ? 0 : ResultSet.FETCH_FORWARD);
+			} else if (name.equals("setFetchSize") || name.equals("setFetchDirection")
+					|| name.equals("clearWarnings") || name.equals("getWarnings")
+					|| name.equals("getStatement")) {
+				return null;
+			} else if (name.startsWith("get") && args != null && args.length >= 1) {
+				return get(name, args);
+			}
+			return objectMethod(proxy, method, args);
+		}
+
+		private Object get(final String name, final Object[] args) throws SQLException {
+			if (closed) {
+				throw new SQLException("Result set is closed");
+			}
+			if (position < 0 || position >= rows.size()) {
+				throw new SQLException("Not on a row");
+			}
+			Object value = rows.get(position)[column(args[0]) - 1];
+			wasNull = value == null;
+			Object converted = convert(name, value);
+			if (name.equals("getBigDecimal") && args.length == 2 && converted != null) {
+				// the deprecated scale variant
+				converted = ((BigDecimal) converted).setScale(((Integer) args[1]).intValue(),
+						BigDecimal.ROUND_HALF_UP);
+			}
+			return converted;
+		}
+
+		private int column(final Object column) throws SQLException {
+			if (column instanceof Integer) {
+				int index = ((Integer) column).intValue();
+				if (index < 1 || index > columnCount) {
+					throw new SQLException("Column index out of range: " + index);
+				}
+				return index;
+			}
+			Integer index = columns.get(String.valueOf(column).toUpperCase());
+			if (index == null) {
+				throw new SQLException("Column not found: " + column);
+			}
+			return index.intValue();
+		}
+	}
+
+	/**
+	 * @return the value as the getter would have returned it
+	 */
+	private static Object convert(final String getter, final Object value) throws SQLException {
+		if (getter.equals("getObject")) {
+			return value;
+		}
+		if (getter.equals("getString") || getter.equals("getNString")) {
+			return value == null ? null : value.toString();
+		}
+		if (getter.equals("getBoolean")) {
+			if (value == null) {
+				return Boolean.FALSE;
+			} else if (value instanceof Boolean) {
+				return value;
+			} else if (value instanceof Number) {
+				return Boolean.valueOf(((Number) value).intValue() != 0);
+			}
+			String s = value.toString().trim();
+			return Boolean.valueOf(s.equalsIgnoreCase("true") || s.equals("1"));
+		}
+		if (getter.equals("getBigDecimal")) {
+			if (value == null || value instanceof BigDecimal) {
+				return value;
+			}
+			return new BigDecimal(value.toString().trim());
+		}
+		if (getter.equals("getTimestamp") || getter.equals("getDate") || getter.equals("getTime")) {
+			if (value == null) {
+				return null;
+			} else if (!(value instanceof java.util.Date)) {
+				throw new SQLException("Can't convert " + value.getClass().getName() + " with "
+						+ getter);
+			}
+			long time = ((java.util.Date) value).getTime();
+			if (getter.equals("getDate")) {
+				return new java.sql.Date(time);
+			} else if (getter.equals("getTime")) {
+				return new Time(time);
+			}
+			Timestamp ts = new Timestamp(time);
+			if (value instanceof Timestamp) {
+				ts.setNanos(((Timestamp) value).getNanos());
+			}
+			return ts;
+		}
+		if (getter.equals("getBytes")) {
+			return value;
+		}
+		if (getter.equals("getCharacterStream")) {
+			return value == null ? null : new StringReader(value.toString());
+		}
+		if (!NUMBER_GETTERS.contains(getter)) {
+			throw new SQLFeatureNotSupportedException(getter + " on a cached result");
+		}
+
+		Number n;
+		if (value == null) {
+			n = Integer.valueOf(0);
+		} else if (value instanceof Number) {
+			n = (Number) value;
+		} else if (value instanceof Boolean) {
+			n = Integer.valueOf(((Boolean) value).booleanValue() ? 1 : 0);
+		} else {
+			n = new BigDecimal(value.toString().trim());
+		}
+		if (getter.equals("getInt")) {
+			return Integer.valueOf(n.intValue());
+		} else if (getter.equals("getLong")) {
+			return Long.valueOf(n.longValue());
+		} else if (getter.equals("getDouble")) {
+			return Double.valueOf(n.doubleValue());
+		} else if (getter.equals("getFloat")) {
+			return Float.valueOf(n.floatValue());
+		} else if (getter.equals("getShort")) {
+			return Short.valueOf(n.shortValue());
+		}
+		return Byte.valueOf(n.byteValue());
+	}
+
+	private static Object objectMethod(final Object proxy, final Method method,
+			final Object[] args) throws SQLException {
+		String name = method.getName();
+		if (name.equals("equals")) {
+			return Boolean.valueOf(args[0] == proxy);
+		} else if (name.equals("hashCode")) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		} else if (name.equals("toString")) {
+			return "cached result";
+		} else if (name.equals("isWrapperFor")) {
+			return Boolean.FALSE;
+		}
+		throw new SQLFeatureNotSupportedException(name + " on a cached result");
+	}
+}
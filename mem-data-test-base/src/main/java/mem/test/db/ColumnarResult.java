@@ -0,0 +1,690 @@
+package mem.test.db;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * A query result held by column in primitive arrays rather than as one
+ * mapped object per row, for checks that crunch a lot of numbers. Returned
+ * by {@link TestJdbcTemplateWrapper#queryForColumns(String, Object...)}.
+ * <br/><br/>
+ * Each column's type comes from the result metadata:
+ * <ul>
+ * <li>TINYINT, SMALLINT and INTEGER go in an {@link IntColumn}</li>
+ * <li>BIGINT, whole number DECIMALs of up to 18 digits and dates (as epoch
+ * milliseconds) go in a {@link LongColumn}</li>
+ * <li>other numbers go in a {@link DoubleColumn}</li>
+ * <li>anything else is read as a string into a {@link StringColumn}, which
+ * stores each distinct value once and a code per row</li>
+ * </ul>
+ * Values are read with the primitive getters, so nothing is boxed, and
+ * nulls are kept in a bitmap that is only allocated once a column has one.
+ *
+ */
+public final class ColumnarResult {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final List<Column> columns;
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+	private int rows;
+
+	private ColumnarResult(final List<Column> columns) {
+		this.columns = columns;
+		for (int i = columns.size() - 1; i >= 0; i--) {
+			indexes.put(columns.get(i).getName().toUpperCase(), Integer.valueOf(i));
+		}
+	}
+
+	/**
+	 * @return an extractor reading a result set into a new ColumnarResult
+	 */
+	public static ResultSetExtractor<ColumnarResult> extractor() {
+		return new ResultSetExtractor<ColumnarResult>() {
+			public ColumnarResult extractData(final ResultSet rs) throws SQLException {
+				return read(rs);
+			}
+		};
+	}
+
+	/**
+	 * @param rs
+	 *            the result set to read to the end, left open
+	 * @return its columns
+	 */
+	public static ColumnarResult read(final ResultSet rs) throws SQLException {
+		ResultSetMetaData md = rs.getMetaData();
+		List<Column> columns = new ArrayList<Column>(md.getColumnCount());
+		for (int i = 1; i <= md.getColumnCount(); i++) {
+			columns.add(column(md, i));
+		}
+		ColumnarResult result = new ColumnarResult(columns);
+		int count = columns.size();
+		while (rs.next()) {
+			for (int i = 0; i < count; i++) {
+				columns.get(i).read(rs, i + 1);
+			}
+			result.rows++;
+		}
+		return result;
+	}
+
+	private static Column column(final ResultSetMetaData md, final int i) throws SQLException {
+		String name = md.getColumnLabel(i);
+		switch (md.getColumnType(i)) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+			return new IntColumn(name);
+		case Types.BIGINT:
+			return new LongColumn(name, false);
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			if (md.getScale(i) == 0 && md.getPrecision(i) > 0 && md.getPrecision(i) <= 18) {
+				return new LongColumn(name, false);
+			}
+			return new DoubleColumn(name);
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return new DoubleColumn(name);
+		case Types.DATE:
+		case Types.TIME:
+		case Types.TIMESTAMP:
+			return new LongColumn(name, true);
+		default:
+			return new StringColumn(name);
+		}
+	}
+
+	/**
+	 * @return how many rows were read
+	 */
+	public int getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * @return how many columns there are
+	 */
+	public int getColumnCount() {
+		return columns.size();
+	}
+
+	/**
+	 * @return the columns in query order
+	 */
+	public List<Column> getColumns() {
+		return Collections.unmodifiableList(columns);
+	}
+
+	/**
+	 * @param index
+	 *            0 based
+	 * @return the column
+	 */
+	public Column getColumn(final int index) {
+		return columns.get(index);
+	}
+
+	/**
+	 * @param name
+	 *            the column label, any case
+	 * @return the column
+	 * @throws IllegalArgumentException
+	 *             if there is no such column
+	 */
+	public Column getColumn(final String name) {
+		Integer index = indexes.get(name.toUpperCase());
+		if (index == null) {
+			throw new IllegalArgumentException("No column " + name + " in " + indexes.keySet());
+		}
+		return columns.get(index.intValue());
+	}
+
+	public LongColumn getLongColumn(final String name) {
+		return cast(name, LongColumn.class);
+	}
+
+	public IntColumn getIntColumn(final String name) {
+		return cast(name, IntColumn.class);
+	}
+
+	public DoubleColumn getDoubleColumn(final String name) {
+		return cast(name, DoubleColumn.class);
+	}
+
+	public StringColumn getStringColumn(final String name) {
+		return cast(name, StringColumn.class);
+	}
+
+	/**
+	 * Sum a numeric column grouped by the values of another column, e.g.
+	 * balances per currency. Rows where either is null are skipped.
+	 *
+	 * @param keyColumn
+	 *            the column to group by, read as strings
+	 * @param valueColumn
+	 *            the numeric column to sum
+	 * @return the sum per key, in the order the keys were first seen
+	 */
+	public Map<String, Double> sumBy(final String keyColumn, final String valueColumn) {
+		Column key = getColumn(keyColumn);
+		Column value = getColumn(valueColumn);
+		if (!(value instanceof NumericColumn)) {
+			throw new IllegalArgumentException(valueColumn + " is not numeric");
+		}
+		NumericColumn numbers = (NumericColumn) value;
+		Map<String, Double> sums = new LinkedHashMap<String, Double>();
+		if (key instanceof StringColumn) {
+			// sum by code first so nothing is boxed per row
+			StringColumn strings = (StringColumn) key;
+			double[] byCode = new double[strings.getCardinality()];
+			boolean[] seen = new boolean[byCode.length];
+			int[] order = new int[byCode.length];
+			int distinct = 0;
+			for (int row = 0; row < rows; row++) {
+				if (!key.isNull(row) && !value.isNull(row)) {
+					int code = strings.getCode(row);
+					if (!seen[code]) {
+						seen[code] = true;
+						order[distinct++] = code;
+					}
+					byCode[code] += numbers.getDouble(row);
+				}
+			}
+			for (int i = 0; i < distinct; i++) {
+				sums.put(strings.getDictionary()[order[i]], Double.valueOf(byCode[order[i]]));
+			}
+			return sums;
+		}
+		for (int row = 0; row < rows; row++) {
+			if (!key.isNull(row) && !value.isNull(row)) {
+				String k = key.getString(row);
+				Double sum = sums.get(k);
+				sums.put(k, Double.valueOf((sum == null ? 0 : sum.doubleValue())
+						+ numbers.getDouble(row)));
+			}
+		}
+		return sums;
+	}
+
+	private <C extends Column> C cast(final String name, final Class<C> type) {
+		Column column = getColumn(name);
+		if (!type.isInstance(column)) {
+			throw new IllegalArgumentException(name + " is a " + column.getClass().getSimpleName()
+					+ " not a " + type.getSimpleName());
+		}
+		return type.cast(column);
+	}
+
+	/**
+	 * One column of the result
+	 */
+	public abstract static class Column {
+		private final String name;
+		private long[] nulls;
+		private int nullCount;
+		int size;
+
+		Column(final String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return how many values there are, nulls included
+		 */
+		public int size() {
+			return size;
+		}
+
+		public boolean isNull(final int row) {
+			check(row);
+			return nulls != null && (row >> 6) < nulls.length && (nulls[row >> 6] & (1L << row)) != 0;
+		}
+
+		/**
+		 * @return how many values are null
+		 */
+		public int getNullCount() {
+			return nullCount;
+		}
+
+		/**
+		 * @return the value as text, null if it is null
+		 */
+		public abstract String getString(int row);
+
+		abstract void read(ResultSet rs, int column) throws SQLException;
+
+		/**
+		 * The value just read was null
+		 */
+		void markNull() {
+			int row = size - 1;
+			if (nulls == null) {
+				nulls = new long[Math.max(1, (row >> 6) + 1)];
+			} else if ((row >> 6) >= nulls.length) {
+				nulls = Arrays.copyOf(nulls, Math.max(nulls.length * 2, (row >> 6) + 1));
+			}
+			nulls[row >> 6] |= 1L << row;
+			nullCount++;
+		}
+
+		void check(final int row) {
+			if (row < 0 || row >= size) {
+				throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+			}
+		}
+
+		static int grow(final int length, final int needed) {
+			return Math.max(needed, length < INITIAL_CAPACITY ? INITIAL_CAPACITY : length * 2);
+		}
+	}
+
+	/**
+	 * A column that can be summed
+	 */
+	public abstract static class NumericColumn extends Column {
+
+		NumericColumn(final String name) {
+			super(name);
+		}
+
+		/**
+		 * @return the value widened to a double, 0 if it is null
+		 */
+		public abstract double getDouble(int row);
+
+		/**
+		 * @return the sum of the non null values
+		 */
+		public double sumAsDouble() {
+			double sum = 0;
+			for (int row = 0; row < size; row++) {
+				sum += getDouble(row);
+			}
+			return sum;
+		}
+
+		/**
+		 * @return the mean of the non null values, NaN if there are none
+		 */
+		public double mean() {
+			int count = size - getNullCount();
+			return count == 0 ? Double.NaN : sumAsDouble() / count;
+		}
+	}
+
+	/**
+	 * Whole numbers, and dates as epoch milliseconds
+	 */
+	public static final class LongColumn extends NumericColumn {
+		private final boolean date;
+		private long[] values = new long[0];
+
+		LongColumn(final String name, final boolean date) {
+			super(name);
+			this.date = date;
+		}
+
+		@Override
+		void read(final ResultSet rs, final int column) throws SQLException {
+			long value;
+			if (date) {
+				Timestamp ts = rs.getTimestamp(column);
+				value = ts == null ? 0 : ts.getTime();
+			} else {
+				value = rs.getLong(column);
+			}
+			if (size == values.length) {
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+			}
+			values[size++] = value;
+			if (rs.wasNull()) {
+				markNull();
+			}
+		}
+
+		/**
+		 * @return the value, 0 if it is null
+		 */
+		public long get(final int row) {
+			check(row);
+			return values[row];
+		}
+
+		/**
+		 * @return true if the values are dates in epoch milliseconds
+		 */
+		public boolean isDate() {
+			return date;
+		}
+
+		@Override
+		public double getDouble(final int row) {
+			return get(row);
+		}
+
+		@Override
+		public String getString(final int row) {
+			if (isNull(row)) {
+				return null;
+			}
+			return date ? new Timestamp(values[row]).toString() : Long.toString(values[row]);
+		}
+
+		/**
+		 * @return the sum of the non null values
+		 */
+		public long sum() {
+			long sum = 0;
+			for (int row = 0; row < size; row++) {
+				sum += values[row];
+			}
+			return sum;
+		}
+
+		/**
+		 * @return the smallest non null value, Long.MAX_VALUE if there is none
+		 */
+		public long min() {
+			long min = Long.MAX_VALUE;
+			for (int row = 0; row < size; row++) {
+				if (values[row] < min && !isNull(row)) {
+					min = values[row];
+				}
+			}
+			return min;
+		}
+
+		/**
+		 * @return the largest non null value, Long.MIN_VALUE if there is none
+		 */
+		public long max() {
+			long max = Long.MIN_VALUE;
+			for (int row = 0; row < size; row++) {
+				if (values[row] > max && !isNull(row)) {
+					max = values[row];
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * @return a copy of the values, nulls as 0
+		 */
+		public long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Small whole numbers
+	 */
+	public static final class IntColumn extends NumericColumn {
+		private int[] values = new int[0];
+
+		IntColumn(final String name) {
+			super(name);
+		}
+
+		@Override
+		void read(final ResultSet rs, final int column) throws SQLException {
+			int value = rs.getInt(column);
+			if (size == values.length) {
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+			}
+			values[size++] = value;
+			if (rs.wasNull()) {
+				markNull();
+			}
+		}
+
+		/**
+		 * @return the value, 0 if it is null
+		 */
+		public int get(final int row) {
+			check(row);
+			return values[row];
+		}
+
+		@Override
+		public double getDouble(final int row) {
+			return get(row);
+		}
+
+		@Override
+		public String getString(final int row) {
+			return isNull(row) ? null : Integer.toString(values[row]);
+		}
+
+		/**
+		 * @return the sum of the non null values
+		 */
+		public long sum() {
+			long sum = 0;
+			for (int row = 0; row < size; row++) {
+				sum += values[row];
+			}
+			return sum;
+		}
+
+		/**
+		 * @return the smallest non null value, Integer.MAX_VALUE if there is
+		 *         none
+		 */
+		public int min() {
+			int min = Integer.MAX_VALUE;
+			for (int row = 0; row < size; row++) {
+				if (values[row] < min && !isNull(row)) {
+					min = values[row];
+				}
+			}
+			return min;
+		}
+
+		/**
+		 * @return the largest non null value, Integer.MIN_VALUE if there is
+		 *         none
+		 */
+		public int max() {
+			int max = Integer.MIN_VALUE;
+			for (int row = 0; row < size; row++) {
+				if (values[row] > max && !isNull(row)) {
+					max = values[row];
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * @return a copy of the values, nulls as 0
+		 */
+		public int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Fractional numbers
+	 */
+	public static final class DoubleColumn extends NumericColumn {
+		private double[] values = new double[0];
+
+		DoubleColumn(final String name) {
+			super(name);
+		}
+
+		@Override
+		void read(final ResultSet rs, final int column) throws SQLException {
+			double value = rs.getDouble(column);
+			if (size == values.length) {
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+			}
+			values[size++] = value;
+			if (rs.wasNull()) {
+				markNull();
+			}
+		}
+
+		/**
+		 * @return the value, 0 if it is null
+		 */
+		public double get(final int row) {
+			check(row);
+			return values[row];
+		}
+
+		@Override
+		public double getDouble(final int row) {
+			return get(row);
+		}
+
+		@Override
+		public String getString(final int row) {
+			return isNull(row) ? null : Double.toString(values[row]);
+		}
+
+		/**
+		 * @return the smallest non null value, NaN if there is none
+		 */
+		public double min() {
+			double min = Double.NaN;
+			for (int row = 0; row < size; row++) {
+				if (!isNull(row) && (Double.isNaN(min) || values[row] < min)) {
+					min = values[row];
+				}
+			}
+			return min;
+		}
+
+		/**
+		 * @return the largest non null value, NaN if there is none
+		 */
+		public double max() {
+			double max = Double.NaN;
+			for (int row = 0; row < size; row++) {
+				if (!isNull(row) && (Double.isNaN(max) || values[row] > max)) {
+					max = values[row];
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * @return a copy of the values, nulls as 0
+		 */
+		public double[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Text, stored as a dictionary of the distinct values and a code per row
+	 */
+	public static final class StringColumn extends Column {
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private String[] dictionary = new String[16];
+		private int[] rowCodes = new int[0];
+
+		StringColumn(final String name) {
+			super(name);
+		}
+
+		@Override
+		void read(final ResultSet rs, final int column) throws SQLException {
+			String value = rs.getString(column);
+			int code = -1;
+			if (value != null) {
+				Integer existing = codes.get(value);
+				if (existing == null) {
+					code = codes.size();
+					if (code == dictionary.length) {
+						dictionary = Arrays.copyOf(dictionary, code * 2);
+					}
+					dictionary[code] = value;
+					codes.put(value, Integer.valueOf(code));
+				} else {
+					code = existing.intValue();
+				}
+			}
+			if (size == rowCodes.length) {
+				rowCodes = Arrays.copyOf(rowCodes, grow(rowCodes.length, size + 1));
+			}
+			rowCodes[size++] = code;
+			if (value == null) {
+				markNull();
+			}
+		}
+
+		@Override
+		public String getString(final int row) {
+			int code = getCode(row);
+			return code < 0 ? null : dictionary[code];
+		}
+
+		/**
+		 * @return the value, null if it is null
+		 */
+		public String get(final int row) {
+			return getString(row);
+		}
+
+		/**
+		 * @return the value's index in {@link #getDictionary()}, -1 if null
+		 */
+		public int getCode(final int row) {
+			check(row);
+			return rowCodes[row];
+		}
+
+		/**
+		 * @return how many distinct non null values there are
+		 */
+		public int getCardinality() {
+			return codes.size();
+		}
+
+		/**
+		 * @return the distinct values in the order they were first seen
+		 */
+		public String[] getDictionary() {
+			return Arrays.copyOf(dictionary, codes.size());
+		}
+
+		/**
+		 * @return how many rows hold each distinct value, in the order they
+		 *         were first seen
+		 */
+		public Map<String, Integer> countByValue() {
+			int[] counts = new int[codes.size()];
+			for (int row = 0; row < size; row++) {
+				if (rowCodes[row] >= 0) {
+					counts[rowCodes[row]]++;
+				}
+			}
+			Map<String, Integer> byValue = new LinkedHashMap<String, Integer>();
+			for (int code = 0; code < counts.length; code++) {
+				byValue.put(dictionary[code], Integer.valueOf(counts[code]));
+			}
+			return byValue;
+		}
+	}
+}
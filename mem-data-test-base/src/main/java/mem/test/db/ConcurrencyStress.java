@@ -0,0 +1,426 @@
+package mem.test.db;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Runs a DAO workload on many threads against a database in each
+ * {@link TransactionControl} mode and reports what the contention cost.
+ * <br/><br/>
+ * Usage: <code>ConcurrencyStress [threads] [seconds per mode] [mode ...]</code>
+ * runs the built in {@link TransferWorkload} on a fresh database per mode.
+ * <br/><br/>
+ * Each operation is one transaction through a
+ * {@link DataSourceTransactionManager}, so DAOs using a JdbcTemplate on the
+ * same datasource take part in it. Failures are counted, not retried.
+ * HSQL rolls back with SQLState <code>40001</code> both to break a deadlock
+ * and on an MVCC conflict, which Spring turns into the same
+ * {@link ConcurrencyFailureException}, so they are told apart by the mode:
+ * in LOCKS and MVLOCKS only a deadlock rolls a transaction back and it is
+ * counted as one, under MVCC it is counted as a serialization failure,
+ * deadlock or not. A {@link DeadlockLoserDataAccessException} or SQLState
+ * <code>40P01</code> is always a deadlock, anything else an error. Lock waits are sampled from HSQL's
+ * <code>SYSTEM_SESSIONS</code> every {@value #SAMPLE_MILLIS} ms, counting
+ * sessions waiting for another.
+ *
+ */
+public final class ConcurrencyStress {
+
+	private static final Log LOG = LogFactory.getLog(ConcurrencyStress.class);
+
+	private static final long SAMPLE_MILLIS = 5;
+
+	private static final int LOGGED_ERRORS = 10;
+
+	/**
+	 * What each thread does over and over
+	 */
+	public interface Workload {
+
+		/**
+		 * Create the tables and rows the operations need. Runs once, before
+		 * the threads start.
+		 *
+		 * @param template
+		 *            on the database under test
+		 */
+		void setUp(JdbcTemplate template);
+
+		/**
+		 * One operation, run in a transaction
+		 *
+		 * @param template
+		 *            on the database under test
+		 * @param random
+		 *            the thread's own
+		 */
+		void run(JdbcTemplate template, Random random);
+	}
+
+	/**
+	 *
+	 */
+	private ConcurrencyStress() {
+	}
+
+	/**
+	 * @param args
+	 *            threads (default 8), seconds per mode (default 5), then the
+	 *            modes (default all)
+	 */
+	public static void main(final String... args) throws IOException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		long millis = args.length > 1 ? Long.parseLong(args[1]) * 1000L : 5000L;
+		List<TransactionControl> modes = new ArrayList<TransactionControl>();
+		for (int i = 2; i < args.length; i++) {
+			modes.add(TransactionControl.valueOf(args[i].toUpperCase()));
+		}
+		if (modes.isEmpty()) {
+			for (TransactionControl mode : TransactionControl.values()) {
+				modes.add(mode);
+			}
+		}
+
+		StringBuilder report = new StringBuilder();
+		for (TransactionControl mode : modes) {
+			report.append(run(mode, threads, millis, new TransferWorkload(100))).append('\n');
+		}
+		LOG.info("Concurrency stress, " + threads + " threads\n" + report);
+	}
+
+	/**
+	 * Run the workload on a new {@link MemTest} database created in the mode,
+	 * shut down afterwards
+	 *
+	 * @param mode
+	 *            the transaction model
+	 * @param threads
+	 *            how many threads run operations
+	 * @param millis
+	 *            how long they run for
+	 * @param workload
+	 *            what they run
+	 * @return throughput, latencies, waits and failures
+	 * @throws IOException
+	 *             if there was a problem creating the database
+	 */
+	public static Result run(final TransactionControl mode, final int threads, final long millis,
+			final Workload workload) throws IOException {
+		String name = "stress-" + mode.name().toLowerCase() + "-" + System.nanoTime();
+		MemTest.setTransactionControl(name, mode);
+		try {
+			DataSource dataSource = MemTest.acquireARDataSource(name);
+			// a connection per worker and one for the sampler, so nobody queues on the pool
+			DataSource target = dataSource;
+			while (target instanceof DelegatingDataSource) {
+				target = ((DelegatingDataSource) target).getTargetDataSource();
+			}
+			if (target instanceof BasicDataSource) {
+				((BasicDataSource) target).setMaxActive(threads + 1);
+				((BasicDataSource) target).setMaxIdle(threads + 1);
+			}
+			return run(dataSource, threads, millis, workload);
+		} finally {
+			MemTest.releaseARDataSource(name);
+			MemTest.shutdownDatabase(name);
+			MemTest.setTransactionControl(name, null);
+		}
+	}
+
+	/**
+	 * Run the workload on a database as it is
+	 *
+	 * @param dataSource
+	 *            the database, with a pool big enough for the threads
+	 * @param threads
+	 *            how many threads run operations
+	 * @param millis
+	 *            how long they run for
+	 * @param workload
+	 *            what they run
+	 * @return throughput, latencies, waits and failures
+	 */
+	public static Result run(final DataSource dataSource, final int threads, final long millis,
+			final Workload workload) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread, not " + threads);
+		}
+		final JdbcTemplate template = new JdbcTemplate(dataSource);
+		workload.setUp(template);
+		final TransactionControl mode = TransactionControl.valueOf(template.queryForObject(
+				"select PROPERTY_VALUE from INFORMATION_SCHEMA.SYSTEM_PROPERTIES"
+						+ " where PROPERTY_NAME = 'hsqldb.tx'", String.class).toUpperCase());
+
+		final TransactionTemplate transactions = new TransactionTemplate(
+				new DataSourceTransactionManager(dataSource));
+		final Result result = new Result(threads);
+		result.mode = mode;
+		final CountDownLatch started = new CountDownLatch(1);
+		final long stopAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final Random random = new Random(i);
+			Thread worker = new Thread("ConcurrencyStress-" + i) {
+				@Override
+				public void run() {
+					try {
+						started.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					while (System.nanoTime() < stopAt) {
+						long start = System.nanoTime();
+						try {
+							transactions.execute(new TransactionCallbackWithoutResult() {
+								@Override
+								protected void doInTransactionWithoutResult(final TransactionStatus status) {
+									workload.run(template, random);
+								}
+							});
+							result.latency.record(System.nanoTime() - start);
+						} catch (ConcurrencyFailureException e) {
+							if (isDeadlock(e, mode)) {
+								result.deadlocks.increment();
+							} else {
+								result.serializationFailures.increment();
+							}
+						} catch (RuntimeException e) {
+							result.errors.increment();
+							if (result.errors.sum() <= LOGGED_ERRORS) {
+								LOG.warn("Stress operation failed", e);
+							}
+						}
+					}
+				}
+			};
+			worker.start();
+			workers.add(worker);
+		}
+
+		long start = System.nanoTime();
+		started.countDown();
+		JdbcTemplate sampler = new JdbcTemplate(dataSource);
+		while (System.nanoTime() < stopAt) {
+			result.waitSamples++;
+			result.waitingSessions += waitingSessions(sampler);
+			try {
+				Thread.sleep(SAMPLE_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	/**
+	 * @return true if the failure was a deadlock, going by the exception,
+	 *         the SQLState of the SQLException under it and the mode
+	 */
+	private static boolean isDeadlock(final ConcurrencyFailureException e,
+			final TransactionControl mode) {
+		if (e instanceof DeadlockLoserDataAccessException) {
+			return true;
+		}
+		for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException) {
+				String state = ((SQLException) cause).getSQLState();
+				return "40P01".equals(state) || ("40001".equals(state) && mode != TransactionControl.MVCC);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * HSQL only fills in <code>THIS_WAITING_FOR</code> under MVCC, in the
+	 * locking modes the waiters are listed in the holder's
+	 * <code>WAITING_FOR_THIS</code>, so both are read
+	 *
+	 * @return how many sessions are waiting for another right now
+	 */
+	private static int waitingSessions(final JdbcTemplate sampler) {
+		Set<String> waiting = new HashSet<String>();
+		for (Map<String, Object> session : sampler.queryForList("select SESSION_ID,"
+				+ " THIS_WAITING_FOR, WAITING_FOR_THIS from INFORMATION_SCHEMA.SYSTEM_SESSIONS")) {
+			if (StringUtils.isNotBlank((String) session.get("THIS_WAITING_FOR"))) {
+				waiting.add(String.valueOf(session.get("SESSION_ID")));
+			}
+			String waiters = (String) session.get("WAITING_FOR_THIS");
+			if (StringUtils.isNotBlank(waiters)) {
+				for (String id : waiters.split(",")) {
+					waiting.add(id.trim());
+				}
+			}
+		}
+		return waiting.size();
+	}
+
+	/**
+	 * Moves amounts between random accounts, reading both first and updating
+	 * them in the order drawn so writers cross, and now and then adds up all
+	 * the balances. Accounts never change in number, so fewer of them means
+	 * more contention.
+	 */
+	public static final class TransferWorkload implements Workload {
+		private final int accounts;
+
+		/**
+		 * @param accounts
+		 *            how many accounts to move amounts between
+		 */
+		public TransferWorkload(final int accounts) {
+			this.accounts = accounts;
+		}
+
+		public void setUp(final JdbcTemplate template) {
+			template.execute("create table STRESS_ACCOUNT (ID integer primary key,"
+					+ " BALANCE bigint not null)");
+			for (int i = 0; i < accounts; i++) {
+				template.update("insert into STRESS_ACCOUNT values (?, 1000)", i);
+			}
+		}
+
+		public void run(final JdbcTemplate template, final Random random) {
+			if (random.nextInt(5) == 0) {
+				template.queryForObject("select sum(BALANCE) from STRESS_ACCOUNT", Long.class);
+				return;
+			}
+			int from = random.nextInt(accounts);
+			int to = random.nextInt(accounts);
+			int amount = random.nextInt(10);
+			template.queryForObject("select BALANCE from STRESS_ACCOUNT where ID = ?", Long.class,
+					from);
+			template.queryForObject("select BALANCE from STRESS_ACCOUNT where ID = ?", Long.class,
+					to);
+			template.update("update STRESS_ACCOUNT set BALANCE = BALANCE - ? where ID = ?", amount,
+					from);
+			template.update("update STRESS_ACCOUNT set BALANCE = BALANCE + ? where ID = ?", amount,
+					to);
+		}
+	}
+
+	/**
+	 * What a run cost
+	 */
+	public static final class Result {
+		private final int threads;
+		private TransactionControl mode;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final StripedCounter deadlocks = new StripedCounter();
+		private final StripedCounter serializationFailures = new StripedCounter();
+		private final StripedCounter errors = new StripedCounter();
+		private long waitSamples;
+		private long waitingSessions;
+		private long elapsedNanos;
+
+		Result(final int threads) {
+			this.threads = threads;
+		}
+
+		/**
+		 * @return the mode the database ran in
+		 */
+		public TransactionControl getMode() {
+			return mode;
+		}
+
+		/**
+		 * @return how many operations committed
+		 */
+		public long getCommitted() {
+			return latency.getCount();
+		}
+
+		/**
+		 * @return committed operations per second
+		 */
+		public double getThroughput() {
+			return elapsedNanos <= 0 ? 0 : getCommitted() * 1000000000d / elapsedNanos;
+		}
+
+		/**
+		 * @return how long committed operations took
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return how many operations were rolled back as deadlock losers
+		 */
+		public long getDeadlocks() {
+			return deadlocks.sum();
+		}
+
+		/**
+		 * @return how many operations failed on other concurrency conflicts,
+		 *         under MVCC deadlocks too
+		 */
+		public long getSerializationFailures() {
+			return serializationFailures.sum();
+		}
+
+		/**
+		 * @return how many operations failed for other reasons
+		 */
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		/**
+		 * @return the average number of sessions waiting for a lock
+		 */
+		public double getMeanWaitingSessions() {
+			return waitSamples == 0 ? 0 : (double) waitingSessions / waitSamples;
+		}
+
+		/**
+		 * @return the share of the threads waiting for a lock on average
+		 */
+		public double getLockWaitRatio() {
+			return getMeanWaitingSessions() / threads;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d committed in %d ms, %.0f/sec, p50 %d us p99 %d us,"
+					+ " %.1f%% of threads waiting on locks, %d deadlocks, %d serialization"
+					+ " failures, %d errors", mode.name(), getCommitted(),
+					elapsedNanos / 1000000L, getThroughput(),
+					latency.getPercentileNanos(50) / 1000L, latency.getPercentileNanos(99) / 1000L,
+					getLockWaitRatio() * 100, getDeadlocks(), getSerializationFailures(),
+					getErrors());
+		}
+	}
+}
@@ -0,0 +1,418 @@
+package mem.test.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Loads .xlsx fixture workbooks straight into tables. Each sheet is a table
+ * and the first row of the sheet holds the column names. <br/><br/>
+ * The sheets are read with the POI event model (SAX) one row at a time and
+ * the rows go through a single batched insert per sheet, so memory stays flat
+ * no matter how many rows a sheet has. Only the workbook's shared string
+ * table is held in memory. <br/><br/>
+ * Dates come through as <code>yyyy-MM-dd HH:mm:ss</code> and numbers without
+ * their display formatting so that HSQL can convert them to the column type.
+ * Empty cells are inserted as null.
+ *
+ */
+public final class ExcelFixtureLoader {
+
+	private static final Log LOG = LogFactory.getLog(ExcelFixtureLoader.class);
+
+	/**
+	 *
+	 */
+	private ExcelFixtureLoader() {
+	}
+
+	/**
+	 * Load every sheet of a workbook into the table of the same name.
+	 *
+	 * @param fileName
+	 *            the classpath name of the .xlsx workbook
+	 * @param template
+	 *            a JdbcTemplate to use
+	 * @return how many rows went into each table and how fast
+	 * @throws IOException
+	 *             if there was a problem reading the workbook
+	 */
+	public static LoadReport loadWorkbook(final String fileName, final JdbcTemplate template)
+			throws IOException {
+		return loadWorkbook(fileName, template, null);
+	}
+
+	/**
+	 * Load the named sheets of a workbook.
+	 *
+	 * @param fileName
+	 *            the classpath name of the .xlsx workbook
+	 * @param template
+	 *            a JdbcTemplate to use
+	 * @param sheetToTable
+	 *            sheet name to table name. Sheets not in the map are skipped.
+	 *            Null loads every sheet into the table of the same name.
+	 * @return how many rows went into each table and how fast
+	 * @throws IOException
+	 *             if there was a problem reading the workbook
+	 */
+	public static LoadReport loadWorkbook(final String fileName, final JdbcTemplate template,
+			final Map<String, String> sheetToTable) throws IOException {
+		URL url = ExcelFixtureLoader.class.getClassLoader().getResource(fileName);
+		if (url == null) {
+			throw new IOException("Could not find file with name " + fileName);
+		}
+
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return loadWorkbook(new File(url.toURI()), template, sheetToTable);
+			} catch (URISyntaxException e) {
+				throw new IOException("Bad file name " + url, e);
+			}
+		}
+
+		// inside a jar, POI needs a real file to stream from
+		File tmp = File.createTempFile("fixture", ".xlsx");
+		try {
+			InputStream in = url.openStream();
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				IOUtils.copy(in, out);
+			} finally {
+				IOUtils.closeQuietly(in);
+				IOUtils.closeQuietly(out);
+			}
+			return loadWorkbook(tmp, template, sheetToTable);
+		} finally {
+			if (!tmp.delete()) {
+				tmp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Load the named sheets of a workbook.
+	 *
+	 * @param workbook
+	 *            the .xlsx workbook
+	 * @param template
+	 *            a JdbcTemplate to use
+	 * @param sheetToTable
+	 *            sheet name to table name. Sheets not in the map are skipped.
+	 *            Null loads every sheet into the table of the same name.
+	 * @return how many rows went into each table and how fast
+	 * @throws IOException
+	 *             if there was a problem reading the workbook
+	 */
+	public static LoadReport loadWorkbook(final File workbook, final JdbcTemplate template,
+			final Map<String, String> sheetToTable) throws IOException {
+		JdbcTemplate t = (template instanceof TestJdbcTemplateWrapper ? template
+				: new TestJdbcTemplateWrapper(template));
+		LoadReport report = new LoadReport();
+
+		OPCPackage pkg;
+		try {
+			pkg = OPCPackage.open(workbook.getPath(), PackageAccess.READ);
+		} catch (Exception e) {
+			throw new IOException("Could not open workbook " + workbook, e);
+		}
+
+		try {
+			XSSFReader reader = new XSSFReader(pkg);
+			ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+			StylesTable styles = reader.getStylesTable();
+
+			// find the sheets first, the iterator gives us the streams in
+			// workbook order along with their names
+			Map<String, PackagePart> sheets = new LinkedHashMap<String, PackagePart>();
+			XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) reader.getSheetsData();
+			while (it.hasNext()) {
+				InputStream in = it.next();
+				IOUtils.closeQuietly(in);
+				sheets.put(it.getSheetName(), it.getSheetPart());
+			}
+
+			for (Map.Entry<String, PackagePart> sheet : sheets.entrySet()) {
+				String table = sheet.getKey();
+				if (sheetToTable != null) {
+					table = sheetToTable.get(sheet.getKey());
+					if (table == null) {
+						LOG.debug("Skipping sheet " + sheet.getKey());
+						continue;
+					}
+				}
+				long start = System.nanoTime();
+				long rows = loadSheet(sheet.getValue(), table, strings, styles, t);
+				report.add(table.toUpperCase(), rows, System.nanoTime() - start);
+				LOG.info("Loaded " + rows + " rows from sheet " + sheet.getKey() + " into "
+						+ table);
+			}
+		} catch (OpenXML4JException e) {
+			throw new IOException("Could not read workbook " + workbook, e);
+		} catch (SAXException e) {
+			throw new IOException("Could not read workbook " + workbook, e);
+		} finally {
+			pkg.revert();
+		}
+
+		return report;
+	}
+
+	private static long loadSheet(final PackagePart sheet, final String table,
+			final ReadOnlySharedStringsTable strings, final StylesTable styles,
+			final JdbcTemplate template) throws IOException, SAXException {
+
+		// first pass only reads up to the end of the header row
+		HeaderHandler header = new HeaderHandler();
+		try {
+			parse(sheet, strings, styles, header);
+		} catch (StopParsing e) {
+			// got the header
+		}
+
+		if (header.columns.isEmpty()) {
+			LOG.warn("No header row in sheet for " + table + ". Skipping");
+			return 0;
+		}
+
+		final List<String> columnNames = new ArrayList<String>(header.columns.values());
+		final int[] positions = header.positions();
+		final int headerRow = header.rowNum;
+		String sql = TableMetaData.insertSql(table, columnNames);
+
+		Long rows = template.execute(sql, new PreparedStatementCallback<Long>() {
+			public Long doInPreparedStatement(final PreparedStatement ps) throws SQLException,
+					DataAccessException {
+				TableMetaData actual = TableMetaData.read(ps.getConnection().getMetaData(),
+						null, table);
+				BatchInserter inserter = new BatchInserter(ps, template.getDataSource(),
+						BatchInserter.sqlTypes(actual, columnNames), BatchInserter.DEFAULT_BATCH_SIZE);
+				RowHandler rowHandler = new RowHandler(inserter, positions, headerRow);
+				try {
+					parse(sheet, strings, styles, rowHandler);
+				} catch (RowFailure e) {
+					throw e.getCause();
+				} catch (IOException e) {
+					throw new IllegalStateException("Problem reading sheet for " + table, e);
+				} catch (SAXException e) {
+					throw new IllegalStateException("Problem reading sheet for " + table, e);
+				}
+				return Long.valueOf(inserter.close());
+			}
+		});
+
+		return rows.longValue();
+	}
+
+	private static void parse(final PackagePart sheet, final ReadOnlySharedStringsTable strings,
+			final StylesTable styles, final SheetContentsHandler handler) throws IOException,
+			SAXException {
+		XMLReader parser;
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			parser = factory.newSAXParser().getXMLReader();
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException("No SAX parser available", e);
+		}
+		parser.setContentHandler(new XSSFSheetXMLHandler(styles, strings, handler,
+				new FixtureFormatter(), false));
+
+		InputStream in = sheet.getInputStream();
+		try {
+			parser.parse(new InputSource(in));
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Thrown to stop the SAX parser once we have what we need. The sheet
+	 * handler callbacks can't throw checked exceptions.
+	 */
+	private static final class StopParsing extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Carries an insert failure out through the SAX parser
+	 */
+	private static final class RowFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		RowFailure(final SQLException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized SQLException getCause() {
+			return (SQLException) super.getCause();
+		}
+	}
+
+	/**
+	 * Collects the column names from the first non empty row
+	 */
+	private static final class HeaderHandler implements SheetContentsHandler {
+		private final Map<Integer, String> columns = new LinkedHashMap<Integer, String>();
+		private int rowNum;
+
+		public void startRow(final int row) {
+			rowNum = row;
+		}
+
+		public void endRow() {
+			if (!columns.isEmpty()) {
+				throw new StopParsing();
+			}
+		}
+
+		public void cell(final String cellReference, final String formattedValue) {
+			if (formattedValue != null && formattedValue.trim().length() > 0) {
+				int col = new CellReference(cellReference).getCol();
+				columns.put(Integer.valueOf(col), formattedValue.trim().toUpperCase());
+			}
+		}
+
+		public void headerFooter(final String text, final boolean isHeader, final String tagName) {
+		}
+
+		/**
+		 * @return for each sheet column, the parameter position or -1
+		 */
+		int[] positions() {
+			int max = 0;
+			for (Integer col : columns.keySet()) {
+				max = Math.max(max, col.intValue());
+			}
+			int[] positions = new int[max + 1];
+			Arrays.fill(positions, -1);
+			int p = 0;
+			for (Integer col : columns.keySet()) {
+				positions[col.intValue()] = p++;
+			}
+			return positions;
+		}
+	}
+
+	/**
+	 * Feeds every row after the header to the inserter
+	 */
+	private static final class RowHandler implements SheetContentsHandler {
+		private final BatchInserter inserter;
+		private final int[] positions;
+		private final int headerRow;
+		private final Object[] row;
+		private int rowNum;
+		private boolean empty;
+
+		RowHandler(final BatchInserter inserter, final int[] positions, final int headerRow) {
+			this.inserter = inserter;
+			this.positions = positions;
+			this.headerRow = headerRow;
+			int count = 0;
+			for (int p : positions) {
+				if (p >= 0) {
+					count++;
+				}
+			}
+			this.row = new Object[count];
+		}
+
+		public void startRow(final int r) {
+			rowNum = r;
+			empty = true;
+			Arrays.fill(row, null);
+		}
+
+		public void endRow() {
+			if (rowNum <= headerRow || empty) {
+				return;
+			}
+			try {
+				inserter.addRow(row);
+			} catch (SQLException e) {
+				throw new RowFailure(e);
+			}
+		}
+
+		public void cell(final String cellReference, final String formattedValue) {
+			if (rowNum <= headerRow || formattedValue == null || formattedValue.length() == 0) {
+				return;
+			}
+			int col = new CellReference(cellReference).getCol();
+			if (col < positions.length && positions[col] >= 0) {
+				row[positions[col]] = formattedValue;
+				empty = false;
+			}
+		}
+
+		public void headerFooter(final String text, final boolean isHeader, final String tagName) {
+		}
+	}
+
+	/**
+	 * Formats numbers and dates the way HSQL will parse them rather than the
+	 * way the workbook displays them
+	 */
+	private static final class FixtureFormatter extends DataFormatter {
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+		@Override
+		public String formatRawCellContents(final double value, final int formatIndex,
+				final String formatString) {
+			return formatRawCellContents(value, formatIndex, formatString, false);
+		}
+
+		@Override
+		public String formatRawCellContents(final double value, final int formatIndex,
+				final String formatString, final boolean use1904Windowing) {
+			if (DateUtil.isADateFormat(formatIndex, formatString)
+					&& DateUtil.isValidExcelDate(value)) {
+				return dateFormat.format(DateUtil.getJavaDate(value, use1904Windowing));
+			}
+			if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+				return Long.toString((long) value);
+			}
+			return BigDecimal.valueOf(value).toPlainString();
+		}
+	}
+}
@@ -8,6 +8,8 @@ import java.net.URL;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -78,7 +80,7 @@ public final class ExecuteSQL {
 			c = template.getDataSource().getConnection();
 			DatabaseMetaData meta = c.getMetaData();
 			if (meta.getDatabaseProductName().startsWith("HSQL")) {
-				sql = TransformToHSQL.transformSQL(sql);
+				sql = SqlPreTranslator.translate(fileName, sql);
 			} else {
 				throw new IOException("I dont think this should run if we are not HSQL");
 			}
@@ -101,7 +103,7 @@ public final class ExecuteSQL {
 						.toLowerCase();
 				if (!(statementType.equals("drop") && removeDrops)) {
 					try {
-						count = template.update(sqls[i]);
+						count = updateTranslated(template, sqls[i]);
 					} catch (Exception e) {
 						// Ignoring the exception but count is checked below to
 						// handle error anyway.
@@ -122,4 +124,46 @@ public final class ExecuteSQL {
 		}
 	}
 
+	/**
+	 * Split a script the way {@link #executeSQLFile(String, JdbcTemplate)}
+	 * does, dropping the comment lines before each statement so it starts
+	 * with its keyword.
+	 * 
+	 * @param sql
+	 *            the script
+	 * @return the non empty statements, trimmed
+	 */
+	static List<String> statements(final String sql) {
+		List<String> statements = new ArrayList<String>();
+		for (String statement : sql.split(";")) {
+			String s = statement.trim();
+			while (s.startsWith("--")) {
+				int eol = s.indexOf('\n');
+				s = eol < 0 ? "" : s.substring(eol + 1).trim();
+			}
+			if (s.length() > 0) {
+				statements.add(s);
+			}
+		}
+		return statements;
+	}
+
+	/**
+	 * Run a statement of a translated script. Its update would have a
+	 * {@link TestJdbcTemplateWrapper} translate it again, so the wrapper is
+	 * asked to run it as it is.
+	 * 
+	 * @param template
+	 *            the template the script is run with
+	 * @param sql
+	 *            the statement, in HSQL syntax
+	 * @return the number of rows changed
+	 */
+	static int updateTranslated(final JdbcTemplate template, final String sql) {
+		if (template instanceof TestJdbcTemplateWrapper) {
+			return ((TestJdbcTemplateWrapper) template).updateTranslated(sql);
+		}
+		return template.update(sql);
+	}
+
 }
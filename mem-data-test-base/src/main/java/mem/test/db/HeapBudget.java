@@ -0,0 +1,248 @@
+package mem.test.db;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+/**
+ * How much heap a disk backed database may use. <br/><br/>
+ * A database given a budget with
+ * {@link MemTest#setHeapBudget(String, HeapBudget)} is created as an HSQL
+ * <code>file:</code> database under a temporary directory, deleted again
+ * when it is shut down. Tables start out as <code>MEMORY</code> tables, the
+ * same as in a <code>mem:</code> database. {@link #apply(DataSource)} then
+ * turns tables into <code>CACHED</code> ones, which keep their rows on disk
+ * and only {@link #getCacheBytes()} of them in heap, largest first until the
+ * estimated size of the rest fits in the budget. <br/><br/>
+ * Sizes are estimated the way {@link MemDatabaseMetrics} does, from the row
+ * count, or the count given with {@link #expectRows(String, long)} when that
+ * is more, so big tables can be spilled before they are filled rather than
+ * after. {@link MemTest} applies the budget after creating the tables and
+ * again after loading the fixtures; call
+ * {@link MemTest#applyHeapBudget(String)} after loading volume data.
+ *
+ */
+public final class HeapBudget {
+
+	private static final Log LOG = LogFactory.getLog(HeapBudget.class);
+
+	private static final String TABLE_TYPES = "select TABLE_NAME, HSQLDB_TYPE"
+			+ " from INFORMATION_SCHEMA.SYSTEM_TABLES where TABLE_SCHEM = '"
+			+ TableMetaData.DEFAULT_SCHEMA + "' and TABLE_TYPE = 'TABLE'";
+
+	private static final String TABLE_STATS = "select TABLE_NAME, CARDINALITY"
+			+ " from INFORMATION_SCHEMA.SYSTEM_TABLESTATS where TABLE_SCHEMA = '"
+			+ TableMetaData.DEFAULT_SCHEMA + "'";
+
+	/**
+	 * Rows HSQL keeps in the cache at most, whatever their size
+	 */
+	private static final int MAX_CACHE_ROWS = 1000000;
+
+	private final long bytes;
+	private long cacheBytes;
+	private final Set<String> cached = new LinkedHashSet<String>();
+	private final Map<String, Long> expectedRows = new HashMap<String, Long>();
+
+	/**
+	 * @param bytes
+	 *            the heap the database may use, memory tables and cache
+	 *            together. A quarter of it goes to the cache unless
+	 *            {@link #setCacheBytes(long)} says otherwise.
+	 */
+	public HeapBudget(final long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("Heap budget has to be positive, not " + bytes);
+		}
+		this.bytes = bytes;
+		this.cacheBytes = bytes / 4;
+	}
+
+	/**
+	 * @param megabytes
+	 *            the heap the database may use
+	 * @return a budget of that many megabytes
+	 */
+	public static HeapBudget megabytes(final long megabytes) {
+		return new HeapBudget(megabytes * 1024L * 1024L);
+	}
+
+	/**
+	 * @param cacheBytes
+	 *            how much of the budget the cache of the cached tables gets
+	 * @return this
+	 */
+	public HeapBudget setCacheBytes(final long cacheBytes) {
+		if (cacheBytes <= 0 || cacheBytes > bytes) {
+			throw new IllegalArgumentException("Cache of " + cacheBytes
+					+ " bytes doesn't fit a budget of " + bytes);
+		}
+		this.cacheBytes = cacheBytes;
+		return this;
+	}
+
+	/**
+	 * Cache these tables whatever their size
+	 *
+	 * @param tables
+	 *            the table names
+	 * @return this
+	 */
+	public HeapBudget cache(final String... tables) {
+		for (String table : tables) {
+			cached.add(table.toUpperCase());
+		}
+		return this;
+	}
+
+	/**
+	 * Size the table for at least this many rows
+	 *
+	 * @param table
+	 *            the table name
+	 * @param rows
+	 *            how many rows it will have
+	 * @return this
+	 */
+	public HeapBudget expectRows(final String table, final long rows) {
+		expectedRows.put(table.toUpperCase(), rows);
+		return this;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getCacheBytes() {
+		return cacheBytes;
+	}
+
+	/**
+	 * @param directory
+	 *            where the database files go
+	 * @return the url of a file database there sized to the budget
+	 */
+	String url(final File directory) {
+		// the cache can't be sized in rows ahead of knowing them, so it is
+		// bounded in bytes and the row limit kept out of the way
+		return "jdbc:hsqldb:file:" + new File(directory, "db").getAbsolutePath()
+				+ ";hsqldb.default_table_type=memory;hsqldb.cache_size="
+				+ Math.max(1L, cacheBytes / 1024L) + ";hsqldb.cache_rows=" + MAX_CACHE_ROWS
+				+ ";hsqldb.log_data=false;hsqldb.write_delay=false";
+	}
+
+	/**
+	 * Turn tables into cached ones until the memory tables fit
+	 *
+	 * @param dataSource
+	 *            on a database with a budget
+	 * @return the tables turned into cached ones
+	 */
+	public List<String> apply(final DataSource dataSource) {
+		Connection c = DataSourceUtils.getConnection(dataSource);
+		try {
+			return apply(c);
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not apply the heap budget", e);
+		} finally {
+			DataSourceUtils.releaseConnection(c, dataSource);
+		}
+	}
+
+	private List<String> apply(final Connection c) throws SQLException {
+		Map<String, Long> rows = query(c, TABLE_STATS);
+		Set<String> memory = new LinkedHashSet<String>();
+		Statement s = c.createStatement();
+		try {
+			ResultSet rs = s.executeQuery(TABLE_TYPES);
+			while (rs.next()) {
+				if ("MEMORY".equals(rs.getString(2))) {
+					memory.add(rs.getString(1));
+				}
+			}
+			rs.close();
+		} finally {
+			s.close();
+		}
+
+		final Map<String, Long> sizes = new HashMap<String, Long>();
+		long total = 0;
+		for (TableMetaData table : TableMetaData.readAll(c.getMetaData(), null)) {
+			if (!memory.contains(table.getName())) {
+				continue;
+			}
+			Long count = rows.get(table.getName());
+			Long expected = expectedRows.get(table.getName());
+			long n = Math.max(count == null ? 0 : count, expected == null ? 0 : expected);
+			long size = n * MemDatabaseMetrics.rowBytes(table);
+			sizes.put(table.getName(), size);
+			total += size;
+		}
+
+		List<String> largest = new ArrayList<String>(sizes.keySet());
+		Collections.sort(largest, new Comparator<String>() {
+			public int compare(final String a, final String b) {
+				return sizes.get(b).compareTo(sizes.get(a));
+			}
+		});
+
+		List<String> spilled = new ArrayList<String>();
+		long allowed = bytes - cacheBytes;
+		for (String table : largest) {
+			if (total <= allowed && !cached.contains(table)) {
+				continue;
+			}
+			s = c.createStatement();
+			try {
+				s.execute("SET TABLE \"" + table + "\" TYPE CACHED");
+			} finally {
+				s.close();
+			}
+			total -= sizes.get(table);
+			spilled.add(table);
+		}
+		if (!spilled.isEmpty()) {
+			LOG.info("Cached " + spilled + " to keep memory tables to ~" + (total / 1024) + " KB of "
+					+ (allowed / 1024) + " KB");
+		}
+		return spilled;
+	}
+
+	private static Map<String, Long> query(final Connection c, final String sql)
+			throws SQLException {
+		Map<String, Long> result = new HashMap<String, Long>();
+		Statement s = c.createStatement();
+		try {
+			ResultSet rs = s.executeQuery(sql);
+			while (rs.next()) {
+				result.put(rs.getString(1), rs.getLong(2));
+			}
+			rs.close();
+		} finally {
+			s.close();
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d KB heap, %d KB cache, cached %s, expected %s", bytes / 1024,
+				cacheBytes / 1024, cached, expectedRows);
+	}
+}
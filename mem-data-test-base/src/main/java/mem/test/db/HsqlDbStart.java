@@ -6,9 +6,13 @@ import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.hsqldb.Server;
 import org.springframework.jdbc.core.JdbcTemplate;
 
+/**
+ * Serves the "ar" database to other processes through
+ * {@link MemDataSourceFactory} and keeps running until the server stops.
+ * Callers in this JVM get the in-process datasource.
+ */
 public class HsqlDbStart {
 	private static final Log LOG = LogFactory.getLog(HsqlDbStart.class);
 	private static final String HSQL_THREAD_NAME = "HSQL_DB_THREAD";
@@ -23,19 +27,25 @@ public class HsqlDbStart {
 
 	public static void startHSQLDB() throws InterruptedException, IOException {
 		if (!isHSQLDBRunning()) {
+			LOG.info("Initing HSQL DB");
+			HSQL_DATASOURCE = MemDataSourceFactory.getDataSource("ar");
+			HSQL_TEMPLATE = MemTest.getARTemplate("ar");
+			// the database exists before the server opens it, so it is the
+			// one MemTest set up rather than a bare one
+			String url = MemDataSourceFactory.serve("ar");
 			HSQL_THREAD = new Thread(HSQL_THREAD_NAME) {
 				public void run() {
-					Server.main(new String[] { "-database.0", "mem:ar;sql.syntax_ora=true",
-							"-dbname.0", "ar" });
+					while (MemDataSourceFactory.isServing()) {
+						try {
+							Thread.sleep(1000);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
 				}
 			};
 			HSQL_THREAD.start();
-
-			LOG.info("Initing HSQL DB");
-			HSQL_DATASOURCE = MemTest.getARDataSource("ar");
-			HSQL_TEMPLATE = MemTest.getARTemplate("ar");
-			Thread.sleep(3000); // Give the DB time to startup
-			LOG.info("Ready to start app");
+			LOG.info("Ready to start app, other processes can connect to " + url);
 			
 			// need sql file here
 			loadHSQL("");
@@ -59,7 +69,13 @@ public class HsqlDbStart {
 		return HSQL_DATASOURCE;
 	}
 
+	/**
+	 * Apply the script to the running database, skipping it if it hasn't
+	 * changed since it was last applied. A blank name applies nothing. See
+	 * {@link SchemaLedger}, which like {@link ExecuteSQL} skips statements
+	 * that fail unless it is strict.
+	 */
 	public static void loadHSQL(String sqlFile) throws IOException {
-		ExecuteSQL.executeSQLFile(sqlFile, HSQL_TEMPLATE);
+		SchemaLedger.apply(HSQL_TEMPLATE, sqlFile);
 	}
 }
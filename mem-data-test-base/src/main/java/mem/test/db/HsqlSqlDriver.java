@@ -3,15 +3,22 @@
  */
 package mem.test.db;
 
+import java.io.InputStream;
+import java.io.Reader;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -26,6 +33,8 @@ public class HsqlSqlDriver extends org.hsqldb.jdbcDriver implements Driver {
 
 	private static final Map<String, String> oldToNewMap = new HashMap<String, String>();
 	private static final Log log = LogFactory.getLog(HsqlSqlDriver.class);
+	private static final StripedCounter mapHits = new StripedCounter();
+	private static final StripedCounter mapMisses = new StripedCounter();
 
 	static {
 		synchronized (oldToNewMap) {
@@ -62,16 +71,41 @@ public class HsqlSqlDriver extends org.hsqldb.jdbcDriver implements Driver {
 		Connection c = (Connection) Proxy.newProxyInstance(HsqlSqlDriver.class.getClassLoader(),
 				new Class[] { Connection.class },
 				new InvocationHandler() {
+					private String database;
 
 					public Object invoke(Object proxy, Method method, Object[] args)
 							throws Throwable {
-						Object invoke = method.invoke(connect, fixArgs(args));
+						Object[] fixed = fixArgs(args);
+						SequenceBlocks.Rewrite sequences = null;
+						if (method.getName().equals("prepareStatement")
+								&& SequenceBlocks.isEnabled()) {
+							sequences = SequenceBlocks.rewrite((String) fixed[0]);
+							if (sequences != null) {
+								fixed = fixed.clone();
+								fixed[0] = sequences.getSql();
+								if (database == null) {
+									database = SequenceBlocks.databaseKey(connect);
+								}
+							}
+						}
+						Object invoke = method.invoke(connect, fixed);
+						if (sequences != null) {
+							invoke = sequences.wrap((PreparedStatement) invoke, database);
+						}
 						if (method.getName().equals("createStatement")) {
 							Statement s = (Statement) Proxy.newProxyInstance(
 									HsqlSqlDriver.class.getClassLoader(),
 									new Class[] { Statement.class }, new ProxySql(invoke));
 							return s;
 						}
+						if (method.getName().equals("prepareStatement")
+								&& (WorkloadCapture.isCapturing() || StatementStats.isEnabled()
+										|| !ResultCache.getTables().isEmpty())) {
+							return Proxy.newProxyInstance(HsqlSqlDriver.class.getClassLoader(),
+									new Class[] { PreparedStatement.class },
+									new ProxyPreparedSql((PreparedStatement) invoke,
+											(String) args[0]));
+						}
 						return invoke;
 					}
 				});
@@ -93,11 +127,115 @@ public class HsqlSqlDriver extends org.hsqldb.jdbcDriver implements Driver {
 
 		public Object invoke(Object proxy, Method method,
 				Object[] args) throws Throwable {
-			return method.invoke(object, fixArgs(args));
+			boolean execute = args != null && args.length > 0 && args[0] instanceof String
+					&& method.getName().startsWith("execute");
+			// only time statements nobody above us (the wrapper) is timing
+			long timing = 0;
+			if (execute && !StatementStats.isTiming()) {
+				timing = StatementStats.begin((String) args[0]);
+			}
+			long start = execute && WorkloadCapture.isCapturing() ? System.nanoTime() : 0;
+			boolean failed = true;
+			try {
+				Object[] fixed = fixArgs(args);
+				StatementStats.translated(timing);
+				Object result = method.invoke(object, fixed);
+				failed = false;
+				return result;
+			} finally {
+				StatementStats.end(timing);
+				if (execute) {
+					ResultCache.written((String) args[0]);
+				}
+				if (start != 0) {
+					WorkloadCapture.record((String) args[0], null, start, System.nanoTime()
+							- start, failed);
+				}
+			}
 		}
 
 	}
 
+	/**
+	 * Tells the result cache about prepared writes, times executions nobody
+	 * above is timing and keeps track of the parameters set so executions
+	 * can be captured with them
+	 */
+	private static final class ProxyPreparedSql implements InvocationHandler {
+		private static final Object[] NO_PARAMETERS = new Object[0];
+
+		private final PreparedStatement statement;
+		private final String sql;
+		private Object[] parameters = NO_PARAMETERS;
+		private final List<Object[]> batch = new ArrayList<Object[]>();
+
+		public ProxyPreparedSql(PreparedStatement statement, String sql) {
+			this.statement = statement;
+			this.sql = sql;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			boolean noArgs = args == null || args.length == 0;
+			if (name.startsWith("set") && !noArgs && args.length >= 2
+					&& args[0] instanceof Integer) {
+				setParameter(((Integer) args[0]).intValue(),
+						name.equals("setNull") ? null : args[1]);
+			} else if (name.equals("clearParameters")) {
+				parameters = NO_PARAMETERS;
+			} else if (name.equals("addBatch") && noArgs) {
+				batch.add(parameters.clone());
+			} else if (name.equals("clearBatch")) {
+				batch.clear();
+			}
+
+			boolean execute = noArgs && name.startsWith("execute");
+			long timing = 0;
+			if (execute && !StatementStats.isTiming()) {
+				// translated when prepared, nothing left to time but the execution
+				timing = StatementStats.begin(sql);
+				StatementStats.translated(timing);
+			}
+			long start = execute ? System.nanoTime() : 0;
+			boolean failed = true;
+			try {
+				Object result = method.invoke(statement, args);
+				failed = false;
+				return result;
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			} finally {
+				StatementStats.end(timing);
+				if (execute) {
+					ResultCache.written(sql);
+				}
+				if (execute && WorkloadCapture.isCapturing()) {
+					long elapsed = System.nanoTime() - start;
+					if (name.equals("executeBatch")) {
+						// one execution per row, sharing the time
+						for (Object[] row : batch) {
+							WorkloadCapture.record(sql, row, start, elapsed / batch.size(), failed);
+						}
+					} else {
+						WorkloadCapture.record(sql, parameters.clone(), start, elapsed, failed);
+					}
+				}
+				if (name.equals("executeBatch")) {
+					batch.clear();
+				}
+			}
+		}
+
+		private void setParameter(int index, Object value) {
+			if (index > parameters.length) {
+				parameters = Arrays.copyOf(parameters, index);
+			}
+			// streams can't be read twice, they replay as null
+			parameters[index - 1] = value instanceof Reader || value instanceof InputStream ? null
+					: value;
+		}
+	}
+
 	private static Object[] fixArgs(Object[] args) {
 		boolean changed = false;
 		if (args != null && args.length == 1 && args[0].getClass() == String.class) {
@@ -105,8 +243,12 @@ public class HsqlSqlDriver extends org.hsqldb.jdbcDriver implements Driver {
 			if (oldToNewMap.containsKey(origSql)) {
 				args[0] = oldToNewMap.get(origSql);
 				changed = true;
-			} else if (log.isDebugEnabled()) {
-				log.debug("Didn't find a match for " + origSql);
+				mapHits.increment();
+			} else {
+				mapMisses.increment();
+				if (log.isDebugEnabled()) {
+					log.debug("Didn't find a match for " + origSql);
+				}
 			}
 		}
 
@@ -121,4 +263,18 @@ public class HsqlSqlDriver extends org.hsqldb.jdbcDriver implements Driver {
 		return oldToNewMap;
 	}
 
+	/**
+	 * @return how many statements were swapped for one from the map
+	 */
+	static long getMapHits() {
+		return mapHits.sum();
+	}
+
+	/**
+	 * @return how many statements were looked up and not in the map
+	 */
+	static long getMapMisses() {
+		return mapMisses.sum();
+	}
+
 }
@@ -0,0 +1,563 @@
+package mem.test.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds the statements that scan whole tables for want of an index and
+ * tries the index that would help. <br/><br/>
+ * Run it in the JVM that ran the workload, once the tests are done and
+ * while the database still has their rows: <br/><br/>
+ * <code>IndexAdvisor.advise(MemTest.getARDataSource("ar"),<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;IndexAdvisor.fromStatementStats(20), false)</code>
+ * <br/><br/>
+ * looks at the statements that took the most time in all against that
+ * {@link MemTest} database. {@link #fromWorkload(File, int)} takes them
+ * from a workload captured by {@link WorkloadCapture} instead. A fresh JVM
+ * has neither the statistics nor the rows, which is why there is no
+ * <code>main</code>. <br/><br/>
+ * Each statement gets an HSQL <code>EXPLAIN PLAN FOR</code>. A
+ * <code>FULL SCAN</code> of a table with at least {@value #MIN_ROWS} rows is
+ * flagged and an index proposed on the columns the plan compares against,
+ * equality ones first and then one range, including the columns joined on
+ * when the table is the inner side of a join. Conditions under an OR or
+ * inside functions can't use an index and get no proposal. HSQL keeps the
+ * rows in memory and never reads a table through an index alone, so there
+ * is no point in covering the selected columns too. <br/><br/>
+ * The index is created, the statement timed before and after, and the index
+ * dropped again unless asked to keep it or the plan still scans. Updates
+ * and deletes are timed by counting the rows their condition picks, so
+ * nothing is written. Captured statements run with the parameters of their slowest
+ * execution; those from {@link StatementStats}, which keeps no parameters,
+ * run with nulls, which still walks the same access path.
+ *
+ */
+public final class IndexAdvisor {
+
+	private static final Log LOG = LogFactory.getLog(IndexAdvisor.class);
+
+	/**
+	 * Smaller tables are cheap to scan
+	 */
+	private static final long MIN_ROWS = 1000;
+
+	private static final int MAX_RUNS = 20;
+
+	private static final long MAX_TIMING_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private static final String INDEX_PREFIX = "MEM_TEST_ADVISED_";
+
+	private static final Pattern RANGE_VARIABLE = Pattern.compile("(?m)^\\s*table=([\\w$#]+)\\s*$");
+
+	private static final Pattern COMPARISON = Pattern.compile("\\b(EQUAL|NOT_DISTINCT|GREATER"
+			+ "|GREATER_EQUAL|SMALLER|SMALLER_EQUAL) arg_left=\\[\\s*COLUMN: [\\w$#]+\\.([\\w$#]+)"
+			+ "\\.([\\w$#]+)\\s*\\] arg_right=\\[\\s*(?:COLUMN: [\\w$#]+\\.([\\w$#]+)\\.([\\w$#]+))?");
+
+	private static final Pattern DELETE = Pattern.compile(
+			"(?is)\\s*delete\\s+from\\s+(.+?)\\s+where\\s+(.*)");
+
+	private static final Pattern UPDATE = Pattern.compile(
+			"(?is)\\s*update\\s+(.+?)\\s+set\\s+(.*?)\\s+where\\s+(.*)");
+
+	private static final Pattern ADVISABLE = Pattern.compile("(?is)\\s*(select|with|update|delete)\\b.*");
+
+	private static final AtomicInteger indexes = new AtomicInteger();
+
+	/**
+	 *
+	 */
+	private IndexAdvisor() {
+	}
+
+	/**
+	 * @param limit
+	 *            how many statements
+	 * @return the queries, updates and deletes {@link StatementStats} saw
+	 *         take the most time in all, translated to HSQL
+	 */
+	public static List<Candidate> fromStatementStats(final int limit) {
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (StatementStats.Entry entry : StatementStats.getEntries()) {
+			if (candidates.size() >= limit) {
+				break;
+			}
+			if (ADVISABLE.matcher(entry.getSql()).matches()) {
+				candidates.add(new Candidate(TransformToHSQL.transformQuery(entry.getSql()), null,
+						entry.getExecution().getTotalNanos(), entry.getCalls()));
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @param log
+	 *            a workload captured by {@link WorkloadCapture}
+	 * @param limit
+	 *            how many statements
+	 * @return the queries, updates and deletes that took the most time in
+	 *         all, each with the parameters of its slowest execution
+	 * @throws IOException
+	 *             if there was a problem reading the log
+	 */
+	public static List<Candidate> fromWorkload(final File log, final int limit) throws IOException {
+		Map<String, Candidate> bySql = new HashMap<String, Candidate>();
+		Map<String, Long> slowest = new HashMap<String, Long>();
+		WorkloadLog.Reader reader = new WorkloadLog.Reader(log);
+		try {
+			for (WorkloadLog.Event event = reader.next(); event != null; event = reader.next()) {
+				if (event.isFailed() || !ADVISABLE.matcher(event.getSql()).matches()) {
+					continue;
+				}
+				Candidate c = bySql.get(event.getSql());
+				if (c == null) {
+					c = new Candidate(event.getSql(), event.getParameters(), 0, 0);
+					bySql.put(event.getSql(), c);
+					slowest.put(event.getSql(), event.getElapsedNanos());
+				} else if (event.getElapsedNanos() > slowest.get(event.getSql())) {
+					c = new Candidate(event.getSql(), event.getParameters(), c.totalNanos, c.calls);
+					bySql.put(event.getSql(), c);
+					slowest.put(event.getSql(), event.getElapsedNanos());
+				}
+				c.totalNanos += event.getElapsedNanos();
+				c.calls++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		List<Candidate> candidates = new ArrayList<Candidate>(bySql.values());
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			public int compare(final Candidate a, final Candidate b) {
+				return a.totalNanos < b.totalNanos ? 1 : (a.totalNanos == b.totalNanos ? 0 : -1);
+			}
+		});
+		return candidates.size() > limit ? candidates.subList(0, limit) : candidates;
+	}
+
+	/**
+	 * @param dataSource
+	 *            the database the statements ran against
+	 * @param candidates
+	 *            the statements to look at
+	 * @param create
+	 *            true to keep the indexes that change the plan
+	 * @return what was found and how much the indexes helped
+	 */
+	public static Result advise(final DataSource dataSource, final List<Candidate> candidates,
+			final boolean create) {
+		Result result = new Result();
+		Connection c = null;
+		try {
+			c = dataSource.getConnection();
+			for (Candidate candidate : candidates) {
+				try {
+					advise(c, candidate, create, result);
+				} catch (SQLException e) {
+					LOG.warn("Could not advise on " + candidate.sql, e);
+				}
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not advise on indexes", e);
+		} finally {
+			if (c != null) {
+				try {
+					c.close();
+				} catch (SQLException e) {
+					LOG.warn("Could not close the connection", e);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void advise(final Connection c, final Candidate candidate,
+			final boolean create, final Result result) throws SQLException {
+		Map<String, Long> rows = rowCounts(c);
+		for (Advice advice : fullScans(explain(c, candidate.sql), candidate.sql)) {
+			Long count = rows.get(advice.table);
+			advice.rows = count == null ? 0 : count;
+			if (advice.rows < MIN_ROWS) {
+				continue;
+			}
+			result.advice.add(advice);
+			if (advice.columns.isEmpty()) {
+				continue;
+			}
+
+			advice.beforeNanos = time(c, candidate);
+			advice.index = INDEX_PREFIX + indexes.incrementAndGet();
+			execute(c, "create index " + advice.index + " on " + advice.table + " ("
+					+ StringUtils.join(advice.columns, ", ") + ")");
+			advice.used = true;
+			for (Advice after : fullScans(explain(c, candidate.sql), candidate.sql)) {
+				if (after.table.equals(advice.table)) {
+					advice.used = false;
+				}
+			}
+			if (advice.used) {
+				advice.afterNanos = time(c, candidate);
+			}
+			if (create && advice.used) {
+				advice.created = true;
+				LOG.info("Created " + advice.index + " on " + advice.table + advice.columns);
+			} else {
+				execute(c, "drop index " + advice.index);
+			}
+		}
+	}
+
+	/**
+	 * @return the plan HSQL would run the statement with
+	 */
+	static String explain(final Connection c, final String sql) throws SQLException {
+		StringBuilder plan = new StringBuilder();
+		PreparedStatement ps = c.prepareStatement("EXPLAIN PLAN FOR " + sql);
+		try {
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				plan.append(rs.getString(1)).append('\n');
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return plan.toString();
+	}
+
+	/**
+	 * @return a piece of advice for each table the plan scans, with the
+	 *         columns to index if there are any
+	 */
+	static List<Advice> fullScans(final String plan, final String sql) {
+		List<Advice> scans = new ArrayList<Advice>();
+		Matcher m = RANGE_VARIABLE.matcher(plan);
+		List<Integer> starts = new ArrayList<Integer>();
+		List<String> tables = new ArrayList<String>();
+		while (m.find()) {
+			starts.add(m.start());
+			tables.add(m.group(1));
+		}
+		for (int i = 0; i < starts.size(); i++) {
+			int end = i + 1 < starts.size() ? starts.get(i + 1) : plan.length();
+			String block = plan.substring(starts.get(i), end);
+			if (!block.contains("access=FULL SCAN")) {
+				continue;
+			}
+			String table = tables.get(i);
+			Advice advice = new Advice(sql, table);
+			if (!block.contains("OR arg_left")) {
+				advice.columns.addAll(columns(block, table));
+			}
+			scans.add(advice);
+		}
+		return scans;
+	}
+
+	/**
+	 * @return the columns of the table compared in the plan, equality ones
+	 *         first and then the first one compared by range
+	 */
+	private static List<String> columns(final String block, final String table) {
+		Set<String> equal = new LinkedHashSet<String>();
+		Set<String> range = new LinkedHashSet<String>();
+		Matcher m = COMPARISON.matcher(block);
+		while (m.find()) {
+			boolean equality = m.group(1).equals("EQUAL") || m.group(1).equals("NOT_DISTINCT");
+			boolean left = table.equals(m.group(2));
+			boolean right = table.equals(m.group(4));
+			if (left && right) {
+				// comparing two of its own columns narrows nothing
+				continue;
+			}
+			if (left) {
+				(equality ? equal : range).add(m.group(3));
+			} else if (right && equality) {
+				equal.add(m.group(5));
+			}
+		}
+		List<String> columns = new ArrayList<String>(equal);
+		range.removeAll(equal);
+		if (!range.isEmpty()) {
+			columns.add(range.iterator().next());
+		}
+		return columns;
+	}
+
+	private static Map<String, Long> rowCounts(final Connection c) throws SQLException {
+		Map<String, Long> rows = new HashMap<String, Long>();
+		Statement s = c.createStatement();
+		try {
+			ResultSet rs = s.executeQuery("select TABLE_NAME, CARDINALITY from"
+					+ " INFORMATION_SCHEMA.SYSTEM_TABLESTATS where TABLE_SCHEMA = '"
+					+ TableMetaData.DEFAULT_SCHEMA + "'");
+			while (rs.next()) {
+				rows.put(rs.getString(1), rs.getLong(2));
+			}
+			rs.close();
+		} finally {
+			s.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * @return the median time of a run of the statement, or of the query
+	 *         finding the rows of an update or delete
+	 */
+	private static long time(final Connection c, final Candidate candidate) throws SQLException {
+		String sql = candidate.sql;
+		Object[] parameters = candidate.parameters;
+		Matcher m = DELETE.matcher(sql);
+		if (m.matches()) {
+			sql = "select count(*) from " + m.group(1) + " where " + m.group(2);
+		} else if ((m = UPDATE.matcher(sql)).matches()) {
+			sql = "select count(*) from " + m.group(1) + " where " + m.group(3);
+			int set = StringUtils.countMatches(m.group(2).replaceAll("'[^']*'", ""), "?");
+			if (parameters != null && parameters.length >= set) {
+				parameters = Arrays.copyOfRange(parameters, set, parameters.length);
+			}
+		}
+
+		long[] runs = new long[MAX_RUNS];
+		int n = 0;
+		PreparedStatement ps = c.prepareStatement(sql);
+		try {
+			bind(ps, parameters);
+			// the first run warms up and isn't counted
+			long deadline = System.nanoTime() + MAX_TIMING_NANOS;
+			for (int run = -1; run < MAX_RUNS && (run < 1 || System.nanoTime() < deadline); run++) {
+				long start = System.nanoTime();
+				ResultSet rs = ps.executeQuery();
+				while (rs.next()) {
+					continue;
+				}
+				rs.close();
+				long elapsed = System.nanoTime() - start;
+				if (run >= 0) {
+					runs[n++] = elapsed;
+				}
+			}
+		} finally {
+			ps.close();
+		}
+		Arrays.sort(runs, 0, n);
+		return runs[n / 2];
+	}
+
+	private static void bind(final PreparedStatement ps, final Object[] parameters)
+			throws SQLException {
+		ParameterMetaData meta = ps.getParameterMetaData();
+		for (int i = 1; i <= meta.getParameterCount(); i++) {
+			if (parameters != null && i <= parameters.length && parameters[i - 1] != null) {
+				ps.setObject(i, parameters[i - 1]);
+			} else {
+				int type = meta.getParameterType(i);
+				ps.setNull(i, type == Types.NULL ? Types.VARCHAR : type);
+			}
+		}
+	}
+
+	private static void execute(final Connection c, final String ddl) throws SQLException {
+		Statement s = c.createStatement();
+		try {
+			s.execute(ddl);
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * A statement to look at
+	 */
+	public static final class Candidate {
+		private final String sql;
+		private final Object[] parameters;
+		private long totalNanos;
+		private long calls;
+
+		/**
+		 * @param sql
+		 *            the statement in HSQL syntax
+		 * @param parameters
+		 *            values for its parameters, null to use nulls
+		 */
+		public Candidate(final String sql, final Object[] parameters) {
+			this(sql, parameters, 0, 0);
+		}
+
+		Candidate(final String sql, final Object[] parameters, final long totalNanos,
+				final long calls) {
+			this.sql = sql;
+			this.parameters = parameters;
+			this.totalNanos = totalNanos;
+			this.calls = calls;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/**
+		 * @return how long it took in all where it was found
+		 */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * @return how many times it ran where it was found
+		 */
+		public long getCalls() {
+			return calls;
+		}
+	}
+
+	/**
+	 * A full scan found and what indexing it did
+	 */
+	public static final class Advice {
+		private final String sql;
+		private final String table;
+		private final List<String> columns = new ArrayList<String>();
+		private long rows;
+		private String index;
+		private boolean used;
+		private boolean created;
+		private long beforeNanos;
+		private long afterNanos;
+
+		Advice(final String sql, final String table) {
+			this.sql = sql;
+			this.table = table;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/**
+		 * @return the table scanned
+		 */
+		public String getTable() {
+			return table;
+		}
+
+		/**
+		 * @return how many rows it has
+		 */
+		public long getRows() {
+			return rows;
+		}
+
+		/**
+		 * @return the columns to index, empty if no index would help
+		 */
+		public List<String> getColumns() {
+			return columns;
+		}
+
+		/**
+		 * @return the DDL of the proposed index, null if there is none
+		 */
+		public String getIndexDdl() {
+			return columns.isEmpty() ? null : "create index " + index + " on " + table + " ("
+					+ StringUtils.join(columns, ", ") + ")";
+		}
+
+		/**
+		 * @return true if the plan used the index instead of the scan
+		 */
+		public boolean isUsed() {
+			return used;
+		}
+
+		/**
+		 * @return true if the index was kept
+		 */
+		public boolean isCreated() {
+			return created;
+		}
+
+		/**
+		 * @return median time of the statement with the scan, 0 if not timed
+		 */
+		public long getBeforeNanos() {
+			return beforeNanos;
+		}
+
+		/**
+		 * @return median time of the statement with the index, 0 if not timed
+		 */
+		public long getAfterNanos() {
+			return afterNanos;
+		}
+
+		@Override
+		public String toString() {
+			String sqlText = sql.length() > 120 ? sql.substring(0, 120) + "..." : sql;
+			if (columns.isEmpty()) {
+				return String.format("FULL SCAN of %s (%d rows), no index would help: %s", table,
+						rows, sqlText);
+			}
+			if (!used) {
+				return String.format("FULL SCAN of %s (%d rows), index on %s not used: %s", table,
+						rows, columns, sqlText);
+			}
+			return String.format("FULL SCAN of %s (%d rows), index on %s %s: %d us -> %d us: %s",
+					table, rows, columns, created ? "created" : "proposed", beforeNanos / 1000L,
+					afterNanos / 1000L, sqlText);
+		}
+	}
+
+	/**
+	 * Everything found
+	 */
+	public static final class Result {
+		private final List<Advice> advice = new ArrayList<Advice>();
+
+		/**
+		 * @return the full scans of large tables, in the order found
+		 */
+		public List<Advice> getAdvice() {
+			return advice;
+		}
+
+		@Override
+		public String toString() {
+			if (advice.isEmpty()) {
+				return "No full scans of tables with " + MIN_ROWS + " rows or more";
+			}
+			StringBuilder b = new StringBuilder();
+			for (Advice a : advice) {
+				b.append(a).append('\n');
+			}
+			return b.toString();
+		}
+	}
+}
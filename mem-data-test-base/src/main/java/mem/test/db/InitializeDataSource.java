@@ -13,6 +13,9 @@ public final class InitializeDataSource {
 
 	private static final Object LOCK_OBJECT = new Object();
 
+	private static final String[] SCHEMA_SCRIPTS = { "createDartTables.sql",
+			"createDartFunctions.sql", "dual.sql" };
+
 	// private static final Log LOG =
 	// LogFactory.getLog(InitializeDataSource.class);
 
@@ -101,8 +104,8 @@ public final class InitializeDataSource {
 					template = new TestJdbcTemplateWrapper(template);
 				}
 
-				if (!isTablesCreated(template)) {
-					createTables(template);
+				// only runs what is new or changed since the last time
+				if (SchemaLedger.apply(template, SCHEMA_SCRIPTS) > 0) {
 					loadTables(template);
 				}
 
@@ -125,7 +128,8 @@ public final class InitializeDataSource {
 
 	public static JdbcTemplate createNewDatabase(final String schemaName) {
 		String url = "jdbc:hsqldb:mem:%s";
-		url = String.format(url, schemaName);
+		url = String.format(url, schemaName)
+				+ MemTest.getTransactionControl(schemaName).getUrlProperty();
 
 		BasicDataSource bds = new BasicDataSource();
 		bds.setDriverClassName("com.jpmc.cto.dart.test.db.HsqlSqlDriver");
@@ -133,7 +137,7 @@ public final class InitializeDataSource {
 		bds.setUsername("sa");
 		bds.setPassword("");
 
-		return new TestJdbcTemplateWrapper(new JdbcTemplate(bds));
+		return new TestJdbcTemplateWrapper(new JdbcTemplate(new InstrumentedDataSource(bds)));
 	}
 
 	/**
@@ -155,21 +159,8 @@ public final class InitializeDataSource {
 	}
 
 	/**
-	 * @param template
-	 *            template to check for table creation
-	 * @return true if tables are there
-	 */
-	private static boolean isTablesCreated(JdbcTemplate template) {
-		try {
-			template.queryForInt("select 1 from dual");
-			return true;
-		} catch (Exception e) {
-			return false;
-		}
-	}
-
-	/**
-	 * Will create tables.
+	 * Will create tables. Scripts that don't depend on each other run at the
+	 * same time, see {@link ParallelLoader}.
 	 * 
 	 * @param template
 	 *            template used to create tables
@@ -177,8 +168,6 @@ public final class InitializeDataSource {
 	 *             if there was a problem with setup
 	 */
 	public static void createTables(final JdbcTemplate template) throws Exception {
-		ExecuteSQL.executeSQLFile("createDartTables.sql", template);
-		ExecuteSQL.executeSQLFile("createDartFunctions.sql", template);
-		ExecuteSQL.executeSQLFile("dual.sql", template);
+		ParallelLoader.load(template, SCHEMA_SCRIPTS);
 	}
 }
\ No newline at end of file
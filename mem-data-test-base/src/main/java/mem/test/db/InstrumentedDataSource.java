@@ -0,0 +1,71 @@
+package mem.test.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * Times how long connections take to come out of the wrapped pool. Every
+ * wait goes into {@link #getConnectionWaits()} for the pool metrics and, when
+ * recording is on, to {@link StatementStats} for the statement running on
+ * the calling thread.
+ *
+ */
+public class InstrumentedDataSource extends DelegatingDataSource {
+
+	private final LatencyHistogram waits = new LatencyHistogram();
+	private volatile long lastConnectionNanos = System.nanoTime();
+
+	/**
+	 * @param target
+	 *            the pool to time
+	 */
+	public InstrumentedDataSource(final DataSource target) {
+		super(target);
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return super.getConnection();
+		} finally {
+			waited(start, System.nanoTime());
+		}
+	}
+
+	@Override
+	public Connection getConnection(final String username, final String password)
+			throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return super.getConnection(username, password);
+		} finally {
+			waited(start, System.nanoTime());
+		}
+	}
+
+	/**
+	 * @return how long callers have waited for connections
+	 */
+	public LatencyHistogram getConnectionWaits() {
+		return waits;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when a connection was last asked for,
+	 *         or when this was created if none has been
+	 */
+	public long getLastConnectionNanos() {
+		return lastConnectionNanos;
+	}
+
+	private void waited(final long start, final long end) {
+		lastConnectionNanos = end;
+		waits.record(end - start);
+		StatementStats.acquired(end - start);
+	}
+}
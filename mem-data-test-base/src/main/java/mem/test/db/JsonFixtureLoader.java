@@ -0,0 +1,315 @@
+package mem.test.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Loads JSON fixtures into tables and exports tables back to JSON. A fixture
+ * is one object with a member per table holding an array of row objects:
+ * <br/><br/>
+ * <code>{"REMEDIATION_TYPE": [{"ID": 1, "NAME": "Manual"}, ...], ...}</code>
+ * <br/><br/>
+ * Both directions stream through gson's {@link JsonReader} and
+ * {@link JsonWriter}, one row at a time, so neither holds the document in
+ * memory. Rows are inserted in batches on one connection. List parent tables
+ * before their children. <br/><br/>
+ * Binary and BLOB values are written as Base64 strings, with the JDK's
+ * {@link DatatypeConverter}, and decoded again when loaded into a binary
+ * column.
+ *
+ */
+public final class JsonFixtureLoader {
+
+	private static final Log LOG = LogFactory.getLog(JsonFixtureLoader.class);
+
+	private static final String UTF_8 = "UTF-8";
+
+	/**
+	 *
+	 */
+	private JsonFixtureLoader() {
+	}
+
+	/**
+	 * @param fileName
+	 *            the classpath name of the JSON fixture
+	 * @param template
+	 *            A JdbcTemplate to use
+	 * @return how many rows went into each table and how fast
+	 * @throws IOException
+	 *             if there was a problem reading the file
+	 */
+	public static LoadReport loadJsonFile(final String fileName, final JdbcTemplate template)
+			throws IOException {
+		InputStream in = JsonFixtureLoader.class.getClassLoader().getResourceAsStream(fileName);
+		if (in == null) {
+			throw new IOException("Could not find file with name " + fileName);
+		}
+		try {
+			return loadJson(new InputStreamReader(in, UTF_8), template.getDataSource());
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * @param json
+	 *            the fixture, left open
+	 * @param dataSource
+	 *            the database to load
+	 * @return how many rows went into each table and how fast
+	 * @throws IOException
+	 *             if there was a problem reading the fixture
+	 */
+	public static LoadReport loadJson(final Reader json, final DataSource dataSource)
+			throws IOException {
+		LoadReport report = new LoadReport();
+		JsonReader reader = new JsonReader(json);
+		Connection c = DataSourceUtils.getConnection(dataSource);
+		boolean autoCommit = true;
+		try {
+			autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false);
+			DatabaseMetaData meta = c.getMetaData();
+
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String table = reader.nextName();
+				long start = System.nanoTime();
+				long rows = loadTable(reader, c, dataSource, TableMetaData.read(meta, null, table));
+				report.add(table.toUpperCase(), rows, System.nanoTime() - start);
+				LOG.info("Loaded " + rows + " rows into " + table);
+			}
+			reader.endObject();
+		} catch (SQLException e) {
+			throw new IllegalStateException("Problem loading JSON fixture", e);
+		} finally {
+			try {
+				c.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				LOG.warn("Could not restore auto commit", e);
+			}
+			DataSourceUtils.releaseConnection(c, dataSource);
+		}
+		return report;
+	}
+
+	private static long loadTable(final JsonReader reader, final Connection c,
+			final DataSource dataSource, final TableMetaData table) throws IOException,
+			SQLException {
+		List<String> names = new ArrayList<String>();
+		List<Object> values = new ArrayList<Object>();
+		List<String> columns = null;
+		BatchInserter inserter = null;
+		long rows = 0;
+
+		try {
+			reader.beginArray();
+			while (reader.hasNext()) {
+				names.clear();
+				values.clear();
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String name = reader.nextName().toUpperCase();
+					names.add(name);
+					values.add(readValue(reader, table, name));
+				}
+				reader.endObject();
+
+				// rows normally share their members, only re-prepare when
+				// they change
+				if (!names.equals(columns)) {
+					if (inserter != null) {
+						rows += inserter.close();
+					}
+					columns = new ArrayList<String>(names);
+					inserter = new BatchInserter(c, dataSource, table.getInsertSql(columns),
+							BatchInserter.sqlTypes(table, columns), BatchInserter.DEFAULT_BATCH_SIZE);
+				}
+				inserter.addRow(values.toArray());
+			}
+			reader.endArray();
+		} finally {
+			if (inserter != null) {
+				rows += inserter.close();
+			}
+		}
+		return rows;
+	}
+
+	private static Object readValue(final JsonReader reader, final TableMetaData table,
+			final String column) throws IOException {
+		JsonToken token = reader.peek();
+		switch (token) {
+		case NULL:
+			reader.nextNull();
+			return null;
+		case BOOLEAN:
+			return Boolean.valueOf(reader.nextBoolean());
+		case NUMBER:
+			// keep the text so no precision is lost, HSQL converts it
+		case STRING:
+			String value = reader.nextString();
+			return token == JsonToken.STRING && isBinary(table.getColumn(column))
+					? DatatypeConverter.parseBase64Binary(value) : value;
+		default:
+			throw new IllegalStateException("Expected a simple value for a column of "
+					+ table.getName() + " but found " + token);
+		}
+	}
+
+	/**
+	 * Export every table in the default schema, parents first.
+	 *
+	 * @param out
+	 *            where to write the JSON, left open
+	 * @param dataSource
+	 *            the database to export
+	 * @throws IOException
+	 *             if there was a problem writing
+	 */
+	public static void exportJson(final Writer out, final DataSource dataSource)
+			throws IOException {
+		exportJson(out, dataSource, (String[]) null);
+	}
+
+	/**
+	 * Export tables in the form {@link #loadJson(Reader, DataSource)} reads.
+	 *
+	 * @param out
+	 *            where to write the JSON, left open
+	 * @param dataSource
+	 *            the database to export
+	 * @param tables
+	 *            the tables to export, in order. Null or empty exports every
+	 *            table in the default schema, parents first.
+	 * @throws IOException
+	 *             if there was a problem writing
+	 */
+	public static void exportJson(final Writer out, final DataSource dataSource,
+			final String... tables) throws IOException {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setSerializeNulls(true);
+		Connection c = DataSourceUtils.getConnection(dataSource);
+		try {
+			List<String> names;
+			if (tables == null || tables.length == 0) {
+				names = new ArrayList<String>();
+				List<TableMetaData> all = TableMetaData.readAll(c.getMetaData(), null);
+				for (TableMetaData t : TableMetaData.sortParentsFirst(all)) {
+					names.add(t.getName());
+				}
+			} else {
+				names = Arrays.asList(tables);
+			}
+
+			writer.beginObject();
+			for (String table : names) {
+				writer.name(table.toUpperCase());
+				exportTable(writer, c, table);
+			}
+			writer.endObject();
+			writer.flush();
+		} catch (SQLException e) {
+			throw new IllegalStateException("Problem exporting to JSON", e);
+		} finally {
+			DataSourceUtils.releaseConnection(c, dataSource);
+		}
+	}
+
+	private static void exportTable(final JsonWriter writer, final Connection c,
+			final String table) throws SQLException, IOException {
+		PreparedStatement ps = c.prepareStatement("select * from " + table);
+		try {
+			ps.setFetchSize(BatchInserter.DEFAULT_BATCH_SIZE);
+			ResultSet rs = ps.executeQuery();
+			ResultSetMetaData md = rs.getMetaData();
+			int count = md.getColumnCount();
+			String[] labels = new String[count];
+			for (int i = 0; i < count; i++) {
+				labels[i] = md.getColumnLabel(i + 1);
+			}
+
+			writer.beginArray();
+			while (rs.next()) {
+				writer.beginObject();
+				for (int i = 0; i < count; i++) {
+					writer.name(labels[i]);
+					writeValue(writer, rs.getObject(i + 1));
+				}
+				writer.endObject();
+			}
+			writer.endArray();
+			rs.close();
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static void writeValue(final JsonWriter writer, final Object value)
+			throws IOException, SQLException {
+		if (value == null) {
+			writer.nullValue();
+		} else if (value instanceof Number) {
+			writer.value((Number) value);
+		} else if (value instanceof Boolean) {
+			writer.value(((Boolean) value).booleanValue());
+		} else if (value instanceof Clob) {
+			Clob clob = (Clob) value;
+			writer.value(clob.getSubString(1, (int) clob.length()));
+		} else if (value instanceof byte[]) {
+			writer.value(DatatypeConverter.printBase64Binary((byte[]) value));
+		} else if (value instanceof Blob) {
+			Blob blob = (Blob) value;
+			writer.value(DatatypeConverter.printBase64Binary(blob.getBytes(1,
+					(int) blob.length())));
+		} else {
+			// timestamps come out as yyyy-mm-dd hh:mm:ss.fffffffff which
+			// loads back as is
+			writer.value(value.toString());
+		}
+	}
+
+	private static boolean isBinary(final TableMetaData.Column column) {
+		if (column == null) {
+			return false;
+		}
+		switch (column.getSqlType()) {
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			return true;
+		default:
+			return false;
+		}
+	}
+}
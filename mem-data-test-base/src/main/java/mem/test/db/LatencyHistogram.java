@@ -0,0 +1,126 @@
+package mem.test.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with HDR style log-linear buckets: every power
+ * of two is split into {@value #SUB_BUCKETS} equal buckets, so any recorded
+ * value is known to within about 6%. Recording is a couple of atomic adds.
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            the latency to record, negative values count as 0
+	 */
+	public void record(final long nanos) {
+		long value = nanos < 0 ? 0 : nanos;
+		buckets.incrementAndGet(bucket(value));
+		count.increment();
+		total.add(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * @return how many values were recorded
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the sum of the recorded values
+	 */
+	public long getTotalNanos() {
+		return total.sum();
+	}
+
+	/**
+	 * @return the largest recorded value
+	 */
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the recorded values, 0 if there are none
+	 */
+	public long getMeanNanos() {
+		long c = getCount();
+		return c == 0 ? 0 : getTotalNanos() / c;
+	}
+
+	/**
+	 * @param percentile
+	 *            0 to 100
+	 * @return the upper bound of the bucket holding the percentile, 0 if
+	 *         nothing was recorded
+	 */
+	public long getPercentileNanos(final double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long c = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			c += snapshot[i];
+		}
+		if (c == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(c * Math.min(percentile, 100) / 100d);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(upperBound(i), getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * Forget everything recorded
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	static int bucket(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(final int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (sub + 1) * width - 1;
+	}
+}
@@ -0,0 +1,532 @@
+package mem.test.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * Creates the tables and views of a schema the first time SQL mentions
+ * them, rather than all up front, so a test touching two tables doesn't wait
+ * for the whole schema. Used by {@link MemTest} when
+ * {@link MemTest#LAZY_SCHEMA_PROPERTY} is set. <br/><br/>
+ * The scripts are split once per JVM into the statements belonging to each
+ * table or view: its create, then the alters, indexes, comments and inserts
+ * naming it, in script order. Anything else, sequences and functions, is
+ * run by {@link #initialize()}. <br/><br/>
+ * Connections from here look at the SQL of every statement prepared or
+ * executed, and at the table asked about in metadata calls, though not at
+ * metadata calls asking about every table. Before a statement mentioning a
+ * table that isn't there yet runs, the table's statements run, after the
+ * statements of any table they mention, e.g. the parent of a foreign key.
+ * Each statement runs exactly once per database. Statements that fail are
+ * logged and passed over, as {@link ExecuteSQL} does. <br/><br/>
+ * The statements run one request at a time on a thread of their own, on a
+ * connection of their own from the target, and are committed there, so the
+ * caller's transaction is left alone. HSQL makes DDL wait for transactions
+ * holding locks it needs, and in MVCC for every open transaction, so a
+ * connection in a transaction only waits
+ * {@value #TRANSACTION_WAIT_MILLIS} ms for its tables before failing.
+ * Create the tables a transaction needs before it starts, with
+ * {@link #materialize(String...)} or {@link MemTest#materializeTables}.
+ *
+ */
+public class LazySchemaDataSource extends DelegatingDataSource {
+
+	private static final Log LOG = LogFactory.getLog(LazySchemaDataSource.class);
+
+	private static final Pattern OWNER = Pattern.compile("^\\s*(?:alter\\s+table"
+			+ "|create\\s+(?:unique\\s+)?index\\s+[\\w.\"$#]+\\s+on"
+			+ "|comment\\s+on\\s+table|grant\\s+.+?\\s+on)\\s+([\\w.\"$#]+)",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private static final Pattern COLUMN_OWNER = Pattern.compile(
+			"^\\s*comment\\s+on\\s+column\\s+([\\w.\"$#]+)\\.[\\w\"$#]+", Pattern.CASE_INSENSITIVE);
+
+	private static final Set<String> TABLE_METADATA = new HashSet<String>(Arrays.asList(
+			"getTables", "getColumns", "getTablePrivileges", "getColumnPrivileges",
+			"getPrimaryKeys", "getImportedKeys", "getExportedKeys", "getIndexInfo",
+			"getBestRowIdentifier", "getVersionColumns"));
+
+	private static final Map<List<String>, Index> INDEXES = new HashMap<List<String>, Index>();
+
+	/**
+	 * How long a connection in a transaction waits for tables to be created
+	 */
+	public static final long TRANSACTION_WAIT_MILLIS = 10000L;
+
+	private static final ThreadFactory THREADS = new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(r, "LazySchema creator");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	private final Index index;
+	// objects with statements still to run, and how many have run
+	private final Map<String, Integer> pending = new ConcurrentHashMap<String, Integer>();
+	// only touched on the creator thread
+	private final Set<String> creating = new HashSet<String>();
+	private final ThreadPoolExecutor creator = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), THREADS);
+
+	/**
+	 * @param target
+	 *            the database
+	 * @param fileNames
+	 *            the classpath names of the scripts building its schema
+	 * @throws IOException
+	 *             if there was a problem reading a script
+	 */
+	public LazySchemaDataSource(final DataSource target, final String... fileNames)
+			throws IOException {
+		super(target);
+		this.index = index(fileNames);
+		for (String name : index.objects.keySet()) {
+			pending.put(name, Integer.valueOf(0));
+		}
+		creator.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Run the statements that don't belong to a table or view, creating any
+	 * tables they mention.
+	 */
+	public void initialize() {
+		try {
+			await(creator.submit(new Callable<Object>() {
+				public Object call() throws SQLException {
+					Connection c = getTargetDataSource().getConnection();
+					try {
+						for (LazyStatement statement : index.globals) {
+							for (String name : statement.mentions) {
+								materialize(c, name);
+							}
+							execute(c, statement.sql, false);
+						}
+						commit(c);
+					} finally {
+						close(c);
+					}
+					return null;
+				}
+			}), null, "the schema");
+		} catch (SQLException e) {
+			throw new IllegalStateException("Problem initializing the schema", e);
+		}
+	}
+
+	/**
+	 * Create tables or views now, e.g. before something reads them without
+	 * SQL going through here
+	 *
+	 * @param names
+	 *            the names, any case
+	 */
+	public void materialize(final String... names) {
+		try {
+			Set<String> wanted = new LinkedHashSet<String>();
+			for (String name : names) {
+				wanted.add(name.toUpperCase());
+			}
+			ensure(null, wanted);
+		} catch (SQLException e) {
+			throw new IllegalStateException("Problem creating " + Arrays.toString(names), e);
+		}
+	}
+
+	/**
+	 * Create everything not yet created
+	 */
+	public void materializeAll() {
+		materialize(pending.keySet().toArray(new String[0]));
+	}
+
+	/**
+	 * @return the tables and views not created yet
+	 */
+	public Set<String> getPending() {
+		return Collections.unmodifiableSet(new HashSet<String>(pending.keySet()));
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return wrap(super.getConnection());
+	}
+
+	@Override
+	public Connection getConnection(final String username, final String password)
+			throws SQLException {
+		return wrap(super.getConnection(username, password));
+	}
+
+	private Connection wrap(final Connection c) {
+		if (pending.isEmpty()) {
+			return c;
+		}
+		return (Connection) Proxy.newProxyInstance(LazySchemaDataSource.class.getClassLoader(),
+				new Class[] { Connection.class }, new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method method, final Object[] args)
+							throws Throwable {
+						String name = method.getName();
+						if (args != null && args.length > 0 && args[0] instanceof String
+								&& (name.startsWith("prepare") || name.equals("nativeSQL"))) {
+							ensure(c, (String) args[0]);
+						}
+						Object result = call(c, method, args);
+						if (name.equals("createStatement")) {
+							return proxy(Statement.class, c, result);
+						}
+						if (name.equals("getMetaData")) {
+							return proxy(DatabaseMetaData.class, c, result);
+						}
+						return result;
+					}
+				});
+	}
+
+	/**
+	 * Statements ensure what their SQL mentions, metadata what it asks about
+	 */
+	private Object proxy(final Class<?> type, final Connection c, final Object target) {
+		return Proxy.newProxyInstance(LazySchemaDataSource.class.getClassLoader(),
+				new Class[] { type }, new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method method, final Object[] args)
+							throws Throwable {
+						String name = method.getName();
+						if (type == Statement.class && args != null && args.length > 0
+								&& args[0] instanceof String
+								&& (name.startsWith("execute") || name.equals("addBatch"))) {
+							ensure(c, (String) args[0]);
+						} else if (type == DatabaseMetaData.class && TABLE_METADATA.contains(name)) {
+							ensurePattern(c, (String) args[2], !name.equals("getTables")
+									&& !name.equals("getColumns") && !name.equals("getTablePrivileges"));
+						} else if (type == DatabaseMetaData.class && name.equals("getCrossReference")) {
+							ensurePattern(c, (String) args[2], true);
+							ensurePattern(c, (String) args[5], true);
+						}
+						return call(target, method, args);
+					}
+				});
+	}
+
+	private static Object call(final Object target, final Method method, final Object[] args)
+			throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	/**
+	 * Create what the SQL mentions that isn't there yet
+	 */
+	private void ensure(final Connection c, final String sql) throws SQLException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Set<String> mentioned = new LinkedHashSet<String>();
+		Matcher word = ParallelLoader.WORD.matcher(sql);
+		while (word.find()) {
+			String name = word.group().toUpperCase();
+			if (pending.containsKey(name)) {
+				mentioned.add(name);
+			}
+		}
+		ensure(c, mentioned);
+	}
+
+	/**
+	 * @param exact
+	 *            false if the name is a LIKE pattern
+	 */
+	private void ensurePattern(final Connection c, final String name, final boolean exact)
+			throws SQLException {
+		// asking about every table, e.g. to list them, shouldn't create them
+		if (pending.isEmpty() || name == null || (!exact && name.equals("%"))) {
+			return;
+		}
+		if (exact) {
+			ensure(c, Collections.singleton(name.toUpperCase()));
+			return;
+		}
+		Pattern like = Pattern.compile(name.replace("%", ".*").replace("_", "."),
+				Pattern.CASE_INSENSITIVE);
+		Set<String> matching = new LinkedHashSet<String>();
+		for (String pendingName : pending.keySet()) {
+			if (like.matcher(pendingName).matches()) {
+				matching.add(pendingName);
+			}
+		}
+		ensure(c, matching);
+	}
+
+	/**
+	 * Have the creator thread create the objects and wait for it
+	 *
+	 * @param c
+	 *            the connection about to use them, null if none
+	 */
+	private void ensure(final Connection c, final Set<String> names) throws SQLException {
+		final Set<String> wanted = new LinkedHashSet<String>();
+		for (String name : names) {
+			if (pending.containsKey(name)) {
+				wanted.add(name);
+			}
+		}
+		if (wanted.isEmpty()) {
+			return;
+		}
+		await(creator.submit(new Callable<Object>() {
+			public Object call() throws SQLException {
+				Connection own = getTargetDataSource().getConnection();
+				try {
+					for (String name : wanted) {
+						materialize(own, name);
+					}
+					commit(own);
+				} finally {
+					close(own);
+				}
+				return null;
+			}
+		}), c, wanted.toString());
+	}
+
+	/**
+	 * Wait for the creator, only so long if the connection waiting is in a
+	 * transaction the DDL may be waiting for
+	 */
+	private static void await(final Future<?> created, final Connection c, final String what)
+			throws SQLException {
+		try {
+			if (c != null && !c.getAutoCommit()) {
+				created.get(TRANSACTION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} else {
+				created.get();
+			}
+		} catch (TimeoutException e) {
+			throw new SQLException("Gave up after " + TRANSACTION_WAIT_MILLIS + " ms creating "
+					+ what + ", probably waiting for this connection's transaction to end."
+					+ " Create them before the transaction starts.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted creating " + what);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new IllegalStateException("Problem creating " + what, e.getCause());
+		}
+	}
+
+	/**
+	 * Run the statements of the object not yet run, and before each those of
+	 * anything it mentions. Objects being created further up the stack are
+	 * left to finish there. Only called on the creator thread.
+	 *
+	 * @return true if anything ran
+	 */
+	private boolean materialize(final Connection c, final String name) throws SQLException {
+		Integer done = pending.get(name);
+		if (done == null || !creating.add(name)) {
+			return false;
+		}
+		long start = System.nanoTime();
+		try {
+			List<LazyStatement> statements = index.objects.get(name);
+			for (int i = done.intValue(); i < statements.size(); i++) {
+				LazyStatement statement = statements.get(i);
+				for (String mentioned : statement.mentions) {
+					materialize(c, mentioned);
+				}
+				execute(c, statement.sql, i == 0);
+				pending.put(name, Integer.valueOf(i + 1));
+			}
+			pending.remove(name);
+		} finally {
+			creating.remove(name);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Created " + name + " in " + (System.nanoTime() - start) / 1000L + " us");
+		}
+		return true;
+	}
+
+	private static void execute(final Connection c, final String sql, final boolean create) {
+		Statement s = null;
+		try {
+			s = c.createStatement();
+			s.execute(sql);
+		} catch (SQLException e) {
+			if (create) {
+				LOG.warn("Could not run " + sql, e);
+			} else {
+				LOG.debug("Could not run " + sql + ": " + e.getMessage());
+			}
+		} finally {
+			if (s != null) {
+				try {
+					s.close();
+				} catch (SQLException e) {
+					LOG.debug("Could not close statement", e);
+				}
+			}
+		}
+	}
+
+	private static void commit(final Connection c) throws SQLException {
+		if (!c.getAutoCommit()) {
+			c.commit();
+		}
+	}
+
+	private static void close(final Connection c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (SQLException e) {
+				LOG.warn("Could not close connection", e);
+			}
+		}
+	}
+
+	private static Index index(final String... fileNames) throws IOException {
+		List<String> key = Arrays.asList(fileNames.clone());
+		synchronized (INDEXES) {
+			Index index = INDEXES.get(key);
+			if (index == null) {
+				index = new Index(fileNames);
+				INDEXES.put(key, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * A statement and the tables and views it mentions, other than its own
+	 */
+	private static final class LazyStatement {
+		private final String sql;
+		private final Set<String> mentions = new LinkedHashSet<String>();
+
+		LazyStatement(final String sql) {
+			this.sql = sql;
+		}
+	}
+
+	/**
+	 * The statements of each table and view and the ones belonging to none
+	 */
+	private static final class Index {
+		private final Map<String, List<LazyStatement>> objects = new HashMap<String, List<LazyStatement>>();
+		private final List<LazyStatement> globals = new ArrayList<LazyStatement>();
+
+		Index(final String... fileNames) throws IOException {
+			long start = System.nanoTime();
+			List<String> owners = new ArrayList<String>();
+			List<LazyStatement> all = new ArrayList<LazyStatement>();
+			for (String fileName : fileNames) {
+				for (String sql : ExecuteSQL.statements(SqlPreTranslator.translate(fileName,
+						read(fileName)))) {
+					LazyStatement statement = new LazyStatement(sql);
+					String owner = owner(sql);
+					all.add(statement);
+					owners.add(owner);
+					if (owner != null && !objects.containsKey(owner)) {
+						objects.put(owner, new ArrayList<LazyStatement>());
+					}
+				}
+			}
+			for (int i = 0; i < all.size(); i++) {
+				LazyStatement statement = all.get(i);
+				String owner = owners.get(i);
+				Matcher word = ParallelLoader.WORD.matcher(statement.sql);
+				while (word.find()) {
+					String name = word.group().toUpperCase();
+					if (objects.containsKey(name) && !name.equals(owner)) {
+						statement.mentions.add(name);
+					}
+				}
+				(owner == null ? globals : objects.get(owner)).add(statement);
+			}
+			LOG.info("Indexed " + objects.size() + " tables and views and " + globals.size()
+					+ " other statements of " + Arrays.toString(fileNames) + " in "
+					+ (System.nanoTime() - start) / 1000000L + " ms");
+		}
+
+		/**
+		 * @return the table or view the statement creates or belongs to, null
+		 *         if none
+		 */
+		private String owner(final String sql) {
+			Matcher create = ParallelLoader.CREATE.matcher(sql);
+			if (create.find()) {
+				String kind = create.group(1).toLowerCase();
+				return kind.equals("table") || kind.equals("view") ? ParallelLoader.unquote(create
+						.group(2)) : null;
+			}
+			Matcher m = ParallelLoader.WRITE.matcher(sql);
+			if (!m.find()) {
+				m = OWNER.matcher(sql);
+				if (!m.find()) {
+					m = COLUMN_OWNER.matcher(sql);
+					if (!m.find()) {
+						return null;
+					}
+				}
+			}
+			String name = ParallelLoader.unquote(m.group(1));
+			// only statements after the create belong to it
+			return objects.containsKey(name) ? name : null;
+		}
+
+		private static String read(final String fileName) throws IOException {
+			InputStream in = LazySchemaDataSource.class.getClassLoader().getResourceAsStream(
+					fileName);
+			if (in == null) {
+				throw new IOException("Could not find file with name " + fileName);
+			}
+			try {
+				return IOUtils.toString(in);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package mem.test.db;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rows written per table and how long it took. Returned by the bulk loaders
+ * so that load tests can see their rows/sec.
+ *
+ */
+public class LoadReport {
+
+	private final Map<String, long[]> tables = new LinkedHashMap<String, long[]>();
+	private long rows;
+	private long nanos;
+
+	/**
+	 * Record rows written to a table. Adds to anything already recorded for
+	 * the table.
+	 *
+	 * @param table
+	 *            the table written to
+	 * @param rowCount
+	 *            the number of rows written
+	 * @param elapsedNanos
+	 *            how long writing them took
+	 */
+	public synchronized void add(final String table, final long rowCount, final long elapsedNanos) {
+		long[] entry = tables.get(table);
+		if (entry == null) {
+			entry = new long[2];
+			tables.put(table, entry);
+		}
+		entry[0] += rowCount;
+		entry[1] += elapsedNanos;
+		rows += rowCount;
+		nanos += elapsedNanos;
+	}
+
+	/**
+	 * Fold another report into this one
+	 *
+	 * @param other
+	 *            the report to add
+	 */
+	public synchronized void addAll(final LoadReport other) {
+		for (Map.Entry<String, long[]> e : other.snapshot().entrySet()) {
+			add(e.getKey(), e.getValue()[0], e.getValue()[1]);
+		}
+	}
+
+	/**
+	 * @return total rows written
+	 */
+	public synchronized long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return total rows written to the table, 0 if it was not written to
+	 */
+	public synchronized long getRows(final String table) {
+		long[] entry = tables.get(table);
+		return entry == null ? 0 : entry[0];
+	}
+
+	/**
+	 * @return total time spent writing, in milliseconds
+	 */
+	public synchronized long getElapsedMillis() {
+		return nanos / 1000000L;
+	}
+
+	/**
+	 * @return rows per second over everything recorded
+	 */
+	public synchronized double getRowsPerSecond() {
+		return rowsPerSecond(rows, nanos);
+	}
+
+	/**
+	 * @return rows per second for the table
+	 */
+	public synchronized double getRowsPerSecond(final String table) {
+		long[] entry = tables.get(table);
+		return entry == null ? 0 : rowsPerSecond(entry[0], entry[1]);
+	}
+
+	/**
+	 * @return the tables written to, in the order they were first recorded
+	 */
+	public synchronized Iterable<String> getTables() {
+		return Collections.unmodifiableSet(new LinkedHashMap<String, long[]>(tables).keySet());
+	}
+
+	private synchronized Map<String, long[]> snapshot() {
+		Map<String, long[]> copy = new LinkedHashMap<String, long[]>();
+		for (Map.Entry<String, long[]> e : tables.entrySet()) {
+			copy.put(e.getKey(), e.getValue().clone());
+		}
+		return copy;
+	}
+
+	private static double rowsPerSecond(final long rowCount, final long elapsedNanos) {
+		if (elapsedNanos <= 0) {
+			return 0;
+		}
+		return rowCount * 1000000000d / elapsedNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder b = new StringBuilder();
+		for (Map.Entry<String, long[]> e : tables.entrySet()) {
+			b.append(String.format("%s: %d rows in %d ms (%.0f rows/sec)%n", e.getKey(),
+					e.getValue()[0], e.getValue()[1] / 1000000L,
+					rowsPerSecond(e.getValue()[0], e.getValue()[1])));
+		}
+		b.append(String.format("total: %d rows in %d ms (%.0f rows/sec)", rows,
+				nanos / 1000000L, getRowsPerSecond()));
+		return b.toString();
+	}
+}
@@ -0,0 +1,60 @@
+package mem.test.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Hands out the length prefixed blocks of a file as slices of a memory
+ * mapped window over it, moving the window along as the blocks are read.
+ * Used for the files {@link BinaryTableDump} and {@link WorkloadCapture}
+ * write.
+ *
+ */
+final class MappedBlockReader {
+
+	private static final int MAP_WINDOW = 64 << 20;
+
+	private final FileChannel channel;
+	private final long size;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position;
+
+	MappedBlockReader(final FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.size = channel.size();
+	}
+
+	boolean hasNext() {
+		return position < size;
+	}
+
+	/**
+	 * @return the next length prefixed block
+	 */
+	ByteBuffer next() throws IOException {
+		int length = next(4).getInt();
+		return next(length);
+	}
+
+	/**
+	 * @return the next length bytes of the file
+	 */
+	ByteBuffer next(final int length) throws IOException {
+		if (position + length > size) {
+			throw new IOException("File is truncated");
+		}
+		if (window == null || position + length > windowStart + window.capacity()) {
+			windowStart = position;
+			long mapSize = Math.min(Math.max(MAP_WINDOW, length), size - position);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, mapSize);
+		}
+		ByteBuffer slice = window.duplicate();
+		slice.position((int) (position - windowStart));
+		slice.limit(slice.position() + length);
+		position += length;
+		return slice.slice();
+	}
+}
@@ -0,0 +1,245 @@
+package mem.test.db;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hsqldb.Server;
+import org.hsqldb.server.ServerConstants;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * One place to get a {@link MemTest} database from, whether the caller is
+ * in this JVM or another process. <br/><br/>
+ * {@link #serve(String, int)} hands a database out over the network with an
+ * HSQL {@link Server} on the database {@link MemTest} created, so other
+ * processes reach the same data at {@link #getNetworkUrl(String)}. Callers
+ * in this JVM asking {@link #getDataSource(String)} for that url, or for the
+ * database by name, get the in-process datasource instead of a loopback
+ * connection that serializes every call over TCP. Any other
+ * <code>hsql://</code> url gets a pool of network connections. <br/><br/>
+ * A served database is acquired from {@link MemTest} so it isn't evicted
+ * while other processes may be using it. Serving another database restarts
+ * the server, dropping its network connections; in-process ones carry on.
+ *
+ */
+public final class MemDataSourceFactory {
+
+	private static final Log LOG = LogFactory.getLog(MemDataSourceFactory.class);
+
+	/**
+	 * HSQL's own port
+	 */
+	public static final int DEFAULT_PORT = ServerConstants.SC_DEFAULT_HSQL_SERVER_PORT;
+
+	private static final Pattern NETWORK_URL = Pattern.compile(
+			"jdbc:hsqldb:hsql://([^:/]+)(?::(\\d+))?/([^;]+)(;.*)?");
+
+	private static Server server;
+	private static int serverPort;
+	private static final Map<String, String> served = new LinkedHashMap<String, String>();
+	private static final Map<String, BasicDataSource> networkPools = new HashMap<String, BasicDataSource>();
+
+	/**
+	 *
+	 */
+	private MemDataSourceFactory() {
+	}
+
+	/**
+	 * @param nameOrUrl
+	 *            the name of a {@link MemTest} database or an HSQL url
+	 * @return the in-process datasource for a name or for the url of a
+	 *         database served from this JVM, otherwise a pool of connections
+	 *         to the url
+	 */
+	public static DataSource getDataSource(final String nameOrUrl) throws IOException {
+		if (!nameOrUrl.startsWith("jdbc:")) {
+			return MemTest.getARDataSource(nameOrUrl);
+		}
+		synchronized (MemDataSourceFactory.class) {
+			String local = localName(nameOrUrl);
+			if (local != null) {
+				return MemTest.getARDataSource(local);
+			}
+			BasicDataSource pool = networkPools.get(nameOrUrl);
+			if (pool == null) {
+				pool = new BasicDataSource();
+				pool.setDriverClassName("org.hsqldb.jdbcDriver");
+				pool.setUrl(nameOrUrl);
+				pool.setUsername("sa");
+				pool.setPassword("");
+				networkPools.put(nameOrUrl, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Serve a database on {@link #DEFAULT_PORT}
+	 *
+	 * @param name
+	 *            the name of the {@link MemTest} database
+	 * @return the url other processes connect to
+	 */
+	public static String serve(final String name) throws IOException {
+		return serve(name, DEFAULT_PORT);
+	}
+
+	/**
+	 * Serve a database over the network, creating it if need be
+	 *
+	 * @param name
+	 *            the name of the {@link MemTest} database
+	 * @param port
+	 *            the port to listen on, the same for every database served
+	 * @return the url other processes connect to
+	 */
+	public static synchronized String serve(final String name, final int port)
+			throws IOException {
+		if (server != null && port != serverPort) {
+			throw new IllegalStateException("Already serving on port " + serverPort + ", not "
+					+ port);
+		}
+		if (!served.containsKey(name)) {
+			DataSource dataSource = MemTest.acquireARDataSource(name);
+			served.put(name, databasePath(dataSource));
+			restart(port);
+		}
+		return getNetworkUrl(name);
+	}
+
+	/**
+	 * Stop serving every database. They stay in this JVM.
+	 */
+	public static synchronized void stop() {
+		if (server == null) {
+			return;
+		}
+		server.stop();
+		server = null;
+		for (String name : served.keySet()) {
+			MemTest.releaseARDataSource(name);
+		}
+		served.clear();
+		LOG.info("Stopped the HSQL server on port " + serverPort);
+	}
+
+	/**
+	 * @param name
+	 *            a database being served
+	 * @return the url other processes connect to
+	 */
+	public static synchronized String getNetworkUrl(final String name) {
+		if (!served.containsKey(name)) {
+			throw new IllegalStateException(name + " is not being served");
+		}
+		return "jdbc:hsqldb:hsql://localhost:" + serverPort + "/" + name;
+	}
+
+	/**
+	 * @return the names of the databases being served
+	 */
+	public static synchronized List<String> getServedNames() {
+		return new ArrayList<String>(served.keySet());
+	}
+
+	/**
+	 * @return true if the server is up
+	 */
+	public static synchronized boolean isServing() {
+		return server != null && server.getState() == ServerConstants.SERVER_STATE_ONLINE;
+	}
+
+	/**
+	 * Close the network pools handed out
+	 */
+	public static synchronized void closeNetworkPools() {
+		for (BasicDataSource pool : networkPools.values()) {
+			try {
+				pool.close();
+			} catch (SQLException e) {
+				LOG.warn("Could not close the pool for " + pool.getUrl(), e);
+			}
+		}
+		networkPools.clear();
+	}
+
+	private static void restart(final int port) {
+		if (server != null) {
+			server.stop();
+		}
+		Server s = new Server();
+		s.setLogWriter(null);
+		s.setErrWriter(null);
+		s.setSilent(true);
+		s.setNoSystemExit(true);
+		s.setPort(port);
+		int i = 0;
+		for (Map.Entry<String, String> database : served.entrySet()) {
+			s.setDatabaseName(i, database.getKey());
+			s.setDatabasePath(i, database.getValue());
+			i++;
+		}
+		s.start();
+		if (s.getState() != ServerConstants.SERVER_STATE_ONLINE) {
+			throw new IllegalStateException("HSQL server didn't start on port " + port,
+					s.getServerError());
+		}
+		server = s;
+		serverPort = port;
+		LOG.info("Serving " + served.keySet() + " on port " + port);
+	}
+
+	/**
+	 * @return the name of the served database the url points at if it is
+	 *         this JVM's server, otherwise null
+	 */
+	private static String localName(final String url) {
+		Matcher m = NETWORK_URL.matcher(url);
+		if (server == null || !m.matches() || !served.containsKey(m.group(3))) {
+			return null;
+		}
+		int port = m.group(2) == null ? DEFAULT_PORT : Integer.parseInt(m.group(2));
+		return port == serverPort && isLocal(m.group(1)) ? m.group(3) : null;
+	}
+
+	private static boolean isLocal(final String host) {
+		try {
+			InetAddress address = InetAddress.getByName(host);
+			return address.isLoopbackAddress() || address.equals(InetAddress.getLocalHost());
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the HSQL path of the database behind a {@link MemTest}
+	 *         datasource, e.g. <code>mem:ar</code>
+	 */
+	private static String databasePath(final DataSource dataSource) {
+		DataSource target = dataSource;
+		while (target instanceof DelegatingDataSource) {
+			target = ((DelegatingDataSource) target).getTargetDataSource();
+		}
+		if (!(target instanceof BasicDataSource)) {
+			throw new IllegalStateException("Can't tell which database " + dataSource + " is");
+		}
+		String url = ((BasicDataSource) target).getUrl();
+		int properties = url.indexOf(';');
+		return url.substring("jdbc:hsqldb:".length(), properties < 0 ? url.length() : properties);
+	}
+}
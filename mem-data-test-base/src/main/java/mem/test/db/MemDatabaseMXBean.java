@@ -0,0 +1,79 @@
+package mem.test.db;
+
+import java.util.Map;
+
+/**
+ * What one in-memory database from {@link MemTest} holds and what its
+ * connection pool is doing. Registered as
+ * <code>mem.test.db:type=MemDatabase,name=&lt;name&gt;</code>.
+ *
+ */
+public interface MemDatabaseMXBean {
+
+	/**
+	 * @return the name the database was created under
+	 */
+	String getName();
+
+	/**
+	 * @return the JDBC url, null if the pool isn't a BasicDataSource
+	 */
+	String getUrl();
+
+	/**
+	 * @return connections currently borrowed, -1 if unknown
+	 */
+	int getActiveConnections();
+
+	/**
+	 * @return connections sitting idle in the pool, -1 if unknown
+	 */
+	int getIdleConnections();
+
+	/**
+	 * @return the most connections the pool hands out, -1 if unknown or
+	 *         unlimited
+	 */
+	int getMaxActiveConnections();
+
+	/**
+	 * @return borrowed connections as a fraction of the maximum, -1 if
+	 *         unknown
+	 */
+	double getPoolUtilization();
+
+	/**
+	 * @return how many connections have been asked for
+	 */
+	long getConnectionRequests();
+
+	/**
+	 * @return mean time to get a connection, in microseconds
+	 */
+	long getConnectionWaitMeanMicros();
+
+	/**
+	 * @return 99th percentile time to get a connection, in microseconds
+	 */
+	long getConnectionWaitP99Micros();
+
+	/**
+	 * @return longest time to get a connection, in microseconds
+	 */
+	long getConnectionWaitMaxMicros();
+
+	/**
+	 * @return rows in each table of the default schema
+	 */
+	Map<String, Long> getTableRowCounts();
+
+	/**
+	 * @return rows in all tables of the default schema
+	 */
+	long getTotalRows();
+
+	/**
+	 * @return rough heap used by the rows and their indexes, in bytes
+	 */
+	long getEstimatedBytes();
+}
@@ -0,0 +1,242 @@
+package mem.test.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * Metrics for one in-memory database. Row counts come from HSQL's
+ * <code>INFORMATION_SCHEMA.SYSTEM_TABLESTATS</code> so reading them doesn't
+ * scan the tables. <br/><br/>
+ * HSQL doesn't report the memory its <code>mem:</code> tables use, so the
+ * footprint is estimated from the row counts and the declared column types:
+ * a fixed cost per row, per column and per index node plus a typical size
+ * for each value, with character columns taken as half full and at most
+ * {@value #MAX_COUNTED_CHARS} characters. It is meant for sizing heaps and
+ * forks, not for accounting. <br/><br/>
+ * The queries go to the pool itself, past any {@link InstrumentedDataSource},
+ * so polling doesn't count as connection waits or keep the database from
+ * looking idle to {@link MemTest}'s eviction.
+ *
+ */
+public final class MemDatabaseMetrics implements MemDatabaseMXBean {
+
+	private static final String TABLE_STATS = "select table_name, cardinality"
+			+ " from information_schema.system_tablestats where table_schema = ?";
+
+	/**
+	 * Row object, its value array and the array header
+	 */
+	private static final int ROW_BYTES = 48;
+
+	/**
+	 * Reference from the value array to each value
+	 */
+	private static final int COLUMN_BYTES = 8;
+
+	/**
+	 * One AVL node per row per index
+	 */
+	private static final int INDEX_NODE_BYTES = 40;
+
+	private static final int MAX_COUNTED_CHARS = 256;
+
+	private final String name;
+	private final DataSource queries;
+	private final BasicDataSource pool;
+	private final LatencyHistogram waits;
+
+	/**
+	 * @param name
+	 *            the name the database was created under
+	 * @param dataSource
+	 *            the datasource handed out for it. Pool figures need a
+	 *            {@link BasicDataSource}, on its own or inside an
+	 *            {@link InstrumentedDataSource} or other delegating
+	 *            datasources. Wait times need the
+	 *            {@link InstrumentedDataSource}.
+	 */
+	public MemDatabaseMetrics(final String name, final DataSource dataSource) {
+		this.name = name;
+
+		DataSource target = dataSource;
+		if (dataSource instanceof InstrumentedDataSource) {
+			waits = ((InstrumentedDataSource) dataSource).getConnectionWaits();
+		} else {
+			waits = new LatencyHistogram();
+		}
+		while (target instanceof DelegatingDataSource) {
+			target = ((DelegatingDataSource) target).getTargetDataSource();
+		}
+		pool = target instanceof BasicDataSource ? (BasicDataSource) target : null;
+		queries = pool != null ? pool : dataSource instanceof InstrumentedDataSource
+				? ((InstrumentedDataSource) dataSource).getTargetDataSource() : dataSource;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getUrl() {
+		return pool == null ? null : pool.getUrl();
+	}
+
+	public int getActiveConnections() {
+		return pool == null ? -1 : pool.getNumActive();
+	}
+
+	public int getIdleConnections() {
+		return pool == null ? -1 : pool.getNumIdle();
+	}
+
+	public int getMaxActiveConnections() {
+		return pool == null || pool.getMaxActive() < 0 ? -1 : pool.getMaxActive();
+	}
+
+	public double getPoolUtilization() {
+		int max = getMaxActiveConnections();
+		if (max <= 0) {
+			return -1;
+		}
+		return (double) pool.getNumActive() / max;
+	}
+
+	public long getConnectionRequests() {
+		return waits.getCount();
+	}
+
+	public long getConnectionWaitMeanMicros() {
+		return waits.getMeanNanos() / 1000L;
+	}
+
+	public long getConnectionWaitP99Micros() {
+		return waits.getPercentileNanos(99) / 1000L;
+	}
+
+	public long getConnectionWaitMaxMicros() {
+		return waits.getMaxNanos() / 1000L;
+	}
+
+	public Map<String, Long> getTableRowCounts() {
+		Connection c = DataSourceUtils.getConnection(queries);
+		try {
+			return rowCounts(c);
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not count the rows of " + name, e);
+		} finally {
+			DataSourceUtils.releaseConnection(c, queries);
+		}
+	}
+
+	public long getTotalRows() {
+		long total = 0;
+		for (Long rows : getTableRowCounts().values()) {
+			total += rows;
+		}
+		return total;
+	}
+
+	public long getEstimatedBytes() {
+		Connection c = DataSourceUtils.getConnection(queries);
+		try {
+			Map<String, Long> rows = rowCounts(c);
+			long bytes = 0;
+			for (TableMetaData table : TableMetaData.readAll(c.getMetaData(), null)) {
+				Long count = rows.get(table.getName());
+				if (count != null) {
+					bytes += count * rowBytes(table);
+				}
+			}
+			return bytes;
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not estimate the size of " + name, e);
+		} finally {
+			DataSourceUtils.releaseConnection(c, queries);
+		}
+	}
+
+	private static Map<String, Long> rowCounts(final Connection c) throws SQLException {
+		Map<String, Long> rows = new TreeMap<String, Long>();
+		PreparedStatement ps = c.prepareStatement(TABLE_STATS);
+		try {
+			ps.setString(1, TableMetaData.DEFAULT_SCHEMA);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				rows.put(rs.getString(1), rs.getLong(2));
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * @return estimated heap per row of the table
+	 */
+	static long rowBytes(final TableMetaData table) {
+		// HSQL indexes the primary key, or the whole row without one, and
+		// every foreign key
+		int indexes = 1 + table.getForeignKeys().size();
+		long bytes = ROW_BYTES + (long) indexes * INDEX_NODE_BYTES;
+		for (TableMetaData.Column column : table.getColumns()) {
+			bytes += COLUMN_BYTES + valueBytes(column);
+		}
+		return bytes;
+	}
+
+	private static long valueBytes(final TableMetaData.Column column) {
+		switch (column.getSqlType()) {
+		case Types.BIT:
+		case Types.BOOLEAN:
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+			return 16;
+		case Types.BIGINT:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return 24;
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return 40;
+		case Types.DATE:
+		case Types.TIME:
+		case Types.TIMESTAMP:
+			return 32;
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGVARCHAR:
+			return 40 + 2L * (Math.min(column.getSize(), MAX_COUNTED_CHARS * 2) / 2);
+		case Types.BINARY:
+		case Types.VARBINARY:
+			return 32 + Math.min(column.getSize(), MAX_COUNTED_CHARS * 2) / 2;
+		case Types.CLOB:
+		case Types.BLOB:
+			// only the lob id is in the row, the lob store is shared
+			return 48;
+		default:
+			return 16;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d rows, ~%d KB, connections %d active %d idle, wait p99 %d us",
+				name, getTotalRows(), getEstimatedBytes() / 1024, getActiveConnections(),
+				getIdleConnections(), getConnectionWaitP99Micros());
+	}
+}
@@ -1,21 +1,111 @@
 package mem.test.db;
 
+import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
 
+/**
+ * Registry of named in-memory databases. <br/><br/>
+ * By default a database lives until the JVM exits. To keep the heap bounded
+ * when a run touches many schemas, databases can be shut down with
+ * {@link #shutdownDatabase(String)} or left to be evicted:
+ * <ul>
+ * <li><code>mem.test.maxDatabases</code> or {@link #setMaxDatabases(int)}
+ * keeps at most that many, evicting the least recently used</li>
+ * <li><code>mem.test.maxIdleMillis</code> or {@link #setMaxIdleMillis(long)}
+ * evicts databases no connection has been asked for in that long</li>
+ * </ul>
+ * Eviction closes the pool and runs <code>SHUTDOWN</code> so HSQL drops the
+ * data; asking for the name again creates it afresh. Databases with
+ * connections out or references taken with {@link #acquireARDataSource(String)}
+ * are never evicted, so hold a reference for as long as you keep a
+ * datasource around while other databases come and go. <br/><br/>
+ * With <code>mem.test.lazySchema</code> or {@link #setLazySchema(boolean)}
+ * new databases create each table the first time SQL mentions it, see
+ * {@link LazySchemaDataSource}. <br/><br/>
+ * The transaction model, {@link TransactionControl}, comes from
+ * <code>mem.test.transactionControl</code> or
+ * {@link #setTransactionControl(String, TransactionControl)} for a name. <br/><br/>
+ * Data too big for the heap can go in a disk backed database instead, given
+ * a {@link HeapBudget} with {@link #setHeapBudget(String, HeapBudget)} or,
+ * for every database, a size in megabytes with
+ * <code>mem.test.heapBudgetMB</code>. <br/><br/>
+ * A thread can be given a database of its own with
+ * {@link #setThreadDatabase(String)}, which {@link ParallelSuite} does for
+ * its workers.
+ */
 public class MemTest {
 	private static final Log LOG = LogFactory.getLog(MemTest.class);
 	private static final String AR_DEFAULT_SCHEMA_KEY = "ar";
 	
-	private static Map<String, DataSource> instanceMap = new HashMap<String, DataSource>();
+	/**
+	 * System property for the most databases kept, 0 for no limit
+	 */
+	public static final String MAX_DATABASES_PROPERTY = "mem.test.maxDatabases";
+
+	/**
+	 * System property for how long a database can go unused before it is
+	 * evicted, 0 to keep it
+	 */
+	public static final String MAX_IDLE_PROPERTY = "mem.test.maxIdleMillis";
+
+	/**
+	 * System property to create tables on first use rather than up front
+	 */
+	public static final String LAZY_SCHEMA_PROPERTY = "mem.test.lazySchema";
+
+	/**
+	 * System property for the transaction model of databases with none set,
+	 * LOCKS by default
+	 */
+	public static final String TRANSACTION_CONTROL_PROPERTY = "mem.test.transactionControl";
+
+	/**
+	 * System property for the heap budget in megabytes of every database,
+	 * making them all disk backed
+	 */
+	public static final String HEAP_BUDGET_PROPERTY = "mem.test.heapBudgetMB";
+	
+	private static final String[] SCHEMA_SCRIPTS = { "createDartTables.sql", "createDartFunctions.sql" };
+
+	// access ordered so iteration starts at the least recently used
+	private static Map<String, Instance> instanceMap = new LinkedHashMap<String, Instance>(16, 0.75f, true);
+
+	private static int maxDatabases = Integer.getInteger(MAX_DATABASES_PROPERTY, 0);
+	private static long maxIdleMillis = Long.getLong(MAX_IDLE_PROPERTY, 0L);
+	private static volatile boolean lazySchema = Boolean.getBoolean(LAZY_SCHEMA_PROPERTY);
+	private static final Map<String, TransactionControl> transactionControl = new HashMap<String, TransactionControl>();
+	private static final Map<String, HeapBudget> heapBudgets = new HashMap<String, HeapBudget>();
+	private static Timer idleTimer;
+	// one lock per name, held while a database is built
+	private static final ConcurrentMap<String, Object> buildLocks = new ConcurrentHashMap<String, Object>();
+
+	// what the default name means on a thread and the threads it starts
+	private static final InheritableThreadLocal<String> threadDatabase = new InheritableThreadLocal<String>();
+
+	static {
+		startIdleTimer();
+	}
 	
 	/**
 	 * Don't let anyone instantiate me
@@ -63,23 +153,349 @@ public class MemTest {
 		return getARDataSource(AR_DEFAULT_SCHEMA_KEY);
 	}
 	
+	/**
+	 * Make the default database, from the no argument methods or by name,
+	 * another one on this thread and the threads it starts.
+	 * @param name the database to use instead, null to go back to the default
+	 */
+	public static void setThreadDatabase(final String name) {
+		if (name == null) {
+			threadDatabase.remove();
+		} else {
+			threadDatabase.set(name);
+		}
+	}
+	
+	/**
+	 * @return the database the default means on this thread, null if it
+	 *         means the default
+	 */
+	public static String getThreadDatabase() {
+		return threadDatabase.get();
+	}
+	
 	/**
 	 * Create a new datasource with the given name if one doesn't exist.
 	 * @param name the name of the database to get
 	 * @return the datasource with the given name
 	 */
-	public synchronized static DataSource getARDataSource(final String name) throws IOException {
-		DataSource ds = instanceMap.get(name);
+	public static DataSource getARDataSource(final String name) throws IOException {
+		return instance(name, false).dataSource;
+	}
+	
+	/**
+	 * Get the datasource with the given name, creating it if needed, and
+	 * keep it from being evicted until {@link #releaseARDataSource(String)}.
+	 * @param name the name of the database to get
+	 * @return the datasource with the given name
+	 */
+	public static DataSource acquireARDataSource(final String name) throws IOException {
+		return instance(name, true).dataSource;
+	}
+	
+	/**
+	 * Give back a reference taken with {@link #acquireARDataSource(String)}.
+	 * Once nothing references it the database can be evicted.
+	 * @param name the name of the database
+	 */
+	public synchronized static void releaseARDataSource(final String name) {
+		Instance instance = instanceMap.get(resolve(name));
+		if (instance == null || instance.references == 0) {
+			LOG.warn("Released database " + name + " that wasn't acquired");
+			return;
+		}
+		instance.references--;
+		instance.touched = System.nanoTime();
+		evict();
+	}
+	
+	/**
+	 * Close the pool of the named database and shut it down, whether or not
+	 * it is referenced.
+	 * @param name the name of the database
+	 * @return true if there was a database with the name
+	 */
+	public synchronized static boolean shutdownDatabase(final String name) {
+		return shutdownResolved(resolve(name));
+	}
+	
+	/**
+	 * Shut down every database.
+	 */
+	public synchronized static void shutdownAll() {
+		for (String name : new ArrayList<String>(instanceMap.keySet())) {
+			shutdownResolved(name);
+		}
+	}
+	
+	private static boolean shutdownResolved(final String name) {
+		Instance instance = instanceMap.remove(name);
+		if (instance == null) {
+			return false;
+		}
+		shutdown(name, instance);
+		return true;
+	}
+	
+	/**
+	 * @return the names of the databases, least recently used first
+	 */
+	public synchronized static List<String> getDatabaseNames() {
+		return new ArrayList<String>(instanceMap.keySet());
+	}
+	
+	/**
+	 * @param max the most databases to keep, evicting the least recently used
+	 *            unreferenced ones past it. 0 for no limit.
+	 */
+	public synchronized static void setMaxDatabases(final int max) {
+		maxDatabases = max;
+		evict();
+	}
+	
+	/**
+	 * @param millis how long a database can go without a connection being
+	 *            asked for before it is evicted. 0 to keep it.
+	 */
+	public synchronized static void setMaxIdleMillis(final long millis) {
+		maxIdleMillis = millis;
+		startIdleTimer();
+		evict();
+	}
+	
+	/**
+	 * @param lazy true for databases created from now on to create each
+	 *            table the first time SQL mentions it
+	 */
+	public synchronized static void setLazySchema(final boolean lazy) {
+		lazySchema = lazy;
+	}
+	
+	/**
+	 * Set the transaction model of a database. One that exists is switched
+	 * over, which waits for its open transactions.
+	 * @param name the name of the database
+	 * @param control the model, null for the default
+	 */
+	public synchronized static void setTransactionControl(final String name, final TransactionControl control) {
+		String resolved = resolve(name);
+		if (control == null) {
+			transactionControl.remove(resolved);
+		} else {
+			transactionControl.put(resolved, control);
+		}
+		Instance instance = instanceMap.get(resolved);
+		if (instance != null) {
+			new JdbcTemplate(instance.dataSource).execute("SET DATABASE TRANSACTION CONTROL "
+					+ getTransactionControl(resolved).name());
+		}
+	}
+	
+	/**
+	 * @param name the name of the database
+	 * @return the transaction model it has or will be created with
+	 */
+	public synchronized static TransactionControl getTransactionControl(final String name) {
+		TransactionControl control = transactionControl.get(resolve(name));
+		if (control != null) {
+			return control;
+		}
+		return TransactionControl.valueOf(System.getProperty(TRANSACTION_CONTROL_PROPERTY,
+				TransactionControl.LOCKS.name()).toUpperCase());
+	}
+	
+	/**
+	 * Make a database disk backed. Only takes effect when it is next
+	 * created, so set it before asking for the database.
+	 * @param name the name of the database
+	 * @param budget the heap it may use, null for an in-memory database
+	 */
+	public synchronized static void setHeapBudget(final String name, final HeapBudget budget) {
+		if (budget == null) {
+			heapBudgets.remove(resolve(name));
+		} else {
+			heapBudgets.put(resolve(name), budget);
+		}
+	}
+	
+	/**
+	 * @param name the name of the database
+	 * @return its heap budget, null if it is in memory
+	 */
+	public synchronized static HeapBudget getHeapBudget(final String name) {
+		HeapBudget budget = heapBudgets.get(resolve(name));
+		if (budget != null) {
+			return budget;
+		}
+		long megabytes = Long.getLong(HEAP_BUDGET_PROPERTY, 0L);
+		return megabytes > 0 ? HeapBudget.megabytes(megabytes) : null;
+	}
+	
+	/**
+	 * Cache the tables of a disk backed database that no longer fit its
+	 * budget, after loading data into it. Does nothing for one in memory.
+	 * @param name the name of the database
+	 * @return the tables that were turned into cached tables
+	 */
+	public static List<String> applyHeapBudget(final String name) throws IOException {
+		Instance instance = instance(name, false);
+		if (instance.budget == null) {
+			return new ArrayList<String>();
+		}
+		return instance.budget.apply(instance.dataSource);
+	}
+	
+	/**
+	 * Create tables of a lazy database now, for anything reading them
+	 * without going through its connections. Does nothing for a database
+	 * created up front.
+	 * @param name the name of the database
+	 * @param tables the tables and views to create
+	 */
+	public static void materializeTables(final String name, final String... tables) throws IOException {
+		DataSource target = instance(name, false).dataSource.getTargetDataSource();
+		if (target instanceof LazySchemaDataSource) {
+			((LazySchemaDataSource) target).materialize(tables);
+		}
+	}
+	
+	private static String resolve(final String name) {
+		String own = threadDatabase.get();
+		return own != null && AR_DEFAULT_SCHEMA_KEY.equals(name) ? own : name;
+	}
+	
+	/**
+	 * Get a database, building it if there is none. Only the lookup and
+	 * registration hold the registry lock, the build holds a lock of its
+	 * own name so databases of different names, such as those of
+	 * {@link ParallelSuite} workers, are built at the same time.
+	 */
+	private static Instance instance(final String requested, final boolean acquire) throws IOException {
+		String name = resolve(requested);
+		Instance instance = registered(name, acquire);
 		
 		// Dirty but just get out if we have one
-		if (ds != null) {
-			return ds;
+		if (instance != null) {
+			return instance;
 		}
 		
-		ds = createDataSource(name);
-		instanceMap.put(name, ds);
-		
-		return ds;
+		Object lock = new Object();
+		Object existing = buildLocks.putIfAbsent(name, lock);
+		synchronized (existing == null ? lock : existing) {
+			// someone else may have built it while we waited
+			instance = registered(name, acquire);
+			if (instance != null) {
+				return instance;
+			}
+			HeapBudget budget = getHeapBudget(name);
+			File directory = null;
+			if (budget != null) {
+				directory = new File(System.getProperty("java.io.tmpdir"), "mem-test-" + name + "-"
+						+ System.nanoTime());
+			}
+			instance = new Instance(createDataSource(name, budget, directory), budget, directory);
+			register(name, instance, acquire);
+			return instance;
+		}
+	}
+	
+	private synchronized static Instance registered(final String name, final boolean acquire) {
+		Instance instance = instanceMap.get(name);
+		if (instance != null) {
+			instance.touched = System.nanoTime();
+			if (acquire) {
+				instance.references++;
+			}
+		}
+		return instance;
+	}
+	
+	private synchronized static void register(final String name, final Instance instance, final boolean acquire) {
+		if (acquire) {
+			instance.references++;
+		}
+		instanceMap.put(name, instance);
+		MemTestMetrics.register(name, instance.dataSource);
+		// make room, but not by evicting the one the caller is about to get
+		evict(name);
+	}
+	
+	/**
+	 * Evict idle databases and then the least recently used ones over the
+	 * limit, skipping any that are in use.
+	 */
+	private synchronized static void evict() {
+		evict(null);
+	}
+	
+	/**
+	 * @param keep a database not to evict, null for none
+	 */
+	private synchronized static void evict(final String keep) {
+		long now = System.nanoTime();
+		int over = maxDatabases > 0 ? instanceMap.size() - maxDatabases : 0;
+		Iterator<Map.Entry<String, Instance>> it = instanceMap.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Instance> e = it.next();
+			Instance instance = e.getValue();
+			if (instance.isInUse() || e.getKey().equals(keep)) {
+				continue;
+			}
+			long idleMillis = TimeUnit.NANOSECONDS.toMillis(now - instance.lastUsed());
+			if (over > 0) {
+				LOG.info("Evicting database " + e.getKey() + ", over the limit of "
+						+ maxDatabases + " databases");
+				over--;
+			} else if (maxIdleMillis > 0 && idleMillis >= maxIdleMillis) {
+				LOG.info("Evicting database " + e.getKey() + ", idle for " + idleMillis + " ms");
+			} else {
+				continue;
+			}
+			it.remove();
+			shutdown(e.getKey(), instance);
+		}
+		if (over > 0) {
+			LOG.warn("Keeping " + over + " databases over the limit of " + maxDatabases
+					+ " because they are in use");
+		}
+	}
+	
+	private static void shutdown(final String name, final Instance instance) {
+		MemTestMetrics.unregister(name);
+		try {
+			new JdbcTemplate(instance.dataSource).execute("SHUTDOWN");
+		} catch (RuntimeException e) {
+			LOG.warn("Could not shut down database " + name, e);
+		}
+		if (instance.pool != null) {
+			try {
+				instance.pool.close();
+			} catch (SQLException e) {
+				LOG.warn("Could not close the pool of database " + name, e);
+			}
+		}
+		if (instance.directory != null) {
+			FileUtils.deleteQuietly(instance.directory);
+		}
+		LOG.info("Shut down database " + name);
+	}
+	
+	private synchronized static void startIdleTimer() {
+		if (maxIdleMillis <= 0 || idleTimer != null) {
+			return;
+		}
+		long period = Math.max(1000L, Math.min(maxIdleMillis / 2, 60000L));
+		idleTimer = new Timer("MemTest eviction", true);
+		idleTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					evict();
+				} catch (RuntimeException e) {
+					LOG.warn("Problem evicting idle databases", e);
+				}
+			}
+		}, period, period);
 	}
 	
 	/**
@@ -87,8 +503,7 @@ public class MemTest {
 	 * @param t the jdbctemplate to use
 	 */
 	public static void createARTables(final JdbcTemplate template) throws IOException {
-    	ExecuteSQL.executeSQLFile("createDartTables.sql", template);
-        ExecuteSQL.executeSQLFile("createDartFunctions.sql", template);
+    	ParallelLoader.load(template, SCHEMA_SCRIPTS);
 //        ExecuteSQL.executeSQLFile("dual.sql", template);
 //		InitializeDataSource.createTables(template);
         InitializeDataSource.loadTables(template);
@@ -98,15 +513,31 @@ public class MemTest {
 	/**
 	 * Create a new datasource for DART with the given name.
 	 * @param name the name of the datasource to create
+	 * @param budget the heap it may use, null to keep it in memory
+	 * @param directory where its files go if it has a budget
 	 * @return the newly created datasource.
 	 */
-	private static DataSource createDataSource(final String name) throws IOException {
+	private static InstrumentedDataSource createDataSource(final String name, final HeapBudget budget,
+			final File directory) throws IOException {
 		LOG.info("creating dart datasource " + name);
 		
-		DataSource ds = createNewDatabase(name);
+		InstrumentedDataSource ds = createNewDatabase(name, budget, directory);
 		JdbcTemplate t = new TestJdbcTemplateWrapper(new JdbcTemplate(ds));
 		
-		createARTables(t);
+		if (ds.getTargetDataSource() instanceof LazySchemaDataSource) {
+			((LazySchemaDataSource) ds.getTargetDataSource()).initialize();
+			InitializeDataSource.loadTables(t);
+		} else if (budget != null) {
+			// cache the tables expected to be big before filling them
+			ParallelLoader.load(t, SCHEMA_SCRIPTS);
+			budget.apply(ds);
+			InitializeDataSource.loadTables(t);
+		} else {
+			createARTables(t);
+		}
+		if (budget != null) {
+			budget.apply(ds);
+		}
 		
 		return ds;
 	}
@@ -114,18 +545,64 @@ public class MemTest {
 	/**
 	 * Create a new database in memory with the given schema name.
 	 * @param schemaName the name of the schema to create
+	 * @param budget the heap it may use, null to keep it in memory
+	 * @param directory where its files go if it has a budget
 	 * @return the datasource for the newly created database
 	 */
-	private static DataSource createNewDatabase(final String schemaName) {
+	private static InstrumentedDataSource createNewDatabase(final String schemaName, final HeapBudget budget,
+			final File directory) throws IOException {
         String url = "jdbc:hsqldb:mem:%s;sql.syntax_ora=true";
-        url = String.format(url, schemaName);
+        url = String.format(url, schemaName) + getTransactionControl(schemaName).getUrlProperty();
+        if (budget != null) {
+        	url = budget.url(directory) + ";sql.syntax_ora=true"
+        			+ getTransactionControl(schemaName).getUrlProperty();
+        	LOG.info("Database " + schemaName + " is disk backed in " + directory + ", " + budget);
+        }
 
         BasicDataSource bds = new BasicDataSource();
-        bds.setDriverClassName("org.hsqldb.jdbcDriver");
+        // sequence blocks are bound, cached tables watched and statements timed
+        // and captured by the proxying driver
+        bds.setDriverClassName(SequenceBlocks.isEnabled() || !ResultCache.getTables().isEmpty()
+        		|| StatementStats.isEnabled() || WorkloadCapture.isCapturing()
+        		? HsqlSqlDriver.class.getName() : "org.hsqldb.jdbcDriver");
         bds.setUrl(url);
         bds.setUsername("sa");
         bds.setPassword("");
 
-        return bds;
+        if (lazySchema) {
+        	return new InstrumentedDataSource(new LazySchemaDataSource(bds, SCHEMA_SCRIPTS));
+        }
+        return new InstrumentedDataSource(bds);
     }
+	
+	/**
+	 * A registered database and who is using it.
+	 */
+	private static final class Instance {
+		private final InstrumentedDataSource dataSource;
+		private final BasicDataSource pool;
+		private final HeapBudget budget;
+		private final File directory;
+		private int references;
+		private long touched = System.nanoTime();
+		
+		Instance(final InstrumentedDataSource dataSource, final HeapBudget budget, final File directory) {
+			this.dataSource = dataSource;
+			this.budget = budget;
+			this.directory = directory;
+			DataSource target = dataSource.getTargetDataSource();
+			while (target instanceof DelegatingDataSource) {
+				target = ((DelegatingDataSource) target).getTargetDataSource();
+			}
+			this.pool = target instanceof BasicDataSource ? (BasicDataSource) target : null;
+		}
+		
+		boolean isInUse() {
+			return references > 0 || (pool != null && pool.getNumActive() > 0);
+		}
+		
+		long lastUsed() {
+			return Math.max(touched, dataSource.getLastConnectionNanos());
+		}
+	}
 }
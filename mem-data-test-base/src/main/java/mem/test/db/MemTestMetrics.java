@@ -0,0 +1,222 @@
+package mem.test.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Publishes the databases {@link MemTest} creates to the platform MBean
+ * server, one {@link MemDatabaseMXBean} each plus a
+ * {@link MemTestRegistryMXBean} over all of them, so jconsole or any JMX
+ * client can see row counts, estimated heap, pool use and translation hit
+ * rates while tests run. Where there's no JMX client, e.g. in CI, log
+ * {@link #report()} at the end of the run. <br/><br/>
+ * Nothing is computed until an attribute is read. Failing to register only
+ * logs a warning.
+ *
+ */
+public final class MemTestMetrics implements MemTestRegistryMXBean {
+
+	private static final Log LOG = LogFactory.getLog(MemTestMetrics.class);
+
+	/**
+	 * JMX domain the beans are registered under
+	 */
+	public static final String DOMAIN = "mem.test.db";
+
+	private static final MemTestMetrics INSTANCE = new MemTestMetrics();
+
+	private static final ConcurrentMap<String, MemDatabaseMetrics> DATABASES = new ConcurrentHashMap<String, MemDatabaseMetrics>();
+
+	private static boolean registryRegistered;
+
+	/**
+	 *
+	 */
+	private MemTestMetrics() {
+	}
+
+	/**
+	 * @return the registry wide metrics
+	 */
+	public static MemTestMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param name
+	 *            the name the database was created under
+	 * @return its metrics or null if no database has that name
+	 */
+	public static MemDatabaseMetrics getDatabase(final String name) {
+		return DATABASES.get(name);
+	}
+
+	/**
+	 * Track a database and publish its bean, replacing any database with the
+	 * same name
+	 *
+	 * @param name
+	 *            the name the database was created under
+	 * @param dataSource
+	 *            the datasource handed out for it
+	 * @return the metrics for the database
+	 */
+	public static MemDatabaseMetrics register(final String name, final DataSource dataSource) {
+		MemDatabaseMetrics metrics = new MemDatabaseMetrics(name, dataSource);
+		DATABASES.put(name, metrics);
+		registerRegistry();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = databaseName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(metrics, objectName);
+		} catch (JMException e) {
+			LOG.warn("Could not publish metrics for database " + name, e);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Stop tracking a database and remove its bean
+	 *
+	 * @param name
+	 *            the name the database was created under
+	 */
+	public static void unregister(final String name) {
+		if (DATABASES.remove(name) == null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = databaseName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			LOG.warn("Could not remove metrics for database " + name, e);
+		}
+	}
+
+	/**
+	 * @return one line per database followed by the translation and result
+	 *         cache hit counts
+	 */
+	public static String report() {
+		StringBuilder b = new StringBuilder();
+		for (MemDatabaseMetrics db : databases()) {
+			b.append(db).append(String.format("%n"));
+		}
+		b.append(String.format("translation map %d hits %d misses, pre-translated scripts"
+				+ " %d hits %d misses", HsqlSqlDriver.getMapHits(), HsqlSqlDriver.getMapMisses(),
+				SqlPreTranslator.getHits(), SqlPreTranslator.getMisses()));
+		if (!ResultCache.getTables().isEmpty()) {
+			b.append(String.format("%n")).append(ResultCache.report());
+		}
+		return b.toString();
+	}
+
+	public int getDatabaseCount() {
+		return DATABASES.size();
+	}
+
+	public String[] getDatabaseNames() {
+		List<String> names = new ArrayList<String>();
+		for (MemDatabaseMetrics db : databases()) {
+			names.add(db.getName());
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	public long getTotalRows() {
+		long rows = 0;
+		for (MemDatabaseMetrics db : databases()) {
+			rows += db.getTotalRows();
+		}
+		return rows;
+	}
+
+	public long getTotalEstimatedBytes() {
+		long bytes = 0;
+		for (MemDatabaseMetrics db : databases()) {
+			bytes += db.getEstimatedBytes();
+		}
+		return bytes;
+	}
+
+	public long getTranslationMapHits() {
+		return HsqlSqlDriver.getMapHits();
+	}
+
+	public long getTranslationMapMisses() {
+		return HsqlSqlDriver.getMapMisses();
+	}
+
+	public long getPreTranslatedHits() {
+		return SqlPreTranslator.getHits();
+	}
+
+	public long getPreTranslatedMisses() {
+		return SqlPreTranslator.getMisses();
+	}
+
+	public long getResultCacheHits() {
+		return ResultCache.getHits();
+	}
+
+	public long getResultCacheMisses() {
+		return ResultCache.getMisses();
+	}
+
+	public long getResultCacheInvalidations() {
+		return ResultCache.getInvalidations();
+	}
+
+	public String getReport() {
+		return report();
+	}
+
+	private static List<MemDatabaseMetrics> databases() {
+		List<MemDatabaseMetrics> list = new ArrayList<MemDatabaseMetrics>(DATABASES.values());
+		Collections.sort(list, new Comparator<MemDatabaseMetrics>() {
+			public int compare(final MemDatabaseMetrics a, final MemDatabaseMetrics b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return list;
+	}
+
+	private static synchronized void registerRegistry() {
+		if (registryRegistered) {
+			return;
+		}
+		registryRegistered = true;
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=MemTestRegistry");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(INSTANCE, objectName);
+			}
+		} catch (JMException e) {
+			LOG.warn("Could not publish the database registry metrics", e);
+		}
+	}
+
+	private static ObjectName databaseName(final String name) throws JMException {
+		return new ObjectName(DOMAIN + ":type=MemDatabase,name=" + ObjectName.quote(name));
+	}
+}
@@ -0,0 +1,71 @@
+package mem.test.db;
+
+/**
+ * The in-memory databases {@link MemTest} has created, how well the Oracle
+ * to HSQL translation is being skipped and how well the result cache works. Registered as
+ * <code>mem.test.db:type=MemTestRegistry</code>.
+ *
+ */
+public interface MemTestRegistryMXBean {
+
+	/**
+	 * @return how many databases are registered
+	 */
+	int getDatabaseCount();
+
+	/**
+	 * @return the names of the registered databases
+	 */
+	String[] getDatabaseNames();
+
+	/**
+	 * @return rows in all registered databases
+	 */
+	long getTotalRows();
+
+	/**
+	 * @return rough heap used by all registered databases, in bytes
+	 */
+	long getTotalEstimatedBytes();
+
+	/**
+	 * @return statements {@link HsqlSqlDriver} swapped for a mapped one
+	 */
+	long getTranslationMapHits();
+
+	/**
+	 * @return statements {@link HsqlSqlDriver} found no mapping for
+	 */
+	long getTranslationMapMisses();
+
+	/**
+	 * @return scripts run from their build time translation
+	 */
+	long getPreTranslatedHits();
+
+	/**
+	 * @return scripts that had to be translated at runtime
+	 */
+	long getPreTranslatedMisses();
+
+	/**
+	 * @return queries answered by the {@link ResultCache}
+	 */
+	long getResultCacheHits();
+
+	/**
+	 * @return cacheable queries that went to the database
+	 */
+	long getResultCacheMisses();
+
+	/**
+	 * @return writes that dropped cached results
+	 */
+	long getResultCacheInvalidations();
+
+	/**
+	 * @return a text summary of every database, as logged by
+	 *         {@link MemTestMetrics#report()}
+	 */
+	String getReport();
+}
@@ -0,0 +1,465 @@
+package mem.test.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Runs a set of SQL scripts and fixtures, running the ones that don't
+ * depend on each other at the same time on connections of their own.
+ * <br/><br/>
+ * Files are run in two phases:
+ * <ol>
+ * <li>scripts with DDL in them. A script waits for the scripts creating the
+ * tables, sequences and functions it mentions.</li>
+ * <li>data: scripts with only DML, <code>.json</code> fixtures for
+ * {@link JsonFixtureLoader} and <code>.xlsx</code> workbooks for
+ * {@link ExcelFixtureLoader}. A file waits for files writing the same tables
+ * or the parents of its tables, going by the foreign keys the first phase
+ * created. Workbooks aren't looked into, so each waits for the data files
+ * before it and the ones after wait for it.</li>
+ * </ol>
+ * Files are otherwise taken in the order given, which also breaks any
+ * cycles. The {@link Result} says how long each file took and how much
+ * sooner the whole set finished than running them one after another would
+ * have, going by their times added up. That holds while there are no more
+ * threads than processors, past that the files stretch each other's times;
+ * load with 1 thread for a measured baseline. HSQL takes a lock for DDL, so
+ * most of the gain is in the data phase.
+ *
+ */
+public final class ParallelLoader {
+
+	private static final Log LOG = LogFactory.getLog(ParallelLoader.class);
+
+	/**
+	 * A create statement, the kind of object and its name
+	 */
+	static final Pattern CREATE = Pattern.compile(
+			"^\\s*create\\s+(?:or\\s+replace\\s+)?(?:global\\s+temporary\\s+|cached\\s+|memory\\s+)?"
+					+ "(table|view|sequence|function|procedure|synonym)\\s+([\\w.\"$#]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * A statement writing rows, and the table it writes
+	 */
+	static final Pattern WRITE = Pattern.compile(
+			"^\\s*(?:insert\\s+into|update|delete\\s+from|delete|merge\\s+into)\\s+([\\w.\"$#]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * A word that could be a name
+	 */
+	static final Pattern WORD = Pattern.compile("[\\w$#]+");
+
+	/**
+	 *
+	 */
+	private ParallelLoader() {
+	}
+
+	/**
+	 * Load with a thread per processor
+	 *
+	 * @param template
+	 *            A JdbcTemplate to use
+	 * @param fileNames
+	 *            the classpath names of the scripts and fixtures
+	 * @return how long it took
+	 * @throws IOException
+	 *             if there was a problem reading a file
+	 */
+	public static Result load(final JdbcTemplate template, final String... fileNames)
+			throws IOException {
+		return load(template, Runtime.getRuntime().availableProcessors(), fileNames);
+	}
+
+	/**
+	 * @param template
+	 *            A JdbcTemplate to use
+	 * @param threads
+	 *            the most files to run at once, 1 to run them in order
+	 * @param fileNames
+	 *            the classpath names of the scripts and fixtures
+	 * @return how long it took
+	 * @throws IOException
+	 *             if there was a problem reading a file
+	 */
+	public static Result load(final JdbcTemplate template, final int threads,
+			final String... fileNames) throws IOException {
+		List<LoadFile> schema = new ArrayList<LoadFile>();
+		List<LoadFile> data = new ArrayList<LoadFile>();
+		for (String fileName : fileNames) {
+			LoadFile file = LoadFile.read(fileName);
+			(file.ddl ? schema : data).add(file);
+		}
+
+		Result result = new Result(Math.max(1, threads));
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(result.threads, new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "ParallelLoader-" + ++count);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			linkSchema(schema);
+			run(order(schema), template, executor, result);
+			linkData(data, parentTables(template));
+			run(order(data), template, executor, result);
+		} finally {
+			executor.shutdownNow();
+		}
+		result.wallNanos = System.nanoTime() - start;
+		LOG.info(result);
+		return result;
+	}
+
+	/**
+	 * A script waits for the scripts creating what it mentions
+	 */
+	private static void linkSchema(final List<LoadFile> files) {
+		for (LoadFile file : files) {
+			for (LoadFile other : files) {
+				if (other != file && !Collections.disjoint(file.words, other.creates)) {
+					file.dependsOn.add(other);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A data file waits for files writing the same tables or their parents
+	 */
+	private static void linkData(final List<LoadFile> files, final Map<String, Set<String>> parents) {
+		for (int i = 0; i < files.size(); i++) {
+			LoadFile file = files.get(i);
+			Set<String> needed = new HashSet<String>(file.writes);
+			for (String table : file.writes) {
+				Set<String> p = parents.get(table);
+				if (p != null) {
+					needed.addAll(p);
+				}
+			}
+			for (int j = 0; j < files.size(); j++) {
+				LoadFile other = files.get(j);
+				if (other == file) {
+					continue;
+				}
+				boolean conflict;
+				if (file.writes == null || other.writes == null) {
+					// unknown tables, keep to the order given
+					conflict = j < i;
+				} else if (j < i) {
+					conflict = !Collections.disjoint(needed, other.writes);
+				} else {
+					// only the other way round for parents, the same tables
+					// go in the order given
+					conflict = !Collections.disjoint(needed, other.writes)
+							&& Collections.disjoint(file.writes, other.writes);
+				}
+				if (conflict) {
+					file.dependsOn.add(other);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Order the files so each comes after what it depends on, dropping the
+	 * dependencies on later files that a cycle leaves.
+	 */
+	private static List<LoadFile> order(final List<LoadFile> files) {
+		List<LoadFile> sorted = new ArrayList<LoadFile>(files.size());
+		Set<LoadFile> visiting = new HashSet<LoadFile>();
+		for (LoadFile file : files) {
+			visit(file, sorted, visiting);
+		}
+		Set<LoadFile> before = new HashSet<LoadFile>();
+		for (LoadFile file : sorted) {
+			if (file.dependsOn.retainAll(before)) {
+				LOG.warn("Cyclic dependency, running " + file.name + " before some of what it uses");
+			}
+			before.add(file);
+		}
+		return sorted;
+	}
+
+	private static void visit(final LoadFile file, final List<LoadFile> sorted,
+			final Set<LoadFile> visiting) {
+		if (sorted.contains(file) || !visiting.add(file)) {
+			return;
+		}
+		for (LoadFile dependency : file.dependsOn) {
+			visit(dependency, sorted, visiting);
+		}
+		visiting.remove(file);
+		sorted.add(file);
+	}
+
+	/**
+	 * Submit in order so anything a task waits on was taken off the queue
+	 * before it, then wait for the lot. The first failure is the one
+	 * reported, anything waiting on it fails after it.
+	 */
+	private static void run(final List<LoadFile> files, final JdbcTemplate template,
+			final ExecutorService executor, final Result result) throws IOException {
+		final Map<LoadFile, Future<?>> futures = new LinkedHashMap<LoadFile, Future<?>>();
+		for (final LoadFile file : files) {
+			final List<Future<?>> waitFor = new ArrayList<Future<?>>();
+			for (LoadFile dependency : file.dependsOn) {
+				waitFor.add(futures.get(dependency));
+			}
+			futures.put(file, executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (Future<?> f : waitFor) {
+						f.get();
+					}
+					long start = System.nanoTime();
+					LoadReport report = file.run(template);
+					result.add(file.name, System.nanoTime() - start, report);
+					return null;
+				}
+			}));
+		}
+
+		for (Map.Entry<LoadFile, Future<?>> e : futures.entrySet()) {
+			try {
+				e.getValue().get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted loading " + e.getKey().name, ie);
+			} catch (ExecutionException ee) {
+				Throwable cause = ee.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IllegalStateException("Problem loading " + e.getKey().name, cause);
+			}
+		}
+	}
+
+	/**
+	 * @return the parent tables of each table in the default schema
+	 */
+	private static Map<String, Set<String>> parentTables(final JdbcTemplate template) {
+		Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+		Connection c = DataSourceUtils.getConnection(template.getDataSource());
+		try {
+			for (TableMetaData t : TableMetaData.readAll(c.getMetaData(), null)) {
+				parents.put(t.getName(), t.getParentTables());
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Problem reading the foreign keys", e);
+		} finally {
+			DataSourceUtils.releaseConnection(c, template.getDataSource());
+		}
+		return parents;
+	}
+
+	/**
+	 * @return the upper case name without quotes or schema
+	 */
+	static String unquote(final String name) {
+		String table = name.replace("\"", "").toUpperCase();
+		return table.substring(table.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * A script or fixture and what it touches
+	 */
+	private static final class LoadFile {
+		private final String name;
+		private boolean ddl;
+		private final Set<String> creates = new HashSet<String>();
+		private final Set<String> words = new HashSet<String>();
+		// null if not known
+		private Set<String> writes = new HashSet<String>();
+		private final Set<LoadFile> dependsOn = new LinkedHashSet<LoadFile>();
+
+		private LoadFile(final String name) {
+			this.name = name;
+		}
+
+		static LoadFile read(final String name) throws IOException {
+			LoadFile file = new LoadFile(name);
+			String lower = name.toLowerCase();
+			if (lower.endsWith(".xlsx")) {
+				file.writes = null;
+				return file;
+			}
+			InputStream in = ParallelLoader.class.getClassLoader().getResourceAsStream(name);
+			if (in == null) {
+				throw new IOException("Could not find file with name " + name);
+			}
+			try {
+				if (lower.endsWith(".json")) {
+					file.readJson(new JsonReader(new InputStreamReader(in, "UTF-8")));
+				} else {
+					file.readSql(IOUtils.toString(in));
+				}
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+			return file;
+		}
+
+		private void readSql(final String sql) {
+			for (String statement : ExecuteSQL.statements(sql)) {
+				Matcher create = CREATE.matcher(statement);
+				Matcher write = WRITE.matcher(statement);
+				if (create.find()) {
+					creates.add(unquote(create.group(2)));
+					ddl = true;
+				} else if (write.find()) {
+					writes.add(unquote(write.group(1)));
+				} else {
+					// alter, grant, comment and anything we don't know
+					ddl = true;
+				}
+			}
+			Matcher word = WORD.matcher(sql);
+			while (word.find()) {
+				words.add(word.group().toUpperCase());
+			}
+			words.removeAll(creates);
+		}
+
+		private void readJson(final JsonReader reader) throws IOException {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				writes.add(reader.nextName().toUpperCase());
+				reader.skipValue();
+			}
+			reader.close();
+		}
+
+		LoadReport run(final JdbcTemplate template) throws IOException {
+			String lower = name.toLowerCase();
+			if (lower.endsWith(".json")) {
+				return JsonFixtureLoader.loadJsonFile(name, template);
+			}
+			if (lower.endsWith(".xlsx")) {
+				return ExcelFixtureLoader.loadWorkbook(name, template);
+			}
+			ExecuteSQL.executeSQLFile(name, template);
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * How long the files took, run together and added up
+	 */
+	public static final class Result {
+		private final int threads;
+		private final Map<String, Long> fileNanos = new LinkedHashMap<String, Long>();
+		private final LoadReport rows = new LoadReport();
+		private long sequentialNanos;
+		private volatile long wallNanos;
+
+		Result(final int threads) {
+			this.threads = threads;
+		}
+
+		synchronized void add(final String fileName, final long elapsedNanos, final LoadReport report) {
+			fileNanos.put(fileName, Long.valueOf(elapsedNanos));
+			sequentialNanos += elapsedNanos;
+			if (report != null) {
+				rows.addAll(report);
+			}
+		}
+
+		/**
+		 * @return how many files could run at once
+		 */
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * @return how long loading took from start to finish
+		 */
+		public long getWallMillis() {
+			return wallNanos / 1000000L;
+		}
+
+		/**
+		 * @return how long the files took added up, roughly how long running
+		 *         them one after another takes
+		 */
+		public synchronized long getSequentialMillis() {
+			return sequentialNanos / 1000000L;
+		}
+
+		/**
+		 * @return how much sooner loading finished than running the files one
+		 *         after another
+		 */
+		public long getSavedMillis() {
+			return Math.max(0, getSequentialMillis() - getWallMillis());
+		}
+
+		/**
+		 * @return how long each file took, in the order they finished
+		 */
+		public synchronized Map<String, Long> getFileMillis() {
+			Map<String, Long> millis = new LinkedHashMap<String, Long>();
+			for (Map.Entry<String, Long> e : fileNanos.entrySet()) {
+				millis.put(e.getKey(), Long.valueOf(e.getValue().longValue() / 1000000L));
+			}
+			return millis;
+		}
+
+		/**
+		 * @return the rows the fixtures loaded
+		 */
+		public LoadReport getLoadReport() {
+			return rows;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("Loaded %d files in %d ms on %d threads, %d ms one after"
+					+ " another (%d ms saved)", fileNanos.size(), getWallMillis(), threads,
+					getSequentialMillis(), getSavedMillis());
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package mem.test.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.runner.Runner;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.Suite;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.RunnerBuilder;
+import org.junit.runners.model.RunnerScheduler;
+
+/**
+ * A JUnit suite running its classes at the same time, each worker thread
+ * with a {@link MemTest} database of its own. <br/><br/>
+ * <code>@RunWith(ParallelSuite.class)<br/>
+ * &#64;SuiteClasses({ FooDaoTest.class, BarDaoTest.class })<br/>
+ * &#64;ParallelSuite.Workers(4)<br/>
+ * public class AllDaoTests {}</code>
+ * <br/><br/>
+ * On a worker thread, and threads started from it, the default database
+ * (<code>"ar"</code>, by name or from the no argument methods) is
+ * <code>ar-worker-1</code>, <code>ar-worker-2</code> and so on, see
+ * {@link MemTest#setThreadDatabase(String)}. A class runs start to finish on
+ * one worker, so classes running at the same time don't see each other's
+ * rows. The classes a worker runs one after another share its database,
+ * so each class should clean up its rows as it would running alone. The
+ * worker databases are built as the workers start and shut down when the
+ * suite is done. <br/><br/>
+ * Classes are started longest first going by how long they took before,
+ * which keeps one long class from starting last and leaving the other
+ * workers idle. Classes with no history start before all others. Timings
+ * are kept in <code>target/mem-test-durations.properties</code>, or the
+ * file named by {@value #DURATIONS_PROPERTY}, averaged with the last run.
+ * The number of workers comes from {@value #WORKERS_PROPERTY}, then
+ * {@link Workers}, then the number of processors.
+ *
+ */
+public class ParallelSuite extends Suite {
+
+	private static final Log LOG = LogFactory.getLog(ParallelSuite.class);
+
+	/**
+	 * System property for the number of workers
+	 */
+	public static final String WORKERS_PROPERTY = "mem.test.workers";
+
+	/**
+	 * System property for the file the timings are kept in
+	 */
+	public static final String DURATIONS_PROPERTY = "mem.test.durations";
+
+	private static final String DEFAULT_DURATIONS = "target/mem-test-durations.properties";
+
+	private static final String WORKER_DATABASE = "ar-worker-";
+
+	/**
+	 * How many classes to run at once
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Inherited
+	public @interface Workers {
+		int value();
+	}
+
+	private final int workers;
+	private final File durationsFile;
+	private final Properties durations;
+	private final Map<String, Long> measured = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Called by JUnit
+	 *
+	 * @param klass
+	 *            the suite class
+	 * @param builder
+	 *            builds the runners of its classes
+	 * @throws InitializationError
+	 *             if a class can't be run
+	 */
+	public ParallelSuite(final Class<?> klass, final RunnerBuilder builder)
+			throws InitializationError {
+		super(klass, builder);
+		Workers annotation = klass.getAnnotation(Workers.class);
+		int count = annotation == null ? Runtime.getRuntime().availableProcessors() : annotation
+				.value();
+		workers = Math.max(1, Integer.getInteger(WORKERS_PROPERTY, count).intValue());
+		durationsFile = new File(System.getProperty(DURATIONS_PROPERTY, DEFAULT_DURATIONS));
+		durations = load(durationsFile);
+		setScheduler(new WorkerScheduler());
+	}
+
+	/**
+	 * @return the classes, longest first
+	 */
+	@Override
+	protected List<Runner> getChildren() {
+		List<Runner> children = new ArrayList<Runner>(super.getChildren());
+		Collections.sort(children, new Comparator<Runner>() {
+			public int compare(final Runner a, final Runner b) {
+				long da = expected(a);
+				long db = expected(b);
+				return da < db ? 1 : da > db ? -1 : 0;
+			}
+		});
+		return children;
+	}
+
+	@Override
+	protected void runChild(final Runner runner, final RunNotifier notifier) {
+		long start = System.nanoTime();
+		try {
+			super.runChild(runner, notifier);
+		} finally {
+			measured.put(key(runner), Long.valueOf((System.nanoTime() - start) / 1000000L));
+		}
+	}
+
+	/**
+	 * @return how long the class took before, Long.MAX_VALUE if it hasn't run
+	 */
+	private long expected(final Runner runner) {
+		return expected(key(runner));
+	}
+
+	private long expected(final String key) {
+		String millis = durations.getProperty(key);
+		try {
+			return millis == null ? Long.MAX_VALUE : Long.parseLong(millis);
+		} catch (NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static String key(final Runner runner) {
+		return runner.getDescription().getDisplayName();
+	}
+
+	private static Properties load(final File file) {
+		Properties properties = new Properties();
+		if (file.isFile()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				properties.load(in);
+			} catch (IOException e) {
+				LOG.warn("Could not read test timings from " + file, e);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		return properties;
+	}
+
+	private void save(final long elapsedNanos) {
+		long total = 0;
+		for (Map.Entry<String, Long> e : measured.entrySet()) {
+			long millis = e.getValue().longValue();
+			total += millis;
+			long before = expected(e.getKey());
+			durations.setProperty(e.getKey(), Long.toString(before == Long.MAX_VALUE ? millis
+					: (before + millis) / 2));
+		}
+		OutputStream out = null;
+		try {
+			File dir = durationsFile.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Could not create " + dir);
+			}
+			out = new FileOutputStream(durationsFile);
+			durations.store(out, "Test class durations in ms, for " + getClass().getName());
+		} catch (IOException e) {
+			LOG.warn("Could not save test timings to " + durationsFile, e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		LOG.info("Ran " + measured.size() + " classes in " + elapsedNanos / 1000000L + " ms on "
+				+ workers + " workers, " + total + " ms added up");
+		measured.clear();
+	}
+
+	/**
+	 * Runs the classes on the workers in the order given and waits for them
+	 */
+	private final class WorkerScheduler implements RunnerScheduler {
+		private ExecutorService executor;
+		private final List<Future<?>> running = new ArrayList<Future<?>>();
+		private final List<String> databases = new ArrayList<String>();
+		private long start;
+
+		public synchronized void schedule(final Runnable childStatement) {
+			if (executor == null) {
+				start = System.nanoTime();
+				executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+					private int count;
+
+					public synchronized Thread newThread(final Runnable r) {
+						final String database = WORKER_DATABASE + ++count;
+						databases.add(database);
+						Thread t = new Thread(new Runnable() {
+							public void run() {
+								MemTest.setThreadDatabase(database);
+								// build it now so it isn't timed as part of the first class
+								try {
+									MemTest.getDartDataSource();
+								} catch (IOException e) {
+									LOG.warn("Could not create " + database, e);
+								}
+								r.run();
+							}
+						}, "ParallelSuite-" + count);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			running.add(executor.submit(childStatement));
+		}
+
+		public synchronized void finished() {
+			if (executor == null) {
+				return;
+			}
+			try {
+				for (Future<?> f : running) {
+					f.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted waiting for test classes", e);
+			} catch (ExecutionException e) {
+				// runners report their own failures, this is something else
+				throw new IllegalStateException("Problem running test classes", e.getCause());
+			} finally {
+				executor.shutdownNow();
+				executor = null;
+				running.clear();
+				for (String database : databases) {
+					MemTest.shutdownDatabase(database);
+				}
+				databases.clear();
+				save(System.nanoTime() - start);
+			}
+		}
+	}
+}
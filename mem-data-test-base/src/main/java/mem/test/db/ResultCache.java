@@ -0,0 +1,486 @@
+package mem.test.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Caches query results for tables that tests treat as read only, e.g. the
+ * type tables DAOs look up over and over. <br/><br/>
+ * Name the tables with the <code>mem.test.cache.tables</code> system
+ * property (comma separated) or {@link #setTables(String...)}. A query that
+ * {@link TestJdbcTemplateWrapper} runs with its arguments, rather than a
+ * statement setter, is answered from the cache when every table it mentions
+ * is one of them. Results are kept per database, keyed on the statement and
+ * its arguments, and the caller's row mapper or extractor runs over the
+ * cached rows, so it never shares the objects another caller got. <br/><br/>
+ * Any insert, update, delete or merge mentioning a cached table that the
+ * wrapper or {@link HsqlSqlDriver} sees drops that table's results, and any
+ * DDL or procedure call drops everything, including the table names used to
+ * tell which words of a query are tables. Name the tables before
+ * {@link MemTest} creates the databases, so their pools go through
+ * {@link HsqlSqlDriver} and writes that don't come through the wrapper are
+ * seen as well. <br/><br/>
+ * Inside a Spring managed transaction the cache is neither read nor filled,
+ * since the transaction may see rows it will roll back, and the tables a
+ * transaction wrote are dropped again when it completes, committed or not.
+ * Transactions that Spring doesn't manage aren't seen, so keep their writes
+ * to these tables short.
+ *
+ */
+public final class ResultCache {
+
+	private static final Log LOG = LogFactory.getLog(ResultCache.class);
+
+	/**
+	 * System property listing the tables to cache
+	 */
+	public static final String TABLES_PROPERTY = "mem.test.cache.tables";
+
+	/**
+	 * Results with more rows than this are not kept
+	 */
+	private static final int MAX_ROWS = 1000;
+
+	/**
+	 * Results kept per database before the least recently used go
+	 */
+	private static final int MAX_RESULTS = 1000;
+
+	/**
+	 * Statements whose tables are remembered per database
+	 */
+	private static final int MAX_STATEMENTS = 5000;
+
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$#]*");
+
+	private static final Set<String> QUERY_KEYWORDS = new HashSet<String>(Arrays.asList("SELECT",
+			"WITH"));
+
+	private static final Set<String> WRITE_KEYWORDS = new HashSet<String>(Arrays.asList(
+			"INSERT", "UPDATE", "DELETE", "MERGE", "TRUNCATE"));
+
+	private static final String[] NOT_CACHEABLE = new String[0];
+
+	private static volatile Set<String> tables = Collections.emptySet();
+
+	private static final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+
+	private static final Map<DataSource, Database> databases = new WeakHashMap<DataSource, Database>();
+
+	private static final StripedCounter hits = new StripedCounter();
+	private static final StripedCounter misses = new StripedCounter();
+	private static final StripedCounter invalidations = new StripedCounter();
+
+	static {
+		String property = System.getProperty(TABLES_PROPERTY);
+		if (property != null && property.trim().length() > 0) {
+			setTables(property.split(","));
+		}
+	}
+
+	/**
+	 *
+	 */
+	private ResultCache() {
+	}
+
+	/**
+	 * Cache these tables instead of any named before, dropping what was
+	 * cached
+	 *
+	 * @param names
+	 *            the tables, none to turn caching off
+	 */
+	public static void setTables(final String... names) {
+		Set<String> set = new HashSet<String>();
+		for (String name : names) {
+			if (name.trim().length() > 0) {
+				set.add(name.trim().toUpperCase());
+			}
+		}
+		tables = Collections.unmodifiableSet(set);
+		clear();
+		LOG.info("Caching results of " + set);
+	}
+
+	/**
+	 * @return the tables being cached
+	 */
+	public static Set<String> getTables() {
+		return tables;
+	}
+
+	/**
+	 * Drop every cached result
+	 */
+	public static void clear() {
+		for (AtomicLong version : versions.values()) {
+			version.incrementAndGet();
+		}
+		synchronized (databases) {
+			databases.clear();
+		}
+	}
+
+	/**
+	 * @return queries answered from the cache
+	 */
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return cacheable queries that had to go to the database
+	 */
+	public static long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return writes that dropped cached results
+	 */
+	public static long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * @return fraction of cacheable queries answered from the cache
+	 */
+	public static double getHitRate() {
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * @return the counts on one line
+	 */
+	public static String report() {
+		return String.format("result cache of %s: %d hits %d misses (%.1f%%), %d invalidations",
+				tables, getHits(), getMisses(), getHitRate() * 100, getInvalidations());
+	}
+
+	/**
+	 * @param dataSource
+	 *            the database the query is for
+	 * @param sql
+	 *            the query as the caller sent it
+	 * @param args
+	 *            its arguments, may be null
+	 * @param argTypes
+	 *            their types, may be null
+	 * @return where to find or put the result, null if the query can't be
+	 *         cached
+	 */
+	static Lookup lookup(final DataSource dataSource, final String sql, final Object[] args,
+			final int[] argTypes) {
+		if (tables.isEmpty() || dataSource == null || sql == null
+				|| TransactionSynchronizationManager.isActualTransactionActive()) {
+			return null;
+		}
+		Database db = database(dataSource);
+		String[] referenced = db.referencedTables(sql);
+		if (referenced.length == 0) {
+			return null;
+		}
+
+		List<Object> key = new ArrayList<Object>(4);
+		key.add(sql);
+		key.add(args == null ? null : Arrays.asList(args));
+		key.add(argTypes == null ? null : Arrays.toString(argTypes));
+		long[] seen = new long[referenced.length];
+		for (int i = 0; i < referenced.length; i++) {
+			seen[i] = version(referenced[i]).get();
+		}
+		return new Lookup(db, key, referenced, seen);
+	}
+
+	/**
+	 * A statement that may have written to a table completed
+	 *
+	 * @param sql
+	 *            the statement
+	 */
+	static void written(final String sql) {
+		Set<String> cached = tables;
+		if (cached.isEmpty() || sql == null) {
+			return;
+		}
+		Matcher m = IDENTIFIER.matcher(sql);
+		if (!m.find()) {
+			return;
+		}
+		String keyword = m.group().toUpperCase();
+		if (QUERY_KEYWORDS.contains(keyword)) {
+			return;
+		}
+		if (!WRITE_KEYWORDS.contains(keyword)) {
+			// DDL, calls and anything else we don't understand
+			invalidations.increment();
+			dropAll();
+			Completion completion = completion();
+			if (completion != null) {
+				completion.all = true;
+			}
+			return;
+		}
+		boolean dropped = false;
+		while (m.find()) {
+			String word = m.group().toUpperCase();
+			if (cached.contains(word)) {
+				version(word).incrementAndGet();
+				Completion completion = completion();
+				if (completion != null) {
+					completion.written.add(word);
+				}
+				dropped = true;
+			}
+		}
+		if (dropped) {
+			invalidations.increment();
+		}
+	}
+
+	private static void dropAll() {
+		synchronized (databases) {
+			databases.clear();
+		}
+		for (AtomicLong version : versions.values()) {
+			version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return what the Spring managed transaction on this thread wrote, to
+	 *         drop again when it completes. Null outside one.
+	 */
+	private static Completion completion() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		Completion completion = (Completion) TransactionSynchronizationManager
+				.getResource(Completion.class);
+		if (completion == null) {
+			completion = new Completion();
+			TransactionSynchronizationManager.bindResource(Completion.class, completion);
+			TransactionSynchronizationManager.registerSynchronization(completion);
+		}
+		return completion;
+	}
+
+	/**
+	 * Drops what a transaction wrote once it commits or rolls back, in case
+	 * another thread read and cached the rows from before it in between
+	 */
+	private static final class Completion extends TransactionSynchronizationAdapter {
+		private final Set<String> written = new HashSet<String>();
+		private boolean all;
+
+		@Override
+		public void afterCompletion(final int status) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(Completion.class);
+			if (all) {
+				dropAll();
+			} else {
+				for (String table : written) {
+					version(table).incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static AtomicLong version(final String table) {
+		AtomicLong version = versions.get(table);
+		if (version == null) {
+			AtomicLong created = new AtomicLong();
+			version = versions.putIfAbsent(table, created);
+			if (version == null) {
+				version = created;
+			}
+		}
+		return version;
+	}
+
+	private static Database database(final DataSource dataSource) {
+		synchronized (databases) {
+			Database db = databases.get(dataSource);
+			if (db == null) {
+				db = new Database(dataSource);
+				databases.put(dataSource, db);
+			}
+			return db;
+		}
+	}
+
+	/**
+	 * A cacheable query, found or to be stored
+	 */
+	static final class Lookup {
+		private final Database db;
+		private final List<Object> key;
+		private final String[] referenced;
+		private final long[] seen;
+
+		private Lookup(final Database db, final List<Object> key, final String[] referenced,
+				final long[] seen) {
+			this.db = db;
+			this.key = key;
+			this.referenced = referenced;
+			this.seen = seen;
+		}
+
+		/**
+		 * @return the cached rows or null if they have to be read
+		 */
+		CachedResultSet get() {
+			Cached entry;
+			synchronized (db.results) {
+				entry = db.results.get(key);
+			}
+			if (entry != null && entry.isCurrent()) {
+				hits.increment();
+				return entry.rows;
+			}
+			misses.increment();
+			return null;
+		}
+
+		/**
+		 * Keep rows read for this query, unless a table changed while they
+		 * were read
+		 */
+		void put(final CachedResultSet rows) {
+			if (rows.size() > MAX_ROWS) {
+				return;
+			}
+			Cached entry = new Cached(rows, referenced, seen);
+			if (entry.isCurrent()) {
+				synchronized (db.results) {
+					db.results.put(key, entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cached rows and the table versions they were read at
+	 */
+	private static final class Cached {
+		private final CachedResultSet rows;
+		private final String[] tableNames;
+		private final long[] tableVersions;
+
+		Cached(final CachedResultSet rows, final String[] tableNames, final long[] tableVersions) {
+			this.rows = rows;
+			this.tableNames = tableNames;
+			this.tableVersions = tableVersions;
+		}
+
+		boolean isCurrent() {
+			for (int i = 0; i < tableNames.length; i++) {
+				if (version(tableNames[i]).get() != tableVersions[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * What is cached for one database
+	 */
+	private static final class Database {
+		private final DataSource dataSource;
+		private volatile Set<String> tableNames;
+		private final ConcurrentMap<String, String[]> statements = new ConcurrentHashMap<String, String[]>();
+		private final Map<List<Object>, Cached> results = new LinkedHashMap<List<Object>, Cached>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<List<Object>, Cached> eldest) {
+				return size() > MAX_RESULTS;
+			}
+		};
+
+		Database(final DataSource dataSource) {
+			this.dataSource = dataSource;
+		}
+
+		/**
+		 * @return the tables of the database the query mentions, none if it
+		 *         isn't a query or mentions a table that isn't cached
+		 */
+		String[] referencedTables(final String sql) {
+			String[] referenced = statements.get(sql);
+			if (referenced == null) {
+				referenced = parse(sql);
+				if (statements.size() < MAX_STATEMENTS) {
+					statements.put(sql, referenced);
+				}
+			}
+			return referenced;
+		}
+
+		private String[] parse(final String sql) {
+			Matcher m = IDENTIFIER.matcher(sql);
+			if (!m.find() || !QUERY_KEYWORDS.contains(m.group().toUpperCase())) {
+				return NOT_CACHEABLE;
+			}
+			Set<String> all = tableNames();
+			Set<String> cached = tables;
+			Set<String> referenced = new HashSet<String>();
+			while (m.find()) {
+				String word = m.group().toUpperCase();
+				if (all.contains(word)) {
+					if (!cached.contains(word)) {
+						return NOT_CACHEABLE;
+					}
+					referenced.add(word);
+				}
+			}
+			return referenced.toArray(new String[referenced.size()]);
+		}
+
+		private Set<String> tableNames() {
+			Set<String> names = tableNames;
+			if (names == null) {
+				Connection c = DataSourceUtils.getConnection(dataSource);
+				try {
+					names = new HashSet<String>();
+					for (String name : TableMetaData.listTables(c.getMetaData(), null)) {
+						names.add(name.toUpperCase());
+					}
+				} catch (SQLException e) {
+					throw new IllegalStateException("Could not list the tables to cache", e);
+				} finally {
+					DataSourceUtils.releaseConnection(c, dataSource);
+				}
+				tableNames = names;
+			}
+			return names;
+		}
+	}
+}
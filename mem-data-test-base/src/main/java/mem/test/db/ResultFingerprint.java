@@ -0,0 +1,573 @@
+package mem.test.db;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * A fingerprint of a query result, worked out as the rows stream past so a
+ * result of any size can be checked against a golden one in constant
+ * memory. Returned by
+ * {@link TestJdbcTemplateWrapper#fingerprint(String, Object...)}. <br/>
+ * <br/>
+ * Each value is hashed from a canonical form, so <code>1</code> and
+ * <code>1.00</code> agree, dates hash by their instant and lobs by their
+ * content. The values of a row are combined in column order into a row
+ * hash, and the row hashes into:
+ * <ul>
+ * <li>an ordered hash, rolled over the rows in order</li>
+ * <li>an unordered hash, the sum of the row hashes, which only says which
+ * rows there are</li>
+ * <li>for each column an unordered hash of its values and its count of
+ * nulls, to tell which columns differ</li>
+ * </ul>
+ * {@link #toString()} is the form to keep in a golden file and
+ * {@link #parse(String)} reads it back. <br/>
+ * <br/>
+ * A fingerprint only says whether results differ. When they do and the
+ * golden rows can still be queried, {@link #narrow} goes back over both
+ * results hashing segments of rows, splitting the segments that differ
+ * until it has the row ranges that do.
+ *
+ */
+public final class ResultFingerprint {
+
+	/**
+	 * Segments each differing range is split into per pass of
+	 * {@link #narrow}
+	 */
+	public static final int FANOUT = 16;
+
+	/**
+	 * Most differing ranges {@link #narrow} keeps following, the first ones
+	 */
+	public static final int MAX_RANGES = 32;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final long ROLL = 0x9e3779b97f4a7c15L;
+
+	private final String[] names;
+	private final long[] columnHashes;
+	private final long[] nulls;
+	private long rows;
+	private long ordered;
+	private long unordered;
+
+	private ResultFingerprint(final String[] names) {
+		this.names = names;
+		this.columnHashes = new long[names.length];
+		this.nulls = new long[names.length];
+	}
+
+	/**
+	 * @return an extractor streaming a result set into a new fingerprint
+	 */
+	public static ResultSetExtractor<ResultFingerprint> extractor() {
+		return new ResultSetExtractor<ResultFingerprint>() {
+			public ResultFingerprint extractData(final ResultSet rs) throws SQLException {
+				return read(rs);
+			}
+		};
+	}
+
+	/**
+	 * @param rs
+	 *            the result set to read to the end, left open
+	 * @return its fingerprint
+	 */
+	public static ResultFingerprint read(final ResultSet rs) throws SQLException {
+		ResultSetMetaData md = rs.getMetaData();
+		String[] names = new String[md.getColumnCount()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = md.getColumnLabel(i + 1).toUpperCase();
+		}
+		ResultFingerprint fingerprint = new ResultFingerprint(names);
+		long[] values = new long[names.length];
+		while (rs.next()) {
+			long row = FNV_OFFSET;
+			for (int i = 0; i < values.length; i++) {
+				Object value = rs.getObject(i + 1);
+				values[i] = valueHash(value);
+				if (value == null) {
+					fingerprint.nulls[i]++;
+				} else {
+					fingerprint.columnHashes[i] += values[i];
+				}
+				row = mix(row * FNV_PRIME + values[i]);
+			}
+			fingerprint.rows++;
+			fingerprint.ordered = fingerprint.ordered * ROLL + row;
+			fingerprint.unordered += row;
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * @param text
+	 *            what {@link #toString()} gave
+	 * @return the fingerprint it describes
+	 */
+	public static ResultFingerprint parse(final String text) {
+		String[] fields = text.trim().split(" ", 4);
+		if (fields.length != 4 || !fields[3].startsWith("columns=")) {
+			throw new IllegalArgumentException("Not a result fingerprint: " + text);
+		}
+		String columns = fields[3].substring("columns=".length());
+		String[] parts = columns.length() == 0 ? new String[0] : columns.split(",");
+		String[] names = new String[parts.length];
+		long[][] values = new long[parts.length][];
+		for (int i = 0; i < parts.length; i++) {
+			int hash = parts[i].lastIndexOf(':');
+			int nulls = parts[i].lastIndexOf(':', hash - 1);
+			if (nulls <= 0) {
+				throw new IllegalArgumentException("Not a result fingerprint column: " + parts[i]);
+			}
+			names[i] = parts[i].substring(0, nulls);
+			values[i] = new long[] { Long.parseLong(parts[i].substring(nulls + 1, hash)),
+					hex(parts[i].substring(hash + 1)) };
+		}
+		ResultFingerprint fingerprint = new ResultFingerprint(names);
+		for (int i = 0; i < parts.length; i++) {
+			fingerprint.nulls[i] = values[i][0];
+			fingerprint.columnHashes[i] = values[i][1];
+		}
+		fingerprint.rows = Long.parseLong(field(fields[0], "rows="));
+		fingerprint.ordered = hex(field(fields[1], "ordered="));
+		fingerprint.unordered = hex(field(fields[2], "unordered="));
+		return fingerprint;
+	}
+
+	private static String field(final String field, final String prefix) {
+		if (!field.startsWith(prefix)) {
+			throw new IllegalArgumentException("Expected " + prefix + " but found " + field);
+		}
+		return field.substring(prefix.length());
+	}
+
+	private static long hex(final String text) {
+		// parseLong won't take the top bit
+		return Long.parseLong(text.substring(0, 8), 16) << 32 | Long.parseLong(text.substring(8), 16);
+	}
+
+	/**
+	 * @return how many rows there were
+	 */
+	public long getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * @return the column labels, upper case
+	 */
+	public List<String> getColumnNames() {
+		return Collections.unmodifiableList(Arrays.asList(names));
+	}
+
+	/**
+	 * @return hash of the rows in the order they came
+	 */
+	public long getOrderedHash() {
+		return ordered;
+	}
+
+	/**
+	 * @return hash of the rows whatever order they came in
+	 */
+	public long getUnorderedHash() {
+		return unordered;
+	}
+
+	/**
+	 * @param column
+	 *            0 based
+	 * @return hash of the column's values whatever order they came in
+	 */
+	public long getColumnHash(final int column) {
+		return columnHashes[column];
+	}
+
+	/**
+	 * @param column
+	 *            0 based
+	 * @return how many of the column's values were null
+	 */
+	public long getNullCount(final int column) {
+		return nulls[column];
+	}
+
+	/**
+	 * @param other
+	 *            another fingerprint
+	 * @return whether the two results have the same rows, ignoring order
+	 */
+	public boolean matchesIgnoringOrder(final ResultFingerprint other) {
+		return rows == other.rows && unordered == other.unordered
+				&& Arrays.equals(names, other.names);
+	}
+
+	/**
+	 * @param expected
+	 *            the golden fingerprint
+	 * @return how this result differs from the golden one, empty if it
+	 *         doesn't
+	 */
+	public List<String> getDifferences(final ResultFingerprint expected) {
+		List<String> differences = new ArrayList<String>();
+		if (!Arrays.equals(names, expected.names)) {
+			differences.add("columns " + getColumnNames() + " where " + expected.getColumnNames()
+					+ " were expected");
+		}
+		if (rows != expected.rows) {
+			differences.add(rows + " rows where " + expected.rows + " were expected");
+		}
+		if (names.length == expected.names.length) {
+			for (int i = 0; i < names.length; i++) {
+				if (nulls[i] != expected.nulls[i]) {
+					differences.add(String.format("column %s has %d nulls where %d were expected",
+							names[i], nulls[i], expected.nulls[i]));
+				} else if (columnHashes[i] != expected.columnHashes[i]) {
+					differences.add("column " + names[i] + " has different values");
+				}
+			}
+		}
+		if (differences.isEmpty() && unordered != expected.unordered) {
+			differences.add("the columns have the expected values but not in the same rows");
+		}
+		if (differences.isEmpty() && ordered != expected.ordered) {
+			differences.add("the rows are as expected but in a different order");
+		}
+		return differences;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof ResultFingerprint)) {
+			return false;
+		}
+		ResultFingerprint other = (ResultFingerprint) obj;
+		return matchesIgnoringOrder(other) && ordered == other.ordered
+				&& Arrays.equals(nulls, other.nulls)
+				&& Arrays.equals(columnHashes, other.columnHashes);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (ordered ^ (ordered >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder(String.format("rows=%d ordered=%016x unordered=%016x columns=",
+				rows, ordered, unordered));
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				text.append(',');
+			}
+			text.append(String.format("%s:%d:%016x", names[i], nulls[i], columnHashes[i]));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Find the rows where two results differ, with one pass over each per
+	 * round after one counting the rows. The first round splits the rows
+	 * into {@value #FANOUT} segments and hashes them on both sides, and
+	 * each round after splits the segments that differed until they are
+	 * single rows. A row missing or added part way through makes every row
+	 * after it differ, so where the differences run to the end of a range
+	 * only their first segment is split further, and the last range found
+	 * starts at the shift and runs to the end. At most
+	 * {@value #MAX_RANGES} ranges are followed.
+	 *
+	 * @param expected
+	 *            runs the golden query
+	 * @param expectedSql
+	 *            the golden query
+	 * @param expectedArgs
+	 *            its arguments
+	 * @param actual
+	 *            runs the query being checked
+	 * @param actualSql
+	 *            the query being checked
+	 * @param actualArgs
+	 *            its arguments
+	 * @return the row ranges that differ, in order, empty if none do
+	 */
+	public static List<Range> narrow(final JdbcOperations expected, final String expectedSql,
+			final Object[] expectedArgs, final JdbcOperations actual, final String actualSql,
+			final Object[] actualArgs) {
+		RowCounter expectedRows = new RowCounter();
+		RowCounter actualRows = new RowCounter();
+		expected.query(expectedSql, expectedArgs, expectedRows);
+		actual.query(actualSql, actualArgs, actualRows);
+		List<Range> ranges = new ArrayList<Range>();
+		long end = Math.max(expectedRows.count, actualRows.count);
+		if (end > 0) {
+			ranges.add(new Range(0, end));
+		}
+		List<Range> done = new ArrayList<Range>();
+		while (!ranges.isEmpty()) {
+			SegmentHasher golden = new SegmentHasher(ranges);
+			SegmentHasher checked = new SegmentHasher(ranges);
+			expected.query(expectedSql, expectedArgs, golden);
+			actual.query(actualSql, actualArgs, checked);
+
+			List<Range> next = new ArrayList<Range>();
+			for (int r = 0; r < ranges.size(); r++) {
+				Range range = ranges.get(r);
+				List<Range> differing = new ArrayList<Range>();
+				for (int s = 0; s < FANOUT; s++) {
+					Range segment = range.segment(s);
+					if (segment.size() > 0 && (golden.hashes[r][s] != checked.hashes[r][s]
+							|| golden.counts[r][s] != checked.counts[r][s])) {
+						add(differing, segment);
+					}
+				}
+				for (Range run : differing) {
+					if (run.size() > range.step() && (run.to == range.to || run.equals(range))) {
+						// a shift makes everything after it differ, so only
+						// the start of a run to the end is worth splitting
+						Range first = range.segment((int) ((run.from - range.from) / range.step()));
+						(first.size() == 1 ? done : next).add(first);
+						done.add(new Range(first.to, run.to));
+					} else {
+						(run.size() == 1 ? done : next).add(run);
+					}
+				}
+			}
+			ranges = next;
+			while (done.size() + ranges.size() > MAX_RANGES && !ranges.isEmpty()) {
+				ranges.remove(ranges.size() - 1);
+			}
+		}
+		Collections.sort(done);
+		List<Range> merged = new ArrayList<Range>();
+		for (Range range : done) {
+			add(merged, range);
+		}
+		return merged.size() > MAX_RANGES ? merged.subList(0, MAX_RANGES) : merged;
+	}
+
+	private static void add(final List<Range> ranges, final Range range) {
+		Range last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+		if (last != null && last.to == range.from) {
+			ranges.set(ranges.size() - 1, new Range(last.from, range.to));
+		} else {
+			ranges.add(range);
+		}
+	}
+
+	/**
+	 * A range of rows, 0 based, from inclusive and to exclusive
+	 */
+	public static final class Range implements Comparable<Range> {
+		private final long from;
+		private final long to;
+
+		Range(final long from, final long to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @return the first row, 0 based
+		 */
+		public long getFrom() {
+			return from;
+		}
+
+		/**
+		 * @return the row after the last one
+		 */
+		public long getTo() {
+			return to;
+		}
+
+		long size() {
+			return to - from;
+		}
+
+		/**
+		 * @return the rows of segment s of the {@value ResultFingerprint#FANOUT}
+		 *         the range splits into, empty past the end of a short range
+		 */
+		Range segment(final int s) {
+			long step = step();
+			long start = Math.min(to, from + s * step);
+			return new Range(start, Math.min(to, start + step));
+		}
+
+		long step() {
+			return (size() + FANOUT - 1) / FANOUT;
+		}
+
+		public int compareTo(final Range o) {
+			return from < o.from ? -1 : from == o.from ? 0 : 1;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof Range && ((Range) obj).from == from && ((Range) obj).to == to;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (from * 31 + to);
+		}
+
+		@Override
+		public String toString() {
+			return size() == 1 ? "row " + from : String.format("rows %d-%d", from, to - 1);
+		}
+	}
+
+	/**
+	 * Counts the rows of a result
+	 */
+	private static final class RowCounter implements ResultSetExtractor<Object> {
+		private long count;
+
+		public Object extractData(final ResultSet rs) throws SQLException {
+			while (rs.next()) {
+				count++;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Hashes the {@value ResultFingerprint#FANOUT} segments of each of a
+	 * sorted list of row ranges, stopping once past the last one
+	 */
+	private static final class SegmentHasher implements ResultSetExtractor<Object> {
+		private final List<Range> ranges;
+		private final long[][] hashes;
+		private final long[][] counts;
+
+		SegmentHasher(final List<Range> ranges) {
+			this.ranges = ranges;
+			this.hashes = new long[ranges.size()][FANOUT];
+			this.counts = new long[ranges.size()][FANOUT];
+		}
+
+		public Object extractData(final ResultSet rs) throws SQLException {
+			int columns = rs.getMetaData().getColumnCount();
+			int r = 0;
+			long row = -1;
+			while (rs.next()) {
+				row++;
+				while (r < ranges.size() && row >= ranges.get(r).to) {
+					r++;
+				}
+				if (r == ranges.size()) {
+					break;
+				}
+				Range range = ranges.get(r);
+				if (row < range.from) {
+					continue;
+				}
+				int s = (int) ((row - range.from) / range.step());
+				long hash = FNV_OFFSET;
+				for (int i = 1; i <= columns; i++) {
+					hash = mix(hash * FNV_PRIME + valueHash(rs.getObject(i)));
+				}
+				hashes[r][s] = hashes[r][s] * ROLL + hash;
+				counts[r][s]++;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return hash of the canonical form of a value
+	 */
+	static long valueHash(final Object value) throws SQLException {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof Number) {
+			return mix(hash('N', number((Number) value)));
+		}
+		if (value instanceof java.util.Date) {
+			long time = ((java.util.Date) value).getTime();
+			if (value instanceof Timestamp) {
+				time = time * 1000000L + ((Timestamp) value).getNanos() % 1000000;
+			} else {
+				time *= 1000000L;
+			}
+			return mix(time ^ 'D');
+		}
+		if (value instanceof byte[]) {
+			return mix(hash('B', (byte[]) value));
+		}
+		if (value instanceof Blob) {
+			Blob blob = (Blob) value;
+			return mix(hash('B', blob.getBytes(1, (int) blob.length())));
+		}
+		if (value instanceof Clob) {
+			Clob clob = (Clob) value;
+			return mix(hash('S', clob.getSubString(1, (int) clob.length())));
+		}
+		if (value instanceof Boolean) {
+			return mix(((Boolean) value).booleanValue() ? 'T' : 'F');
+		}
+		return mix(hash('S', value.toString()));
+	}
+
+	private static String number(final Number number) {
+		BigDecimal decimal;
+		if (number instanceof BigDecimal) {
+			decimal = (BigDecimal) number;
+		} else if ((number instanceof Double || number instanceof Float)
+				&& (Double.isNaN(number.doubleValue()) || Double.isInfinite(number.doubleValue()))) {
+			return number.toString();
+		} else {
+			decimal = new BigDecimal(number.toString());
+		}
+		// stripTrailingZeros leaves a zero with a scale alone
+		return decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toPlainString();
+	}
+
+	private static long hash(final char type, final String text) {
+		long hash = (FNV_OFFSET ^ type) * FNV_PRIME;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static long hash(final char type, final byte[] bytes) {
+		long hash = (FNV_OFFSET ^ type) * FNV_PRIME;
+		for (byte b : bytes) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * The 64 bit finaliser from MurmurHash3, so sums of hashes stay well
+	 * spread
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb53e7a87ecd3L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,353 @@
+package mem.test.db;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+
+/**
+ * The mapped rows of a query, handed over as they are read instead of
+ * collected into a list. Returned by
+ * {@link TestJdbcTemplateWrapper#queryForStream(String, RowMapper, Object...)}.
+ * <br/><br/>
+ * A background thread runs the query on a connection of its own, with the
+ * fetch size set, maps each row and puts it on a bounded queue. When the
+ * queue is full the thread waits, so no more than the queue size of mapped
+ * rows are ever held and a slow consumer slows the read down. Note HSQL
+ * still builds its own result for a <code>mem:</code> database; what is
+ * saved is every mapped row the test would otherwise keep. <br/><br/>
+ * Read it with the iterator from one thread, or with
+ * {@link #forEach(int, RowHandler)} to process rows on several. The
+ * statement and connection are closed when the last row has been read or on
+ * {@link #close()}, which waits for the reading thread to finish, so use it
+ * in a finally block when a test may stop early. As it has its own
+ * connection the query doesn't see the caller's uncommitted changes.
+ *
+ * @param <T>
+ *            the mapped row type
+ */
+public final class RowStream<T> implements Iterator<T>, Iterable<T>, Closeable {
+
+	private static final Log LOG = LogFactory.getLog(RowStream.class);
+
+	/**
+	 * Rows fetched at a time and held on the queue, unless told otherwise
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+
+	private static final Object END = new Object();
+	private static final Object NULL_ROW = new Object();
+
+	private static final AtomicInteger THREADS = new AtomicInteger();
+
+	private final DataSource dataSource;
+	private final String sql;
+	private final Object[] args;
+	private final RowMapper<T> rowMapper;
+	private final int fetchSize;
+	private final SQLExceptionTranslator translator;
+	private final BlockingQueue<Object> queue;
+	private final Thread reader;
+	private final AtomicLong rows = new AtomicLong();
+	private volatile boolean closed;
+	private volatile Throwable failure;
+	private Object next;
+
+	private RowStream(final DataSource dataSource, final String sql, final Object[] args,
+			final RowMapper<T> rowMapper, final int fetchSize,
+			final SQLExceptionTranslator translator) {
+		this.dataSource = dataSource;
+		this.sql = sql;
+		this.args = args;
+		this.rowMapper = rowMapper;
+		this.fetchSize = fetchSize;
+		this.translator = translator;
+		this.queue = new ArrayBlockingQueue<Object>(fetchSize);
+		this.reader = new Thread("RowStream-" + THREADS.incrementAndGet()) {
+			@Override
+			public void run() {
+				read();
+			}
+		};
+		reader.setDaemon(true);
+	}
+
+	/**
+	 * @param dataSource
+	 *            the database to query
+	 * @param sql
+	 *            the query, already in HSQL syntax
+	 * @param args
+	 *            the arguments to bind, may be null
+	 * @param rowMapper
+	 *            maps each row, on the reading thread
+	 * @param fetchSize
+	 *            rows fetched at a time, also the most mapped rows queued
+	 * @param translator
+	 *            turns a failure into the exception the consumer gets
+	 * @return the stream, already reading
+	 */
+	static <T> RowStream<T> start(final DataSource dataSource, final String sql,
+			final Object[] args, final RowMapper<T> rowMapper, final int fetchSize,
+			final SQLExceptionTranslator translator) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be at least 1, not " + fetchSize);
+		}
+		RowStream<T> stream = new RowStream<T>(dataSource, sql, args, rowMapper, fetchSize,
+				translator);
+		stream.reader.start();
+		return stream;
+	}
+
+	/**
+	 * @return this, to use in a for each loop. It can only be iterated once.
+	 */
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	public boolean hasNext() {
+		if (next == null) {
+			next = take();
+		}
+		return next != END;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Object row = next;
+		next = null;
+		return unwrap(row);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("Rows of a query can't be removed");
+	}
+
+	/**
+	 * Take the next row into row[0]. Safe to call from several threads at
+	 * once, unlike the iterator.
+	 *
+	 * @return false once there are no more rows
+	 */
+	private boolean poll(final T[] row) {
+		Object taken = take();
+		if (taken == END) {
+			return false;
+		}
+		row[0] = unwrap(taken);
+		return true;
+	}
+
+	/**
+	 * Hand every remaining row to the handler on several threads, the calling
+	 * thread being one of them, and close the stream.
+	 *
+	 * @param threads
+	 *            how many threads to process rows on
+	 * @param handler
+	 *            processes one row, must be thread safe
+	 * @return how many rows were handled
+	 */
+	public long forEach(final int threads, final RowHandler<? super T> handler) {
+		final AtomicLong handled = new AtomicLong();
+		final Throwable[] error = new Throwable[1];
+		Runnable worker = new Runnable() {
+			@SuppressWarnings("unchecked")
+			public void run() {
+				T[] row = (T[]) new Object[1];
+				try {
+					while (poll(row)) {
+						handler.handle(row[0]);
+						handled.incrementAndGet();
+					}
+				} catch (Throwable e) {
+					synchronized (error) {
+						if (error[0] == null) {
+							error[0] = e;
+						}
+					}
+					closed = true;
+					queue.clear();
+				}
+			}
+		};
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 1; i < threads; i++) {
+			Thread t = new Thread(worker, reader.getName() + "-worker-" + i);
+			t.start();
+			workers.add(t);
+		}
+		worker.run();
+		try {
+			for (Thread t : workers) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close();
+		}
+
+		synchronized (error) {
+			if (error[0] instanceof RuntimeException) {
+				throw (RuntimeException) error[0];
+			} else if (error[0] instanceof Error) {
+				throw (Error) error[0];
+			} else if (error[0] != null) {
+				throw new IllegalStateException("Problem handling a row of " + sql, error[0]);
+			}
+		}
+		return handled.get();
+	}
+
+	/**
+	 * @return rows read from the database so far
+	 */
+	public long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * Stop reading, close the statement and connection and wait for the
+	 * reading thread to finish. Rows not yet taken are dropped.
+	 */
+	public void close() {
+		closed = true;
+		queue.clear();
+		if (Thread.currentThread() != reader) {
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private Object take() {
+		Object row;
+		try {
+			row = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for a row of " + sql, e);
+		}
+		if (row == END) {
+			// leave it for any other thread taking rows
+			queue.offer(END);
+			Throwable e = failure;
+			if (e != null) {
+				failure = null;
+				throw translate(e);
+			}
+		}
+		return row;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T unwrap(final Object row) {
+		return row == NULL_ROW ? null : (T) row;
+	}
+
+	private RuntimeException translate(final Throwable e) {
+		if (e instanceof SQLException) {
+			return translator.translate("Streaming query", sql, (SQLException) e);
+		} else if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		}
+		return new IllegalStateException("Problem streaming " + sql, e);
+	}
+
+	/**
+	 * Runs on the reading thread
+	 */
+	private void read() {
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c = dataSource.getConnection();
+			ps = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			ps.setFetchSize(fetchSize);
+			if (args != null) {
+				for (int i = 0; i < args.length; i++) {
+					StatementCreatorUtils.setParameterValue(ps, i + 1, SqlTypeValue.TYPE_UNKNOWN,
+							args[i]);
+				}
+			}
+			rs = ps.executeQuery();
+			int rowNum = 0;
+			while (!closed && rs.next()) {
+				T row = rowMapper.mapRow(rs, rowNum++);
+				rows.incrementAndGet();
+				put(row == null ? NULL_ROW : row);
+			}
+		} catch (Throwable e) {
+			failure = e;
+		} finally {
+			JdbcUtils.closeResultSet(rs);
+			JdbcUtils.closeStatement(ps);
+			JdbcUtils.closeConnection(c);
+			if (closed) {
+				queue.clear();
+				queue.offer(END);
+			} else {
+				put(END);
+			}
+			LOG.debug("Streamed " + rows.get() + " rows of " + sql);
+		}
+	}
+
+	private void put(final Object row) {
+		try {
+			while (!closed) {
+				if (queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			closed = true;
+		}
+	}
+
+	/**
+	 * Processes rows for {@link RowStream#forEach(int, RowHandler)}
+	 *
+	 * @param <T>
+	 *            the mapped row type
+	 */
+	public interface RowHandler<T> {
+
+		/**
+		 * @param row
+		 *            the mapped row
+		 * @throws Exception
+		 *             to stop the stream, rethrown by forEach
+		 */
+		void handle(T row) throws Exception;
+	}
+}
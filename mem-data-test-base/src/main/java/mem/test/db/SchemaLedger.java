@@ -0,0 +1,414 @@
+package mem.test.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Applies SQL scripts to a database that may already have them, keeping a
+ * ledger of what was applied in the {@value #LEDGER_TABLE} table. <br/><br/>
+ * The ledger holds the SHA-1 of each script as block 0 and of each of its
+ * statements as blocks 1 to n. A script whose hash matches is skipped
+ * without reading further, so re-initializing a long lived database (e.g.
+ * the {@link HsqlDbStart} server) costs a query per script. When a script
+ * changed only its statements the ledger doesn't have are run:
+ * <ul>
+ * <li>a new or changed create of something that exists drops it first,
+ * with cascade, so the rows in a recreated table are gone. A database built
+ * before it had a ledger is rebuilt this way. The cascade also takes the
+ * views and foreign keys that depended on it, so every applied statement
+ * that mentions what was dropped, or what those statements create in turn,
+ * is forgotten and run again, whichever script it came from. Scripts that
+ * aren't being applied this time are run again when they next are.</li>
+ * <li>drop statements are skipped, as {@link ExecuteSQL} does by default</li>
+ * <li>statements that were taken out are forgotten, not undone</li>
+ * </ul>
+ * Each statement is recorded as soon as it has run. Like
+ * {@link ExecuteSQL}, a statement that fails is logged and skipped, and
+ * recorded so it isn't tried again until the script changes. With
+ * {@link #setStrict(boolean)}, or the <code>mem.test.ledger.strict</code>
+ * system property, a failure is thrown instead and the statement is left
+ * out of the ledger, so a script that stopped half way picks up where it
+ * stopped rather than passing as done.
+ *
+ */
+public final class SchemaLedger {
+
+	private static final Log LOG = LogFactory.getLog(SchemaLedger.class);
+
+	/**
+	 * The table the ledger is kept in
+	 */
+	public static final String LEDGER_TABLE = "MEM_TEST_SCHEMA_LEDGER";
+
+	/**
+	 * System property that makes failing statements throw
+	 */
+	public static final String STRICT_PROPERTY = "mem.test.ledger.strict";
+
+	private static final int SCRIPT_BLOCK = 0;
+
+	/**
+	 * Most passes over the scripts rerunning forgotten statements
+	 */
+	private static final int MAX_PASSES = 10;
+
+	private static volatile boolean strict = Boolean.getBoolean(STRICT_PROPERTY);
+
+	/**
+	 *
+	 */
+	private SchemaLedger() {
+	}
+
+	/**
+	 * @param on
+	 *            true to throw on a statement that fails, false to log and
+	 *            skip it as {@link ExecuteSQL} does
+	 */
+	public static void setStrict(final boolean on) {
+		strict = on;
+	}
+
+	/**
+	 * @param template
+	 *            A JdbcTemplate to use
+	 * @param fileNames
+	 *            the classpath names of the scripts, in the order to apply
+	 *            them. Blank names are skipped.
+	 * @return how many statements were run, 0 if everything was up to date
+	 * @throws IOException
+	 *             if there was a problem reading a script
+	 * @throws IllegalStateException
+	 *             if an insert or update didn't change any rows, or in
+	 *             strict mode if a statement failed
+	 */
+	public static synchronized int apply(final JdbcTemplate template, final String... fileNames)
+			throws IOException {
+		long start = System.nanoTime();
+		createLedger(template);
+		int applied = 0;
+		int changed = 0;
+		// statements run by this call, script:hash, so they aren't forgotten again
+		Set<String> ran = new HashSet<String>();
+		Set<String> forgotten = new HashSet<String>();
+		int pass = 0;
+		do {
+			forgotten.clear();
+			for (String fileName : fileNames) {
+				if (fileName == null || fileName.trim().length() == 0) {
+					continue;
+				}
+				String sql = read(fileName);
+				String hash = SqlPreTranslator.sha1(sql);
+				if (hash.equals(recordedHash(template, fileName, SCRIPT_BLOCK))) {
+					LOG.debug(fileName + " is up to date");
+					continue;
+				}
+				changed++;
+				applied += applyScript(template, fileName, sql, hash, ran, forgotten);
+			}
+		} while (!forgotten.isEmpty() && ++pass < MAX_PASSES);
+		if (!forgotten.isEmpty()) {
+			LOG.warn("Statements of " + forgotten + " were still forgotten after " + MAX_PASSES
+					+ " passes and haven't run again, apply again or reset the ledger");
+		}
+		LOG.info("Checked " + fileNames.length + " scripts in "
+				+ (System.nanoTime() - start) / 1000000L + " ms, ran " + applied
+				+ " statements from " + changed + " new or changed");
+		return applied;
+	}
+
+	/**
+	 * Forget everything applied, e.g. after dropping the schema by hand
+	 *
+	 * @param template
+	 *            A JdbcTemplate to use
+	 */
+	public static synchronized void reset(final JdbcTemplate template) {
+		createLedger(template);
+		template.update("delete from " + LEDGER_TABLE);
+	}
+
+	private static int applyScript(final JdbcTemplate template, final String fileName,
+			final String sql, final String hash, final Set<String> ran,
+			final Set<String> forgotten) throws IOException {
+		// how many times each statement was applied, statements can repeat
+		Map<String, Integer> recorded = new HashMap<String, Integer>();
+		for (Map<String, Object> row : template.queryForList("select HASH from " + LEDGER_TABLE
+				+ " where SCRIPT = ? and BLOCK <> ?", fileName, SCRIPT_BLOCK)) {
+			count(recorded, (String) row.get("HASH"), 1);
+		}
+		boolean isNew = recorded.isEmpty();
+
+		List<String> blocks = ExecuteSQL.statements(SqlPreTranslator.translate(fileName, sql));
+		List<String> hashes = new ArrayList<String>(blocks.size());
+		// statements of this script forgotten part way through, not yet run again
+		Set<String> stale = new HashSet<String>();
+		int applied = 0;
+		for (int i = 0; i < blocks.size(); i++) {
+			String block = blocks.get(i);
+			String blockHash = SqlPreTranslator.sha1(block);
+			hashes.add(blockHash);
+			if (count(recorded, blockHash, -1) >= 0) {
+				continue;
+			}
+			if (block.toLowerCase().startsWith("drop")) {
+				continue;
+			}
+			if (dropChanged(template, fileName, block)) {
+				Map<String, Set<String>> dependents = forgetDependents(template,
+						dropped(block), ran);
+				forgotten.addAll(dependents.keySet());
+				Set<String> here = dependents.get(fileName);
+				if (here != null) {
+					stale.addAll(here);
+					for (String dependent : here) {
+						recorded.remove(dependent);
+					}
+				}
+			}
+			boolean succeeded = execute(template, fileName, block);
+			ran.add(fileName + ":" + blockHash);
+			stale.remove(blockHash);
+			// record it now in case a later statement fails, numbered apart
+			// from the statements as they were
+			template.update("delete from " + LEDGER_TABLE + " where SCRIPT = ? and BLOCK = ?",
+					fileName, -(i + 1));
+			template.update("insert into " + LEDGER_TABLE + " values (?, ?, ?, ?)", fileName,
+					-(i + 1), blockHash, now());
+			if (succeeded) {
+				applied++;
+			}
+		}
+
+		// renumber to match the script as it is now
+		template.update("delete from " + LEDGER_TABLE + " where SCRIPT = ?", fileName);
+		Timestamp now = now();
+		if (stale.isEmpty()) {
+			template.update("insert into " + LEDGER_TABLE + " values (?, ?, ?, ?)", fileName,
+					SCRIPT_BLOCK, hash, now);
+		} else {
+			// earlier statements were forgotten, leave it changed for the next pass
+			forgotten.add(fileName);
+		}
+		for (int i = 0; i < hashes.size(); i++) {
+			if (!stale.contains(hashes.get(i))) {
+				template.update("insert into " + LEDGER_TABLE + " values (?, ?, ?, ?)",
+						fileName, i + 1, hashes.get(i), now);
+			}
+		}
+		int removed = 0;
+		for (Integer left : recorded.values()) {
+			removed += left.intValue();
+		}
+		if (removed > 0) {
+			LOG.warn(removed + " statements taken out of " + fileName
+					+ " are forgotten, anything they did is still there");
+		}
+		LOG.info((isNew ? "Applied " : "Updated ") + fileName + ", ran " + applied + " of "
+				+ blocks.size() + " statements");
+		return applied;
+	}
+
+	/**
+	 * Drop what a changed create statement is about to create again
+	 *
+	 * @return whether something was dropped
+	 */
+	private static boolean dropChanged(final JdbcTemplate template, final String fileName,
+			final String block) {
+		Matcher create = ParallelLoader.CREATE.matcher(block);
+		if (!create.find()) {
+			return false;
+		}
+		String kind = create.group(1).toLowerCase();
+		String drop = "drop " + kind + " " + create.group(2)
+				+ (kind.equals("sequence") || kind.equals("synonym") ? "" : " cascade");
+		try {
+			ExecuteSQL.updateTranslated(template, drop);
+			LOG.info(fileName + " changed " + kind + " " + create.group(2) + ", dropped it to recreate");
+			return true;
+		} catch (DataAccessException e) {
+			LOG.debug("Nothing to drop for " + drop + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the unqualified, unquoted name a create statement creates,
+	 *         null if it isn't one
+	 */
+	private static String dropped(final String block) {
+		Matcher create = ParallelLoader.CREATE.matcher(block);
+		if (!create.find()) {
+			return null;
+		}
+		String name = create.group(2).replace("\"", "");
+		return name.substring(name.lastIndexOf('.') + 1).toUpperCase();
+	}
+
+	/**
+	 * Forget the applied statements of every script in the ledger that
+	 * mention a dropped object, and those that mention what a forgotten
+	 * create creates, so they run again. The scripts they are in are no
+	 * longer up to date.
+	 *
+	 * @param name
+	 *            the dropped object
+	 * @param ran
+	 *            statements run by this call, as script:hash, which stay
+	 * @return the hashes forgotten, by script
+	 */
+	private static Map<String, Set<String>> forgetDependents(final JdbcTemplate template,
+			final String name, final Set<String> ran) throws IOException {
+		Map<String, List<String>> scripts = new LinkedHashMap<String, List<String>>();
+		for (String script : template.queryForList("select distinct SCRIPT from " + LEDGER_TABLE,
+				String.class)) {
+			if (SchemaLedger.class.getClassLoader().getResource(script) == null) {
+				LOG.warn(script + " is in the ledger but gone, can't tell what it needs from "
+						+ name);
+				continue;
+			}
+			scripts.put(script, ExecuteSQL.statements(SqlPreTranslator.translate(script,
+					read(script))));
+		}
+
+		Map<String, Set<String>> forgotten = new HashMap<String, Set<String>>();
+		Set<String> names = new HashSet<String>();
+		LinkedList<String> todo = new LinkedList<String>();
+		todo.add(name);
+		while (!todo.isEmpty()) {
+			String next = todo.removeFirst();
+			if (next == null || !names.add(next)) {
+				continue;
+			}
+			Pattern mention = Pattern.compile("(?i)(?<![\\w$#])\"?" + Pattern.quote(next)
+					+ "\"?(?![\\w$#])");
+			for (Map.Entry<String, List<String>> script : scripts.entrySet()) {
+				for (String statement : script.getValue()) {
+					String hash = SqlPreTranslator.sha1(statement);
+					Set<String> done = forgotten.get(script.getKey());
+					if (statement.toLowerCase().startsWith("drop")
+							|| ran.contains(script.getKey() + ":" + hash)
+							|| (done != null && done.contains(hash))
+							|| !mention.matcher(statement).find()) {
+						continue;
+					}
+					if (done == null) {
+						done = new HashSet<String>();
+						forgotten.put(script.getKey(), done);
+					}
+					done.add(hash);
+					todo.add(dropped(statement));
+				}
+			}
+		}
+
+		for (Map.Entry<String, Set<String>> script : forgotten.entrySet()) {
+			template.update("delete from " + LEDGER_TABLE + " where SCRIPT = ? and BLOCK = ?",
+					script.getKey(), SCRIPT_BLOCK);
+			for (String hash : script.getValue()) {
+				template.update("delete from " + LEDGER_TABLE + " where SCRIPT = ? and HASH = ?",
+						script.getKey(), hash);
+			}
+			LOG.info("Dropping " + name + " undid " + script.getValue().size()
+					+ " statements of " + script.getKey() + ", they will run again");
+		}
+		return forgotten;
+	}
+
+	/**
+	 * @return false if the statement failed and was skipped
+	 */
+	private static boolean execute(final JdbcTemplate template, final String fileName,
+			final String block) {
+		int count;
+		try {
+			count = ExecuteSQL.updateTranslated(template, block);
+		} catch (DataAccessException e) {
+			if (strict) {
+				throw new IllegalStateException("Problem applying " + fileName + ": " + block, e);
+			}
+			LOG.warn("Skipped a statement of " + fileName + " that failed: " + block + ": "
+					+ e.getMessage());
+			return false;
+		}
+		String lower = block.toLowerCase();
+		if ((lower.startsWith("insert") || lower.startsWith("update")) && count < 1) {
+			throw new IllegalStateException("Should have been at least 1 row changed by "
+					+ block + " in " + fileName + ".  Instead updated " + count);
+		}
+		return true;
+	}
+
+	private static void createLedger(final JdbcTemplate template) {
+		int exists = template.queryForObject("select count(*) from INFORMATION_SCHEMA.TABLES"
+				+ " where TABLE_NAME = ?", Integer.class, LEDGER_TABLE);
+		if (exists == 0) {
+			template.update("create table " + LEDGER_TABLE + " (SCRIPT varchar(256) not null,"
+					+ " BLOCK integer not null, HASH varchar(40) not null, APPLIED timestamp,"
+					+ " primary key (SCRIPT, BLOCK))");
+		}
+	}
+
+	private static String recordedHash(final JdbcTemplate template, final String fileName,
+			final int block) {
+		List<String> hash = template.queryForList("select HASH from " + LEDGER_TABLE
+				+ " where SCRIPT = ? and BLOCK = ?", String.class, fileName, block);
+		return hash.isEmpty() ? null : hash.get(0);
+	}
+
+	/**
+	 * @return the count before adding, -1 if there was none and nothing was
+	 *         added
+	 */
+	private static int count(final Map<String, Integer> counts, final String key, final int add) {
+		Integer count = counts.get(key);
+		if (count == null) {
+			if (add > 0) {
+				counts.put(key, Integer.valueOf(add));
+			}
+			return -1;
+		}
+		int left = count.intValue() + add;
+		if (left > 0) {
+			counts.put(key, Integer.valueOf(left));
+		} else {
+			counts.remove(key);
+		}
+		return count.intValue();
+	}
+
+	private static String read(final String fileName) throws IOException {
+		InputStream in = SchemaLedger.class.getClassLoader().getResourceAsStream(fileName);
+		if (in == null) {
+			throw new IOException("Could not find file with name " + fileName);
+		}
+		try {
+			return IOUtils.toString(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static Timestamp now() {
+		return new Timestamp(System.currentTimeMillis());
+	}
+}
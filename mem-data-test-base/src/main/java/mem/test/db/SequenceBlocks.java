@@ -0,0 +1,368 @@
+package mem.test.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hands out sequence values from blocks each thread reserves from the HSQL
+ * sequence in one go, the way Oracle's <code>CACHE n</code> does, instead of
+ * every row taking the sequence lock. <br/><br/>
+ * Turn it on with the block size in the <code>mem.test.sequenceBlock</code>
+ * system property or {@link #setBlockSize(int)} before the databases are
+ * created, so {@link MemTest} gives their pools {@link HsqlSqlDriver}.
+ * Statements the driver prepares that are
+ * <code>insert ... values (...)</code> of one row or
+ * <code>select ... from dual</code>
+ * have each <code>seq.nextval</code> or <code>NEXT VALUE FOR seq</code>
+ * replaced by a parameter, set to the thread's next value of the sequence
+ * when the statement runs or a batch row is added. Like Oracle, every
+ * mention of a sequence in a row gets the same value. <br/><br/>
+ * Blocks come from the sequence itself, so the start value and increment
+ * from the DDL hold and values never repeat, but, as with Oracle's cache,
+ * they are not handed out in order across threads and a thread's unused
+ * values are skipped. <code>currval</code> keeps reporting the HSQL
+ * sequence, and statements that aren't prepared, or reference a sequence in
+ * a query over many rows, still use it row by row.
+ *
+ */
+public final class SequenceBlocks {
+
+	private static final Log LOG = LogFactory.getLog(SequenceBlocks.class);
+
+	/**
+	 * System property for the block size, 0 or unset to leave sequences alone
+	 */
+	public static final String BLOCK_SIZE_PROPERTY = "mem.test.sequenceBlock";
+
+	private static final Pattern NEXTVAL = Pattern.compile(
+			"(?i)\\b(?:([A-Za-z_][\\w$#]*)\\.nextval|next\\s+value\\s+for\\s+([A-Za-z_][\\w$#]*))\\b");
+
+	private static final Pattern SINGLE_ROW = Pattern.compile(
+			"(?is)\\s*(?:insert\\s(?:(?!\\bselect\\b).)*\\bvalues\\s*(\\(.*?)\\s*;?\\s*|select\\s.*\\sfrom\\s+dual\\s*)");
+
+	/**
+	 * An insert types the parameter from its column, a select needs telling
+	 */
+	private static final String INSERT_SLOT = "?";
+
+	private static final String SELECT_SLOT = "CAST(? AS BIGINT)";
+
+	/**
+	 * Statements whose rewrite is remembered
+	 */
+	private static final int MAX_STATEMENTS = 5000;
+
+	private static final Rewrite NONE = new Rewrite(null, null, null, null, null);
+
+	private static volatile int blockSize;
+
+	private static final ConcurrentMap<String, Rewrite> rewrites = new ConcurrentHashMap<String, Rewrite>();
+
+	private static final ThreadLocal<Map<String, Block>> blocks = new ThreadLocal<Map<String, Block>>() {
+		@Override
+		protected Map<String, Block> initialValue() {
+			return new HashMap<String, Block>();
+		}
+	};
+
+	private static final StripedCounter reserved = new StripedCounter();
+	private static final StripedCounter handedOut = new StripedCounter();
+
+	static {
+		setBlockSize(Integer.getInteger(BLOCK_SIZE_PROPERTY, 0));
+	}
+
+	/**
+	 *
+	 */
+	private SequenceBlocks() {
+	}
+
+	/**
+	 * @param size
+	 *            how many values a thread reserves at a time, 0 to use the
+	 *            sequences directly
+	 */
+	public static void setBlockSize(final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Block size can't be negative, not " + size);
+		}
+		if (size > 0) {
+			LOG.info("Handing out sequence values in blocks of " + size);
+		}
+		blockSize = size;
+	}
+
+	public static int getBlockSize() {
+		return blockSize;
+	}
+
+	public static boolean isEnabled() {
+		return blockSize > 0;
+	}
+
+	/**
+	 * @param sql
+	 *            a statement about to be prepared
+	 * @return how to prepare it with sequence values bound, null if it
+	 *         doesn't need to be
+	 */
+	static Rewrite rewrite(final String sql) {
+		Rewrite rewrite = rewrites.get(sql);
+		if (rewrite == null) {
+			rewrite = parse(sql);
+			if (rewrites.size() < MAX_STATEMENTS) {
+				rewrites.putIfAbsent(sql, rewrite);
+			}
+		}
+		return rewrite == NONE ? null : rewrite;
+	}
+
+	private static Rewrite parse(final String sql) {
+		Matcher row = SINGLE_ROW.matcher(sql);
+		// values (...), (...) would bind every row the same value
+		if (!row.matches() || (row.group(1) != null && !BulkWriter.isSingleTuple(row.group(1)))) {
+			return NONE;
+		}
+		String slot = sql.trim().regionMatches(true, 0, "insert", 0, 6) ? INSERT_SLOT : SELECT_SLOT;
+		StringBuilder rewritten = new StringBuilder(sql.length());
+		List<String> sequences = new ArrayList<String>();
+		List<Integer> slots = new ArrayList<Integer>();
+		List<Integer> slotSequences = new ArrayList<Integer>();
+		List<Integer> parameters = new ArrayList<Integer>();
+		Matcher m = NEXTVAL.matcher(sql).useTransparentBounds(true);
+		boolean quoted = false;
+		int index = 0;
+		int i = 0;
+		while (i < sql.length()) {
+			char ch = sql.charAt(i);
+			if (ch == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && ch == '?') {
+				parameters.add(++index);
+			} else if (!quoted && m.region(i, sql.length()).lookingAt()) {
+				String sequence = m.group(1) != null ? m.group(1) : m.group(2);
+				sequence = sequence.toUpperCase();
+				if (!sequences.contains(sequence)) {
+					sequences.add(sequence);
+				}
+				slotSequences.add(sequences.indexOf(sequence));
+				slots.add(++index);
+				rewritten.append(slot);
+				i = m.end();
+				continue;
+			}
+			rewritten.append(ch);
+			i++;
+		}
+		if (sequences.isEmpty()) {
+			return NONE;
+		}
+		return new Rewrite(rewritten.toString(), sequences.toArray(new String[sequences.size()]),
+				toArray(slots), toArray(slotSequences), toArray(parameters));
+	}
+
+	private static int[] toArray(final List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * @param connection
+	 *            a connection to an HSQL database
+	 * @return a name unique to the database, so blocks of a database that was
+	 *         dropped and created again under the same url aren't reused
+	 */
+	static String databaseKey(final Connection connection) throws SQLException {
+		Statement s = connection.createStatement();
+		try {
+			ResultSet rs = s.executeQuery("VALUES DATABASE_NAME()");
+			rs.next();
+			return rs.getString(1);
+		} finally {
+			s.close();
+		}
+	}
+
+	private static long next(final Connection connection, final String key,
+			final String sequence) throws SQLException {
+		Map<String, Block> own = blocks.get();
+		Block block = own.get(key);
+		if (block == null || block.next == block.values.length) {
+			block = reserve(connection, sequence);
+			own.put(key, block);
+		}
+		handedOut.increment();
+		return block.values[block.next++];
+	}
+
+	private static Block reserve(final Connection connection, final String sequence)
+			throws SQLException {
+		int size = Math.max(1, blockSize);
+		long[] values = new long[size];
+		Statement s = connection.createStatement();
+		try {
+			// one row per value, each taking the next from the sequence
+			ResultSet rs = s.executeQuery("select NEXT VALUE FOR " + sequence
+					+ " from UNNEST(SEQUENCE_ARRAY(1, " + size + ", 1))");
+			int n = 0;
+			while (rs.next() && n < size) {
+				values[n++] = rs.getLong(1);
+			}
+			rs.close();
+		} finally {
+			s.close();
+		}
+		reserved.increment();
+		return new Block(values);
+	}
+
+	/**
+	 * @return how many blocks have been reserved
+	 */
+	static long getBlocksReserved() {
+		return reserved.sum();
+	}
+
+	/**
+	 * @return how many values have been handed out of them
+	 */
+	static long getValuesHandedOut() {
+		return handedOut.sum();
+	}
+
+	/**
+	 * A thread's reserved values of one sequence
+	 */
+	private static final class Block {
+		private final long[] values;
+		private int next;
+
+		Block(final long[] values) {
+			this.values = values;
+		}
+	}
+
+	/**
+	 * A statement with its sequence references turned into parameters
+	 */
+	static final class Rewrite {
+		private final String sql;
+		private final String[] sequences;
+		private final int[] slots;
+		private final int[] slotSequences;
+		private final int[] parameters;
+
+		/**
+		 * @param sql
+		 *            the statement to prepare
+		 * @param sequences
+		 *            the sequences it uses
+		 * @param slots
+		 *            the parameter index of each slot
+		 * @param slotSequences
+		 *            the sequence of each slot
+		 * @param parameters
+		 *            the parameter index each of the caller's went to
+		 */
+		Rewrite(final String sql, final String[] sequences, final int[] slots,
+				final int[] slotSequences, final int[] parameters) {
+			this.sql = sql;
+			this.sequences = sequences;
+			this.slots = slots;
+			this.slotSequences = slotSequences;
+			this.parameters = parameters;
+		}
+
+		String getSql() {
+			return sql;
+		}
+
+		/**
+		 * @param statement
+		 *            prepared from {@link #getSql()}
+		 * @param database
+		 *            the {@link SequenceBlocks#databaseKey(Connection)} of its
+		 *            connection
+		 * @return the statement taking the caller's parameters and binding
+		 *         the sequence values itself
+		 */
+		PreparedStatement wrap(final PreparedStatement statement, final String database) {
+			return (PreparedStatement) Proxy.newProxyInstance(SequenceBlocks.class.getClassLoader(),
+					new Class[] { PreparedStatement.class }, new Binder(statement, database));
+		}
+
+		/**
+		 * Moves the caller's parameter indexes past the sequence slots and
+		 * fills the slots on each execution and batch row
+		 */
+		private final class Binder implements InvocationHandler {
+			private final PreparedStatement statement;
+			private final String[] keys;
+			private final long[] row;
+
+			Binder(final PreparedStatement statement, final String database) {
+				this.statement = statement;
+				this.keys = new String[sequences.length];
+				for (int s = 0; s < keys.length; s++) {
+					keys[s] = database + '.' + sequences[s];
+				}
+				this.row = new long[sequences.length];
+			}
+
+			public Object invoke(final Object proxy, final Method method, final Object[] args)
+					throws Throwable {
+				String name = method.getName();
+				boolean noArgs = args == null || args.length == 0;
+				Object[] moved = args;
+				if (name.startsWith("set") && !noArgs && args.length >= 2
+						&& args[0] instanceof Integer) {
+					int index = ((Integer) args[0]).intValue();
+					if (index > 0 && index <= parameters.length) {
+						moved = args.clone();
+						moved[0] = parameters[index - 1];
+					}
+				} else if (noArgs && (name.startsWith("execute") && !name.equals("executeBatch")
+						|| name.equals("addBatch"))) {
+					bind();
+				}
+				try {
+					return method.invoke(statement, moved);
+				} catch (InvocationTargetException e) {
+					throw e.getTargetException();
+				}
+			}
+
+			private void bind() throws SQLException {
+				Connection connection = statement.getConnection();
+				for (int s = 0; s < keys.length; s++) {
+					row[s] = next(connection, keys[s], sequences[s]);
+				}
+				for (int s = 0; s < slots.length; s++) {
+					statement.setLong(slots[s], row[slotSequences[s]]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package mem.test.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Translates SQL resources to HSQL at build time so that
+ * {@link ExecuteSQL} doesn't have to run {@link TransformToHSQL} on the same
+ * static files in every JVM. <br/><br/>
+ * A module holding the scripts runs {@link #main(String...)} over its
+ * output directory from its build, as mem-data-test-bench does with
+ * exec-maven-plugin. For every <code>name.sql</code> listed it writes
+ * <code>name.sql.hsql</code>, the translated script with a first line
+ * holding the SHA-1 of the original. At runtime the translated variant is
+ * only used when that hash still matches the original resource, so a stale
+ * or hand edited file just falls back to translating.
+ *
+ */
+public final class SqlPreTranslator {
+
+	private static final Log LOG = LogFactory.getLog(SqlPreTranslator.class);
+
+	/**
+	 * Suffix added to the resource name for the translated variant
+	 */
+	public static final String SUFFIX = ".hsql";
+
+	private static final String HASH_HEADER = "--source-sha1:";
+
+	private static final StripedCounter hits = new StripedCounter();
+	private static final StripedCounter misses = new StripedCounter();
+
+	/**
+	 *
+	 */
+	private SqlPreTranslator() {
+	}
+
+	/**
+	 * @param args
+	 *            the output directory followed by the resource names to
+	 *            translate. Names that aren't there are skipped.
+	 * @throws IOException
+	 *             if there was a problem reading or writing
+	 */
+	public static void main(final String... args) throws IOException {
+		if (args.length < 1) {
+			LOG.error("Usage: SqlPreTranslator <output directory> [resource ...]");
+			return;
+		}
+		File dir = new File(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			File source = new File(dir, args[i]);
+			if (!source.isFile()) {
+				LOG.info("No " + source + " to pre-translate");
+				continue;
+			}
+			// read the same way ExecuteSQL does so the hashes agree
+			String sql = FileUtils.readFileToString(source);
+			File target = new File(dir, args[i] + SUFFIX);
+			FileUtils.writeStringToFile(target, HASH_HEADER + sha1(sql) + "\n"
+					+ TransformToHSQL.transformSQL(sql));
+			LOG.info("Pre-translated " + source + " to " + target);
+		}
+	}
+
+	/**
+	 * The HSQL version of a resource, from the pre-translated variant if
+	 * there is one for exactly this content, otherwise translated now.
+	 *
+	 * @param fileName
+	 *            the name of the sql resource
+	 * @param sql
+	 *            the content of the resource
+	 * @return the sql in HSQL syntax
+	 * @throws IOException
+	 *             if there was a problem reading the translated variant
+	 */
+	public static String translate(final String fileName, final String sql) throws IOException {
+		InputStream in = SqlPreTranslator.class.getClassLoader().getResourceAsStream(
+				fileName + SUFFIX);
+		if (in != null) {
+			String translated;
+			try {
+				translated = IOUtils.toString(in);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+
+			int eol = translated.indexOf('\n');
+			if (translated.startsWith(HASH_HEADER) && eol > 0
+					&& translated.substring(HASH_HEADER.length(), eol).equals(sha1(sql))) {
+				LOG.debug("Using pre-translated " + fileName + SUFFIX);
+				hits.increment();
+				return translated.substring(eol + 1);
+			}
+			LOG.info(fileName + SUFFIX + " is out of date with " + fileName
+					+ ". Translating at runtime");
+		}
+		misses.increment();
+		return TransformToHSQL.transformSQL(sql);
+	}
+
+	/**
+	 * @return how many scripts came from their pre-translated variant
+	 */
+	static long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return how many scripts had to be translated at runtime
+	 */
+	static long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return hex SHA-1 of the UTF-8 bytes of the text
+	 */
+	static String sha1(final String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-1 available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("No UTF-8 available", e);
+		}
+	}
+}
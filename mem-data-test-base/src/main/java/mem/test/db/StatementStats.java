@@ -0,0 +1,336 @@
+package mem.test.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Per statement timings of what {@link TestJdbcTemplateWrapper} and
+ * {@link HsqlSqlDriver} run, split into Oracle to HSQL translation,
+ * connection acquisition and execution. <br/><br/>
+ * Off unless the <code>mem.test.stats</code> system property is true or
+ * {@link #setEnabled(boolean)} is called; when off each call costs one
+ * volatile read. With <code>mem.test.stats.dump=true</code> the report is
+ * logged when the JVM exits. <br/><br/>
+ * Statements are keyed on their lower cased text with whitespace collapsed.
+ * Connection acquisition is only seen for datasources that go through
+ * {@link InstrumentedDataSource}. Statements run on a connection straight
+ * from a {@link MemTest} pool are seen if recording was on when the
+ * database was created, as only then does the pool go through
+ * {@link HsqlSqlDriver}.
+ *
+ */
+public final class StatementStats {
+
+	private static final Log LOG = LogFactory.getLog(StatementStats.class);
+
+	/**
+	 * System property that turns the recording on
+	 */
+	public static final String ENABLED_PROPERTY = "mem.test.stats";
+
+	/**
+	 * System property that logs the report at JVM exit
+	 */
+	public static final String DUMP_PROPERTY = "mem.test.stats.dump";
+
+	/**
+	 * Past this many distinct statements the rest are lumped together
+	 */
+	private static final int MAX_STATEMENTS = 5000;
+
+	private static final String OTHER_STATEMENTS = "<other statements>";
+
+	private static final int REPORT_SQL_LENGTH = 200;
+
+	private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+	private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+
+	private static final ThreadLocal<Timing> TIMING = new ThreadLocal<Timing>() {
+		@Override
+		protected Timing initialValue() {
+			return new Timing();
+		}
+	};
+
+	private static Thread dumpHook;
+
+	static {
+		if (Boolean.getBoolean(DUMP_PROPERTY)) {
+			dumpOnExit();
+		}
+	}
+
+	/**
+	 *
+	 */
+	private StatementStats() {
+	}
+
+	/**
+	 * @return true if statements are being recorded
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param on
+	 *            true to start recording, false to stop
+	 */
+	public static void setEnabled(final boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Forget everything recorded so far
+	 */
+	public static void reset() {
+		ENTRIES.clear();
+	}
+
+	/**
+	 * @param sql
+	 *            the statement as the caller sent it
+	 * @return what was recorded for the statement or null if nothing was
+	 */
+	public static Entry getEntry(final String sql) {
+		return ENTRIES.get(normalize(sql));
+	}
+
+	/**
+	 * @return everything recorded, most total execution time first
+	 */
+	public static List<Entry> getEntries() {
+		List<Entry> entries = new ArrayList<Entry>(ENTRIES.values());
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(final Entry a, final Entry b) {
+				long x = a.getExecution().getTotalNanos();
+				long y = b.getExecution().getTotalNanos();
+				return x < y ? 1 : (x == y ? 0 : -1);
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * @return a table of the recorded statements, times in microseconds
+	 */
+	public static String report() {
+		StringBuilder b = new StringBuilder();
+		b.append(String.format("%10s %10s %10s %10s %10s %10s %10s %12s  %s%n", "calls",
+				"xlate p50", "xlate p99", "conn p50", "conn p99", "exec p50", "exec p99",
+				"exec total", "sql"));
+		for (Entry e : getEntries()) {
+			String sql = e.getSql();
+			if (sql.length() > REPORT_SQL_LENGTH) {
+				sql = sql.substring(0, REPORT_SQL_LENGTH) + "...";
+			}
+			b.append(String.format("%10d %10d %10d %10d %10d %10d %10d %12d  %s%n", e.getCalls(),
+					micros(e.getTranslation().getPercentileNanos(50)),
+					micros(e.getTranslation().getPercentileNanos(99)),
+					micros(e.getAcquisition().getPercentileNanos(50)),
+					micros(e.getAcquisition().getPercentileNanos(99)),
+					micros(e.getExecution().getPercentileNanos(50)),
+					micros(e.getExecution().getPercentileNanos(99)),
+					micros(e.getExecution().getTotalNanos()), sql));
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Log the report when the JVM exits. Calling it again does nothing.
+	 */
+	public static synchronized void dumpOnExit() {
+		if (dumpHook == null) {
+			dumpHook = new Thread("StatementStats dump") {
+				@Override
+				public void run() {
+					LOG.info("Statement timings (microseconds)\n" + report());
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(dumpHook);
+		}
+	}
+
+	/**
+	 * Start timing a statement on this thread. Nested calls, e.g. a wrapper
+	 * around a wrapper, are left to the outermost one.
+	 *
+	 * @param sql
+	 *            the statement as sent by the caller
+	 * @return a token for {@link #translated(long)} and {@link #end(long)}, 0
+	 *         if this call isn't being timed
+	 */
+	static long begin(final String sql) {
+		if (!enabled || sql == null) {
+			return 0;
+		}
+		Timing t = TIMING.get();
+		if (t.entry != null) {
+			return 0;
+		}
+		t.entry = entry(sql);
+		t.entry.calls.increment();
+		t.acquisition = 0;
+		t.start = System.nanoTime();
+		t.executeStart = t.start;
+		return t.start;
+	}
+
+	/**
+	 * Translation is done, execution starts now
+	 *
+	 * @param token
+	 *            from {@link #begin(String)}
+	 */
+	static void translated(final long token) {
+		if (token == 0) {
+			return;
+		}
+		Timing t = TIMING.get();
+		t.executeStart = System.nanoTime();
+		t.entry.translation.record(t.executeStart - t.start);
+	}
+
+	/**
+	 * Add time spent getting a connection to the statement running on this
+	 * thread
+	 *
+	 * @param nanos
+	 *            how long it took
+	 */
+	static void acquired(final long nanos) {
+		if (!enabled) {
+			return;
+		}
+		Timing t = TIMING.get();
+		if (t.entry != null) {
+			t.acquisition += nanos;
+		}
+	}
+
+	/**
+	 * The statement is done, record it
+	 *
+	 * @param token
+	 *            from {@link #begin(String)}
+	 */
+	static void end(final long token) {
+		if (token == 0) {
+			return;
+		}
+		Timing t = TIMING.get();
+		long elapsed = System.nanoTime() - t.executeStart;
+		t.entry.acquisition.record(t.acquisition);
+		t.entry.execution.record(elapsed - t.acquisition);
+		t.entry = null;
+	}
+
+	/**
+	 * @return true if a statement is being timed on this thread
+	 */
+	static boolean isTiming() {
+		return enabled && TIMING.get().entry != null;
+	}
+
+	private static Entry entry(final String sql) {
+		String key = normalize(sql);
+		Entry e = ENTRIES.get(key);
+		if (e == null) {
+			if (ENTRIES.size() >= MAX_STATEMENTS) {
+				key = OTHER_STATEMENTS;
+				e = ENTRIES.get(key);
+			}
+			if (e == null) {
+				Entry created = new Entry(key);
+				e = ENTRIES.putIfAbsent(key, created);
+				if (e == null) {
+					e = created;
+				}
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * @return the statement lower cased with runs of whitespace made a single
+	 *         space
+	 */
+	static String normalize(final String sql) {
+		StringBuilder b = new StringBuilder(sql.length());
+		boolean space = false;
+		for (int i = 0; i < sql.length(); i++) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = b.length() > 0;
+			} else {
+				if (space) {
+					b.append(' ');
+					space = false;
+				}
+				b.append(Character.toLowerCase(c));
+			}
+		}
+		return b.toString();
+	}
+
+	private static long micros(final long nanos) {
+		return nanos / 1000L;
+	}
+
+	/**
+	 * What is being timed on a thread right now
+	 */
+	private static final class Timing {
+		private Entry entry;
+		private long start;
+		private long executeStart;
+		private long acquisition;
+	}
+
+	/**
+	 * The timings of one distinct statement
+	 */
+	public static final class Entry {
+		private final String sql;
+		private final StripedCounter calls = new StripedCounter();
+		private final LatencyHistogram translation = new LatencyHistogram();
+		private final LatencyHistogram acquisition = new LatencyHistogram();
+		private final LatencyHistogram execution = new LatencyHistogram();
+
+		Entry(final String sql) {
+			this.sql = sql;
+		}
+
+		/**
+		 * @return the normalized statement
+		 */
+		public String getSql() {
+			return sql;
+		}
+
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		public LatencyHistogram getTranslation() {
+			return translation;
+		}
+
+		public LatencyHistogram getAcquisition() {
+			return acquisition;
+		}
+
+		public LatencyHistogram getExecution() {
+			return execution;
+		}
+	}
+}
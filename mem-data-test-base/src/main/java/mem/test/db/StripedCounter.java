@@ -0,0 +1,43 @@
+package mem.test.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells so threads don't fight over one cache
+ * line. Adds are lock free, {@link #sum()} adds up the cells.
+ *
+ */
+final class StripedCounter {
+
+	private static final int STRIPES = 16;
+
+	/**
+	 * Cells are this many longs apart so they sit on different cache lines
+	 */
+	private static final int PAD = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	void add(final long delta) {
+		int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+		cells.addAndGet(stripe * PAD, delta);
+	}
+
+	void increment() {
+		add(1);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PAD);
+		}
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PAD, 0);
+		}
+	}
+}
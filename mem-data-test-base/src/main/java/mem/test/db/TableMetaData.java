@@ -0,0 +1,395 @@
+package mem.test.db;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the JDBC metadata of one table: columns, primary key and
+ * foreign keys. Used by the loaders and generators so that they can build
+ * their insert statements once per table.
+ *
+ */
+public final class TableMetaData {
+
+	/**
+	 * The schema HSQL puts our tables in when none is given
+	 */
+	public static final String DEFAULT_SCHEMA = "PUBLIC";
+
+	private static final String[] TABLE_TYPES = new String[] {"TABLE"};
+
+	private final String schema;
+	private final String name;
+	private final List<Column> columns = new ArrayList<Column>();
+	private final List<String> primaryKey = new ArrayList<String>();
+	private final Map<String, ForeignKey> foreignKeys = new LinkedHashMap<String, ForeignKey>();
+
+	/**
+	 * Use {@link #read(DatabaseMetaData, String, String)}
+	 */
+	private TableMetaData(final String schema, final String name) {
+		this.schema = schema;
+		this.name = name;
+	}
+
+	/**
+	 * Read the metadata of a single table.
+	 *
+	 * @param meta
+	 *            metadata of an open connection
+	 * @param schema
+	 *            schema of the table, null for {@link #DEFAULT_SCHEMA}
+	 * @param table
+	 *            the table name, any case
+	 * @return the table metadata
+	 * @throws SQLException
+	 *             if there was a problem reading the metadata
+	 * @throws IllegalArgumentException
+	 *             if the table does not exist
+	 */
+	public static TableMetaData read(final DatabaseMetaData meta, final String schema,
+			final String table) throws SQLException {
+		String schemaName = (schema == null ? DEFAULT_SCHEMA : schema.toUpperCase());
+		TableMetaData t = new TableMetaData(schemaName, table.toUpperCase());
+
+		ResultSet rs = meta.getColumns(null, t.schema, t.name, null);
+		try {
+			while (rs.next()) {
+				t.columns.add(new Column(rs.getString("COLUMN_NAME"), rs.getInt("DATA_TYPE"),
+						rs.getInt("COLUMN_SIZE"), rs.getInt("DECIMAL_DIGITS"),
+						rs.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls));
+			}
+		} finally {
+			rs.close();
+		}
+
+		if (t.columns.isEmpty()) {
+			throw new IllegalArgumentException("Could not find table " + t.schema + "." + t.name);
+		}
+
+		rs = meta.getPrimaryKeys(null, t.schema, t.name);
+		try {
+			// KEY_SEQ tells us the position, the result set is ordered by name
+			Map<Integer, String> ordered = new TreeMap<Integer, String>();
+			while (rs.next()) {
+				ordered.put(Integer.valueOf(rs.getInt("KEY_SEQ")), rs.getString("COLUMN_NAME"));
+			}
+			t.primaryKey.addAll(ordered.values());
+		} finally {
+			rs.close();
+		}
+
+		rs = meta.getImportedKeys(null, t.schema, t.name);
+		try {
+			while (rs.next()) {
+				String fkName = rs.getString("FK_NAME");
+				String parent = rs.getString("PKTABLE_NAME");
+				if (fkName == null) {
+					fkName = parent;
+				}
+				ForeignKey fk = t.foreignKeys.get(fkName);
+				if (fk == null) {
+					String parentSchema = rs.getString("PKTABLE_SCHEM");
+					fk = new ForeignKey(fkName, parentSchema == null ? t.schema : parentSchema,
+							parent);
+					t.foreignKeys.put(fkName, fk);
+				}
+				fk.columns.add(rs.getString("FKCOLUMN_NAME"));
+				fk.parentColumns.add(rs.getString("PKCOLUMN_NAME"));
+			}
+		} finally {
+			rs.close();
+		}
+
+		return t;
+	}
+
+	/**
+	 * Read the metadata of every table in the schema.
+	 *
+	 * @param meta
+	 *            metadata of an open connection
+	 * @param schema
+	 *            the schema, null for {@link #DEFAULT_SCHEMA}
+	 * @return the tables in the schema, in the order the driver lists them
+	 * @throws SQLException
+	 *             if there was a problem reading the metadata
+	 */
+	public static List<TableMetaData> readAll(final DatabaseMetaData meta, final String schema)
+			throws SQLException {
+		List<TableMetaData> tables = new ArrayList<TableMetaData>();
+		for (String table : listTables(meta, schema)) {
+			tables.add(read(meta, schema, table));
+		}
+		return tables;
+	}
+
+	/**
+	 * @param meta
+	 *            metadata of an open connection
+	 * @param schema
+	 *            the schema, null for {@link #DEFAULT_SCHEMA}
+	 * @return the names of the user tables in the schema
+	 * @throws SQLException
+	 *             if there was a problem reading the metadata
+	 */
+	public static List<String> listTables(final DatabaseMetaData meta, final String schema)
+			throws SQLException {
+		String schemaName = (schema == null ? DEFAULT_SCHEMA : schema.toUpperCase());
+		List<String> names = new ArrayList<String>();
+		ResultSet rs = meta.getTables(null, schemaName, null, TABLE_TYPES);
+		try {
+			while (rs.next()) {
+				names.add(rs.getString("TABLE_NAME"));
+			}
+		} finally {
+			rs.close();
+		}
+		return names;
+	}
+
+	/**
+	 * Order tables so that every table comes after the tables it references.
+	 * Self references are ignored and cycles are broken in the order given.
+	 *
+	 * @param tables
+	 *            the tables to order
+	 * @return a new list with the parents first
+	 */
+	public static List<TableMetaData> sortParentsFirst(final Collection<TableMetaData> tables) {
+		Map<String, TableMetaData> byName = new LinkedHashMap<String, TableMetaData>();
+		for (TableMetaData t : tables) {
+			byName.put(t.getName(), t);
+		}
+
+		List<TableMetaData> sorted = new ArrayList<TableMetaData>(tables.size());
+		Set<String> done = new LinkedHashSet<String>();
+		Set<String> visiting = new LinkedHashSet<String>();
+		for (TableMetaData t : tables) {
+			visit(t, byName, done, visiting, sorted);
+		}
+		return sorted;
+	}
+
+	private static void visit(final TableMetaData t, final Map<String, TableMetaData> byName,
+			final Set<String> done, final Set<String> visiting, final List<TableMetaData> sorted) {
+		if (done.contains(t.getName()) || !visiting.add(t.getName())) {
+			return;
+		}
+		for (String parent : t.getParentTables()) {
+			TableMetaData p = byName.get(parent);
+			if (p != null) {
+				visit(p, byName, done, visiting, sorted);
+			}
+		}
+		visiting.remove(t.getName());
+		done.add(t.getName());
+		sorted.add(t);
+	}
+
+	/**
+	 * @return a parameterized insert covering every column, in column order
+	 */
+	public String getInsertSql() {
+		return getInsertSql(getColumnNames());
+	}
+
+	/**
+	 * @param columnNames
+	 *            the columns to insert
+	 * @return a parameterized insert for the given columns
+	 */
+	public String getInsertSql(final List<String> columnNames) {
+		return insertSql(getQualifiedName(), columnNames);
+	}
+
+	/**
+	 * @param table
+	 *            the table, qualified or not
+	 * @param columnNames
+	 *            the columns to insert
+	 * @return a parameterized insert for the given columns
+	 */
+	public static String insertSql(final String table, final List<String> columnNames) {
+		StringBuilder cols = new StringBuilder();
+		StringBuilder params = new StringBuilder();
+		for (String c : columnNames) {
+			if (cols.length() > 0) {
+				cols.append(", ");
+				params.append(", ");
+			}
+			cols.append(c);
+			params.append('?');
+		}
+		return "insert into " + table + " (" + cols + ") values (" + params + ")";
+	}
+
+	/**
+	 * @return schema.table
+	 */
+	public String getQualifiedName() {
+		return schema + "." + name;
+	}
+
+	/**
+	 * @return the names of the tables this one references, excluding itself
+	 */
+	public Set<String> getParentTables() {
+		Set<String> parents = new LinkedHashSet<String>();
+		for (ForeignKey fk : foreignKeys.values()) {
+			if (!fk.getParentTable().equals(name)) {
+				parents.add(fk.getParentTable());
+			}
+		}
+		return parents;
+	}
+
+	/**
+	 * @param columnName
+	 *            column name, any case
+	 * @return the column or null if there is no such column
+	 */
+	public Column getColumn(final String columnName) {
+		for (Column c : columns) {
+			if (c.getName().equalsIgnoreCase(columnName)) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the column names in table order
+	 */
+	public List<String> getColumnNames() {
+		List<String> names = new ArrayList<String>(columns.size());
+		for (Column c : columns) {
+			names.add(c.getName());
+		}
+		return names;
+	}
+
+	public String getSchema() {
+		return schema;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Column> getColumns() {
+		return Collections.unmodifiableList(columns);
+	}
+
+	public List<String> getPrimaryKey() {
+		return Collections.unmodifiableList(primaryKey);
+	}
+
+	public Collection<ForeignKey> getForeignKeys() {
+		return Collections.unmodifiableCollection(foreignKeys.values());
+	}
+
+	@Override
+	public String toString() {
+		return getQualifiedName() + columns;
+	}
+
+	/**
+	 * One column of the table
+	 */
+	public static final class Column {
+		private final String name;
+		private final int sqlType;
+		private final int size;
+		private final int scale;
+		private final boolean nullable;
+
+		Column(final String name, final int sqlType, final int size, final int scale,
+				final boolean nullable) {
+			this.name = name;
+			this.sqlType = sqlType;
+			this.size = size;
+			this.scale = scale;
+			this.nullable = nullable;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the {@link java.sql.Types} constant
+		 */
+		public int getSqlType() {
+			return sqlType;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public int getScale() {
+			return scale;
+		}
+
+		public boolean isNullable() {
+			return nullable;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * A foreign key, possibly over several columns
+	 */
+	public static final class ForeignKey {
+		private final String name;
+		private final String parentSchema;
+		private final String parentTable;
+		private final List<String> columns = new ArrayList<String>();
+		private final List<String> parentColumns = new ArrayList<String>();
+
+		ForeignKey(final String name, final String parentSchema, final String parentTable) {
+			this.name = name;
+			this.parentSchema = parentSchema;
+			this.parentTable = parentTable;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the schema of the parent table, which may not be the
+		 *         child's
+		 */
+		public String getParentSchema() {
+			return parentSchema;
+		}
+
+		public String getParentTable() {
+			return parentTable;
+		}
+
+		public List<String> getColumns() {
+			return Collections.unmodifiableList(columns);
+		}
+
+		public List<String> getParentColumns() {
+			return Collections.unmodifiableList(parentColumns);
+		}
+	}
+}
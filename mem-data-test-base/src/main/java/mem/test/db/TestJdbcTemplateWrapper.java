@@ -1,7 +1,11 @@
 package mem.test.db;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.List;
 
+import javax.sql.DataSource;
+
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.CallableStatementCallback;
@@ -11,6 +15,7 @@ import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.RowMapperResultSetExtractor;
 
 /**
  * wraper class to handle converting Oracle specific commands to HSQL (ANSI)
@@ -29,116 +34,461 @@ public class TestJdbcTemplateWrapper extends JdbcTemplate{
 		this.wrappedTemplate = wrappedTemplate;
 	}
 	
+	/**
+	 * The wrapped template's datasource. Anything that needs a connection of
+	 * its own (ExecuteSQL, the fixture loaders) gets the real database.
+	 */
+	@Override
+	public DataSource getDataSource(){
+		return this.wrappedTemplate.getDataSource();
+	}
+	
 	@Override
 	public int[] batchUpdate(String sql, BatchPreparedStatementSetter pss) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.batchUpdate(newQuery, pss);
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.batchUpdate(newQuery, pss);
+		} finally {
+			StatementStats.end(timing);
+			ResultCache.written(sql);
+		}
 	}
 	
 	@Override
 	public int[] batchUpdate(String[] sql) throws DataAccessException{
-		String[] newQueries = (sql == null ? null : new String[sql.length]);
-		
-		if(newQueries != null){
-			for(int i=0; i<sql.length; i++){
-				newQueries[i] = this.convertSql(sql[i]);
+		long timing = StatementStats.begin(sql == null || sql.length == 0 ? null : sql[0]);
+		try {
+			String[] newQueries = (sql == null ? null : new String[sql.length]);
+			
+			if(newQueries != null){
+				for(int i=0; i<sql.length; i++){
+					newQueries[i] = this.convertSql(sql[i]);
+				}
+			}
+			StatementStats.translated(timing);
+					
+			return this.wrappedTemplate.batchUpdate(newQueries);
+		} finally {
+			StatementStats.end(timing);
+			if (sql != null) {
+				for (String statement : sql) {
+					ResultCache.written(statement);
+				}
 			}
 		}
-				
-		return this.wrappedTemplate.batchUpdate(newQueries);
+	}
+	
+	/**
+	 * Also watched so cached results of the tables it writes are dropped.
+	 */
+	@Override
+	public int update(String sql) throws DataAccessException{
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.update(newQuery);
+		} finally {
+			StatementStats.end(timing);
+			ResultCache.written(sql);
+		}
+	}
+	
+	/**
+	 * Also watched so cached results of the tables it writes are dropped.
+	 * The other update(String, ...) methods come through here.
+	 */
+	@Override
+	public int update(String sql, PreparedStatementSetter pss) throws DataAccessException{
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.update(newQuery, pss);
+		} finally {
+			StatementStats.end(timing);
+			ResultCache.written(sql);
+		}
+	}
+	
+	/**
+	 * Run a statement already in HSQL syntax, such as one from a script
+	 * {@link ExecuteSQL} translated, without translating it again. Timed and
+	 * watched like {@link #update(String)}.
+	 * @param sql the statement, in HSQL syntax
+	 * @return the number of rows changed
+	 */
+	int updateTranslated(String sql) throws DataAccessException{
+		long timing = StatementStats.begin(sql);
+		try {
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.update(sql);
+		} finally {
+			StatementStats.end(timing);
+			ResultCache.written(sql);
+		}
+	}
+	
+	/**
+	 * Write many rows with one statement in one transaction, in JDBC batches
+	 * of {@value BatchInserter#DEFAULT_BATCH_SIZE} rows on one connection.
+	 * @param sql the statement, translated once
+	 * @param rows the arguments for each row, read as they are written
+	 * @return the rows written and rows/sec
+	 */
+	public LoadReport bulkUpdate(String sql, Iterable<Object[]> rows) throws DataAccessException{
+		return bulkUpdate(sql, rows, BatchInserter.DEFAULT_BATCH_SIZE, 1);
+	}
+	
+	/**
+	 * Write many rows with one statement, in JDBC batches on one connection.
+	 * A transaction already going on the thread is joined, otherwise the
+	 * rows are committed together at the end or not at all.
+	 * @param sql the statement, translated once
+	 * @param rows the arguments for each row, read as they are written
+	 * @param batchSize rows per JDBC batch
+	 * @param rowsPerInsert for a single row INSERT ... VALUES, how many rows
+	 * to fold into each multi-row VALUES statement. 1 not to fold.
+	 * @return the rows written and rows/sec
+	 */
+	public LoadReport bulkUpdate(String sql, Iterable<Object[]> rows, int batchSize, int rowsPerInsert) throws DataAccessException{
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			LoadReport report = new LoadReport();
+			new BulkWriter(newQuery, batchSize, rowsPerInsert).write(getDataSource(), rows, report);
+			return report;
+		} catch (SQLException e) {
+			throw getExceptionTranslator().translate("Bulk update", sql, e);
+		} finally {
+			StatementStats.end(timing);
+			ResultCache.written(sql);
+		}
 	}
 	
 	@Override
 	public Object execute(String callString, CallableStatementCallback action) throws DataAccessException{
-		String newQuery = convertSql(callString);
-		return this.wrappedTemplate.execute(newQuery, action);
+		long timing = StatementStats.begin(callString);
+		try {
+			String newQuery = convertSql(callString);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.execute(newQuery, action);
+		} finally {
+			StatementStats.end(timing);
+			ResultCache.written(callString);
+		}
 	}
 	
 	@Override
 	public Object execute(String sql, PreparedStatementCallback action) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.execute(newQuery, action);
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.execute(newQuery, action);
+		} finally {
+			StatementStats.end(timing);
+			ResultCache.written(sql);
+		}
 	}
 	
 	@Override
 	public void execute(String sql) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		this.wrappedTemplate.execute(newQuery);
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			this.wrappedTemplate.execute(newQuery);
+		} finally {
+			StatementStats.end(timing);
+			ResultCache.written(sql);
+		}
 	}
 	
 	@Override
 	public Object query(String sql, Object[] args, int[] argTypes, ResultSetExtractor rse) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.query(newQuery, args, argTypes, rse);
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, args, argTypes);
+			if (cached != null) {
+				return cachedQuery(cached, sql, args, argTypes, rse, timing);
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.query(newQuery, args, argTypes, rse);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public void query(String sql, Object[] args, int[] argTypes, RowCallbackHandler rch) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		this.wrappedTemplate.query(newQuery, args, argTypes, rch);
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, args, argTypes);
+			if (cached != null) {
+				cachedQuery(cached, sql, args, argTypes, new RowCallbackHandlerExtractor(rch), timing);
+				return;
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			this.wrappedTemplate.query(newQuery, args, argTypes, rch);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public List<?> query(String sql, Object[] args, int[] argTypes, RowMapper rowMapper) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.query(newQuery, args, argTypes, rowMapper);
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, args, argTypes);
+			if (cached != null) {
+				return (List<?>) cachedQuery(cached, sql, args, argTypes, new RowMapperResultSetExtractor(rowMapper), timing);
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.query(newQuery, args, argTypes, rowMapper);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public Object query(String sql, Object[] args, ResultSetExtractor rse) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.query(newQuery, args,  rse);
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, args, null);
+			if (cached != null) {
+				return cachedQuery(cached, sql, args, null, rse, timing);
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.query(newQuery, args,  rse);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public void query(String sql, Object[] args,  RowCallbackHandler rch) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		this.wrappedTemplate.query(newQuery, args,  rch);
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, args, null);
+			if (cached != null) {
+				cachedQuery(cached, sql, args, null, new RowCallbackHandlerExtractor(rch), timing);
+				return;
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			this.wrappedTemplate.query(newQuery, args,  rch);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public List<?> query(String sql, Object[] args,  RowMapper rowMapper) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.query(newQuery, args,  rowMapper);
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, args, null);
+			if (cached != null) {
+				return (List<?>) cachedQuery(cached, sql, args, null, new RowMapperResultSetExtractor(rowMapper), timing);
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.query(newQuery, args,  rowMapper);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public Object query(String sql, PreparedStatementSetter pss, ResultSetExtractor rse) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.query(newQuery, pss,  rse);
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.query(newQuery, pss,  rse);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public void query(String sql, PreparedStatementSetter pss,  RowCallbackHandler rch) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		this.wrappedTemplate.query(newQuery, pss,  rch);
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			this.wrappedTemplate.query(newQuery, pss,  rch);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public List<?> query(String sql, PreparedStatementSetter pss,  RowMapper rowMapper) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.query(newQuery, pss,  rowMapper);
+		long timing = StatementStats.begin(sql);
+		try {
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.query(newQuery, pss,  rowMapper);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	
 	@Override
 	public Object query(String sql, ResultSetExtractor rse) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.query(newQuery, rse);
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, null, null);
+			if (cached != null) {
+				return cachedQuery(cached, sql, null, null, rse, timing);
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.query(newQuery, rse);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public void query(String sql, RowCallbackHandler rch) throws DataAccessException{
-		String newQuery = convertSql(sql);
-		this.wrappedTemplate.query(newQuery,   rch);
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, null, null);
+			if (cached != null) {
+				cachedQuery(cached, sql, null, null, new RowCallbackHandlerExtractor(rch), timing);
+				return;
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			this.wrappedTemplate.query(newQuery,   rch);
+		} finally {
+			StatementStats.end(timing);
+		}
 	}
 	
 	@Override
 	public List<?> query(String sql,  RowMapper rowMapper) throws DataAccessException{
+		long timing = StatementStats.begin(sql);
+		try {
+			ResultCache.Lookup cached = ResultCache.lookup(getDataSource(), sql, null, null);
+			if (cached != null) {
+				return (List<?>) cachedQuery(cached, sql, null, null, new RowMapperResultSetExtractor(rowMapper), timing);
+			}
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			return this.wrappedTemplate.query(newQuery, rowMapper);
+		} finally {
+			StatementStats.end(timing);
+		}
+	}
+	
+	
+	/**
+	 * Stream the mapped rows of a query instead of collecting them, fetching
+	 * {@link RowStream#DEFAULT_FETCH_SIZE} rows at a time. Close the stream
+	 * if you stop reading early.
+	 * @param sql the query
+	 * @param rowMapper maps each row
+	 * @param args the arguments to bind
+	 * @return the rows, being read on a thread of their own
+	 */
+	public <T> RowStream<T> queryForStream(String sql, RowMapper<T> rowMapper, Object... args) throws DataAccessException{
+		return queryForStream(sql, RowStream.DEFAULT_FETCH_SIZE, rowMapper, args);
+	}
+	
+	/**
+	 * Stream the mapped rows of a query instead of collecting them. Close
+	 * the stream if you stop reading early.
+	 * @param sql the query
+	 * @param fetchSize rows fetched at a time, also the most mapped rows held
+	 * @param rowMapper maps each row
+	 * @param args the arguments to bind
+	 * @return the rows, being read on a thread of their own
+	 */
+	public <T> RowStream<T> queryForStream(String sql, int fetchSize, RowMapper<T> rowMapper, Object... args) throws DataAccessException{
 		String newQuery = convertSql(sql);
-		return this.wrappedTemplate.query(newQuery, rowMapper);
+		return RowStream.start(getDataSource(), newQuery, args, rowMapper, fetchSize, getExceptionTranslator());
+	}
+	
+	/**
+	 * Read the columns of a query into primitive arrays rather than mapping
+	 * an object per row, for checks over a lot of numbers.
+	 * @param sql the query, selecting just the columns wanted
+	 * @param args the arguments to bind
+	 * @return the columns
+	 */
+	public ColumnarResult queryForColumns(String sql, Object... args) throws DataAccessException{
+		return (ColumnarResult) query(sql, args, ColumnarResult.extractor());
+	}
+	
+	/**
+	 * Fingerprint the result of a query as it streams, to check it against
+	 * a golden result without holding either. Use
+	 * {@link ResultFingerprint#narrow} to find the rows when they differ.
+	 * @param sql the query, ordered if the order matters
+	 * @param args the arguments to bind
+	 * @return the fingerprint
+	 */
+	public ResultFingerprint fingerprint(String sql, Object... args) throws DataAccessException{
+		return (ResultFingerprint) query(sql, args, ResultFingerprint.extractor());
+	}
+	
+	/**
+	 * Answer a query from the result cache, reading it through the wrapped
+	 * template first if it isn't there. The caller's extractor always runs
+	 * over the cached copy.
+	 */
+	private Object cachedQuery(ResultCache.Lookup cached, String sql, Object[] args, int[] argTypes, ResultSetExtractor<?> rse, long timing){
+		CachedResultSet rows = cached.get();
+		if(rows == null){
+			String newQuery = convertSql(sql);
+			StatementStats.translated(timing);
+			if(argTypes != null){
+				rows = this.wrappedTemplate.query(newQuery, args, argTypes, CachedResultSet.EXTRACTOR);
+			} else if(args != null){
+				rows = this.wrappedTemplate.query(newQuery, args, CachedResultSet.EXTRACTOR);
+			} else {
+				rows = this.wrappedTemplate.query(newQuery, CachedResultSet.EXTRACTOR);
+			}
+			cached.put(rows);
+		} else {
+			StatementStats.translated(timing);
+		}
+		
+		try {
+			return rse.extractData(rows.open());
+		} catch (SQLException e) {
+			throw getExceptionTranslator().translate("Cached query", sql, e);
+		}
 	}
 	
+	/**
+	 * Runs a RowCallbackHandler over every row
+	 */
+	private static final class RowCallbackHandlerExtractor implements ResultSetExtractor<Object>{
+		private final RowCallbackHandler rch;
+		
+		RowCallbackHandlerExtractor(RowCallbackHandler rch){
+			this.rch = rch;
+		}
+		
+		public Object extractData(ResultSet rs) throws SQLException{
+			while(rs.next()){
+				this.rch.processRow(rs);
+			}
+			return null;
+		}
+	}
 	
 	/**
 	 * Common place to convert the query from what we have to what HSQL likes
@@ -146,10 +496,7 @@ public class TestJdbcTemplateWrapper extends JdbcTemplate{
 	 * @return
 	 */
 	protected String convertSql(String callString){
-		String newQuery = TransformToHSQL.handleReplaceSequence(callString);
-		newQuery = TransformToHSQL.handleCountOver(newQuery);
-		newQuery = TransformToHSQL.handleRownum(newQuery);
-		return newQuery;
+		return TransformToHSQL.transformQuery(callString);
 	}
 	
 }
@@ -0,0 +1,32 @@
+package mem.test.db;
+
+/**
+ * HSQL's transaction models, see <code>SET DATABASE TRANSACTION CONTROL</code>.
+ *
+ */
+public enum TransactionControl {
+
+	/**
+	 * Two phase locking on whole tables, HSQL's default. Sessions writing a
+	 * table wait for each other and for its readers.
+	 */
+	LOCKS,
+
+	/**
+	 * Readers see the last committed rows, writers still lock tables
+	 */
+	MVLOCKS,
+
+	/**
+	 * Row level multi version concurrency, closest to Oracle. Writers of the
+	 * same row wait or fail with a serialization failure.
+	 */
+	MVCC;
+
+	/**
+	 * @return the connection property creating a database with this model
+	 */
+	public String getUrlProperty() {
+		return ";hsqldb.tx=" + name().toLowerCase();
+	}
+}
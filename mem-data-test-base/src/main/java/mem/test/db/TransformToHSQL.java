@@ -1,6 +1,8 @@
 package mem.test.db;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,7 +15,22 @@ public final class TransformToHSQL {
 	private static final String ADD = "add";
 
 	private static final Pattern createSequencePattern = Pattern.compile(
-			"(?i)^(create\\s+sequence\\s+\\w+\\s).*", Pattern.DOTALL);
+			"(?i)^(create\\s+sequence\\s+\\w+)(\\s.*)?", Pattern.DOTALL);
+
+	/**
+	 * The sequence options HSQL understands the same way. Oracle's cache,
+	 * order and no-value options are dropped.
+	 */
+	private static final Pattern sequenceOptionPattern = Pattern.compile(
+			"(?i)\\b(start\\s+with|increment\\s+by|minvalue|maxvalue)\\s+([+-]?\\d+)");
+
+	private static final Pattern sequenceCyclePattern = Pattern.compile("(?i)\\bcycle\\b");
+
+	/**
+	 * Where sequences start when the DDL doesn't say, clear of the ids
+	 * fixtures use
+	 */
+	private static final String DEFAULT_SEQUENCE_START = "85";
 
 	private static final Pattern nextSequencePattern = Pattern.compile(
 			"(?i).*?\\W+((\\w+)(\\.nextval))\\W+.*?"
@@ -67,6 +84,21 @@ public final class TransformToHSQL {
 		return updatedSQL;
 	}
 
+	/**
+	 * Translate a single query the way {@link TestJdbcTemplateWrapper} does
+	 * before running it: sequences, count over and rownum.
+	 * 
+	 * @param oracleQuery
+	 *            oracle syntax to change
+	 * @return the query in HSQL syntax
+	 */
+	public static String transformQuery(final String oracleQuery) {
+		String newQuery = handleReplaceSequence(oracleQuery);
+		newQuery = handleCountOver(newQuery);
+		newQuery = handleRownum(newQuery);
+		return newQuery;
+	}
+
 	/**
 	 * Works on single sqls by splitting on ;
 	 * 
@@ -183,6 +215,11 @@ public final class TransformToHSQL {
 	}
 
 	/**
+	 * Keeps the start, increment, bounds and cycling of the sequence as a
+	 * BIGINT sequence. One that doesn't say where to start starts, as in
+	 * Oracle, at its MINVALUE, or its MAXVALUE if it counts down, and
+	 * otherwise at {@value #DEFAULT_SEQUENCE_START}
+	 * 
 	 * @param singleStatement
 	 *            statement to check
 	 * @return fixes the sequence
@@ -191,7 +228,31 @@ public final class TransformToHSQL {
 		String returnStatement = singleStatement;
 		Matcher m = createSequencePattern.matcher(singleStatement);
 		if (m.matches()) {
-			returnStatement = m.group(1) + "START WITH 85";
+			String options = m.group(2) == null ? "" : m.group(2);
+			Map<String, String> values = new LinkedHashMap<String, String>();
+			Matcher option = sequenceOptionPattern.matcher(options);
+			while (option.find()) {
+				if (option.group(2).length() > 18) {
+					// Oracle's 28 digit bounds don't fit, HSQL's own are fine
+					continue;
+				}
+				values.put(option.group(1).toUpperCase().replaceAll("\\s+", " "), option.group(2));
+			}
+			if (!values.containsKey("START WITH")) {
+				String increment = values.get("INCREMENT BY");
+				String bound = values.get(increment != null && increment.startsWith("-") ? "MAXVALUE"
+						: "MINVALUE");
+				values.put("START WITH", bound == null ? DEFAULT_SEQUENCE_START : bound);
+			}
+
+			StringBuilder builder = new StringBuilder(m.group(1)).append(" AS BIGINT");
+			for (Map.Entry<String, String> value : values.entrySet()) {
+				builder.append(' ').append(value.getKey()).append(' ').append(value.getValue());
+			}
+			if (sequenceCyclePattern.matcher(options).find()) {
+				builder.append(" CYCLE");
+			}
+			returnStatement = builder.toString();
 		}
 		return returnStatement;
 	}
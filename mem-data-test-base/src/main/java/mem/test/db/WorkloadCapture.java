@@ -0,0 +1,192 @@
+package mem.test.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Captures every statement that goes through {@link HsqlSqlDriver}, with its
+ * parameters, thread and timing, to a binary log that {@link WorkloadReplay}
+ * can re-drive against a {@link MemTest} database. <br/><br/>
+ * Start it with the <code>mem.test.capture</code> system property set to the
+ * log file, which also stops it when the JVM exits, or with
+ * {@link #start(File)} and {@link #stop()}. The calling thread only queues
+ * the execution; a background thread encodes the queued executions into
+ * blocks and appends them to the file through its channel. If the writer
+ * can't keep up and the queue fills, executions are dropped rather than
+ * slowing the application down, and the number dropped is logged on stop.
+ * <br/><br/>
+ * Statements are captured as HSQL ran them, after any translation. Only
+ * prepared statements created while capturing have their parameters seen.
+ *
+ */
+public final class WorkloadCapture {
+
+	private static final Log LOG = LogFactory.getLog(WorkloadCapture.class);
+
+	/**
+	 * System property naming the log file to capture to from startup
+	 */
+	public static final String CAPTURE_PROPERTY = "mem.test.capture";
+
+	private static final int QUEUE_SIZE = 1 << 16;
+
+	private static final int DRAIN_SIZE = 1024;
+
+	private static volatile WorkloadCapture current;
+
+	private final File file;
+	private final WorkloadLog.Writer writer;
+	private final BlockingQueue<WorkloadLog.Event> queue = new ArrayBlockingQueue<WorkloadLog.Event>(QUEUE_SIZE);
+	private final StripedCounter dropped = new StripedCounter();
+	private final long startNanos = System.nanoTime();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private long written;
+	private IOException failure;
+
+	static {
+		String file = System.getProperty(CAPTURE_PROPERTY);
+		if (file != null && file.length() > 0) {
+			try {
+				start(new File(file));
+				Runtime.getRuntime().addShutdownHook(new Thread("WorkloadCapture stop") {
+					@Override
+					public void run() {
+						WorkloadCapture.stop();
+					}
+				});
+			} catch (IOException e) {
+				LOG.warn("Could not capture the workload to " + file, e);
+			}
+		}
+	}
+
+	private WorkloadCapture(final File file) throws IOException {
+		this.file = file;
+		this.writer = new WorkloadLog.Writer(file);
+		this.thread = new Thread("WorkloadCapture " + file.getName()) {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Start capturing, stopping any capture already running
+	 *
+	 * @param file
+	 *            the log to write, replaced if it exists
+	 * @throws IOException
+	 *             if the log could not be created
+	 */
+	public static synchronized void start(final File file) throws IOException {
+		stop();
+		WorkloadCapture capture = new WorkloadCapture(file);
+		capture.thread.start();
+		current = capture;
+		LOG.info("Capturing the workload to " + file);
+	}
+
+	/**
+	 * Stop capturing and finish writing the log. Does nothing if no capture
+	 * is running.
+	 */
+	public static synchronized void stop() {
+		WorkloadCapture capture = current;
+		if (capture == null) {
+			return;
+		}
+		current = null;
+		capture.running = false;
+		try {
+			capture.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (capture.failure != null) {
+			LOG.warn("Workload capture to " + capture.file + " failed", capture.failure);
+		}
+		LOG.info("Captured " + capture.written + " executions to " + capture.file
+				+ (capture.dropped.sum() > 0 ? ", dropped " + capture.dropped.sum() : ""));
+	}
+
+	/**
+	 * @return true if statements are being captured
+	 */
+	public static boolean isCapturing() {
+		return current != null;
+	}
+
+	/**
+	 * Queue an execution for the log. Costs a volatile read when not
+	 * capturing.
+	 *
+	 * @param sql
+	 *            the statement as it went to HSQL
+	 * @param parameters
+	 *            the parameter values of a prepared statement, null for a
+	 *            plain one
+	 * @param startNanos
+	 *            {@link System#nanoTime()} when it started
+	 * @param elapsedNanos
+	 *            how long it took
+	 * @param failed
+	 *            true if it threw
+	 */
+	static void record(final String sql, final Object[] parameters, final long startNanos,
+			final long elapsedNanos, final boolean failed) {
+		WorkloadCapture capture = current;
+		if (capture == null || sql == null) {
+			return;
+		}
+		WorkloadLog.Event event = new WorkloadLog.Event(sql, parameters,
+				Thread.currentThread().getId(), startNanos - capture.startNanos, elapsedNanos, failed);
+		if (!capture.queue.offer(event)) {
+			capture.dropped.increment();
+		}
+	}
+
+	private void drain() {
+		List<WorkloadLog.Event> events = new ArrayList<WorkloadLog.Event>(DRAIN_SIZE);
+		try {
+			while (running || !queue.isEmpty()) {
+				WorkloadLog.Event first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				events.add(first);
+				queue.drainTo(events, DRAIN_SIZE - 1);
+				for (WorkloadLog.Event event : events) {
+					writer.write(event);
+				}
+				written += events.size();
+				events.clear();
+				if (queue.isEmpty()) {
+					writer.flush();
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package mem.test.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The file {@link WorkloadCapture} writes and {@link WorkloadReplay} reads.
+ * <br/><br/>
+ * A header followed by length prefixed blocks of records. A statement record
+ * gives a statement's text an id the first time it is seen; execution
+ * records then refer to it by id along with the thread, when it started
+ * relative to the start of the capture, how long it took, whether it failed
+ * and its typed parameters.
+ *
+ */
+final class WorkloadLog {
+
+	private static final int MAGIC = 0x4D54574C; // MTWL
+	private static final int VERSION = 1;
+
+	private static final byte RECORD_STATEMENT = 'S';
+	private static final byte RECORD_EXECUTION = 'X';
+
+	private static final byte T_NULL = 0;
+	private static final byte T_LONG = 1;
+	private static final byte T_DOUBLE = 2;
+	private static final byte T_DECIMAL = 3;
+	private static final byte T_STRING = 4;
+	private static final byte T_TIMESTAMP = 5;
+	private static final byte T_BOOLEAN = 6;
+	private static final byte T_BYTES = 7;
+
+	/**
+	 * Executions with no parameters, i.e. plain statements
+	 */
+	private static final short NO_PARAMETERS = -1;
+
+	private static final int BLOCK_BYTES = 256 << 10;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 *
+	 */
+	private WorkloadLog() {
+	}
+
+	/**
+	 * One statement execution
+	 */
+	static final class Event {
+		private final String sql;
+		private final Object[] parameters;
+		private final long threadId;
+		private final long offsetNanos;
+		private final long elapsedNanos;
+		private final boolean failed;
+
+		/**
+		 * @param sql
+		 *            the statement as it went to HSQL
+		 * @param parameters
+		 *            values of a prepared statement's parameters, null for a
+		 *            plain statement
+		 * @param threadId
+		 *            the thread that ran it
+		 * @param offsetNanos
+		 *            when it started, from the start of the capture
+		 * @param elapsedNanos
+		 *            how long it took
+		 * @param failed
+		 *            true if it threw
+		 */
+		Event(final String sql, final Object[] parameters, final long threadId,
+				final long offsetNanos, final long elapsedNanos, final boolean failed) {
+			this.sql = sql;
+			this.parameters = parameters;
+			this.threadId = threadId;
+			this.offsetNanos = offsetNanos;
+			this.elapsedNanos = elapsedNanos;
+			this.failed = failed;
+		}
+
+		String getSql() {
+			return sql;
+		}
+
+		Object[] getParameters() {
+			return parameters;
+		}
+
+		long getThreadId() {
+			return threadId;
+		}
+
+		long getOffsetNanos() {
+			return offsetNanos;
+		}
+
+		long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		boolean isFailed() {
+			return failed;
+		}
+	}
+
+	/**
+	 * Appends events to a log. Not thread safe, {@link WorkloadCapture} has a
+	 * single thread doing the writing.
+	 */
+	static final class Writer implements Closeable {
+		private final FileOutputStream file;
+		private final FileChannel channel;
+		private final Map<String, Integer> ids = new HashMap<String, Integer>();
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(BLOCK_BYTES + 4096);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		Writer(final File log) throws IOException {
+			file = new FileOutputStream(log);
+			channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			writeFully(header);
+		}
+
+		void write(final Event event) throws IOException {
+			Integer id = ids.get(event.sql);
+			if (id == null) {
+				id = Integer.valueOf(ids.size());
+				ids.put(event.sql, id);
+				out.writeByte(RECORD_STATEMENT);
+				out.writeInt(id.intValue());
+				writeBytes(event.sql.getBytes(UTF_8));
+			}
+			out.writeByte(RECORD_EXECUTION);
+			out.writeInt(id.intValue());
+			out.writeLong(event.threadId);
+			out.writeLong(event.offsetNanos);
+			out.writeLong(event.elapsedNanos);
+			out.writeBoolean(event.failed);
+			if (event.parameters == null) {
+				out.writeShort(NO_PARAMETERS);
+			} else {
+				out.writeShort(event.parameters.length);
+				for (Object value : event.parameters) {
+					writeValue(value);
+				}
+			}
+			if (bytes.size() >= BLOCK_BYTES) {
+				flush();
+			}
+		}
+
+		/**
+		 * Write out the block built so far
+		 */
+		void flush() throws IOException {
+			out.flush();
+			if (bytes.size() == 0) {
+				return;
+			}
+			ByteBuffer length = ByteBuffer.allocate(4);
+			length.putInt(bytes.size()).flip();
+			writeFully(length);
+			writeFully(ByteBuffer.wrap(bytes.toByteArray()));
+			bytes.reset();
+		}
+
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				file.close();
+			}
+		}
+
+		private void writeValue(final Object value) throws IOException {
+			if (value == null) {
+				out.writeByte(T_NULL);
+			} else if (value instanceof Long || value instanceof Integer
+					|| value instanceof Short || value instanceof Byte) {
+				out.writeByte(T_LONG);
+				out.writeLong(((Number) value).longValue());
+			} else if (value instanceof Double || value instanceof Float) {
+				out.writeByte(T_DOUBLE);
+				out.writeDouble(((Number) value).doubleValue());
+			} else if (value instanceof BigDecimal) {
+				BigDecimal bd = (BigDecimal) value;
+				out.writeByte(T_DECIMAL);
+				out.writeInt(bd.scale());
+				writeBytes(bd.unscaledValue().toByteArray());
+			} else if (value instanceof java.util.Date) {
+				// sql dates and times replay as timestamps, HSQL converts
+				out.writeByte(T_TIMESTAMP);
+				out.writeLong(((java.util.Date) value).getTime());
+				out.writeInt(value instanceof Timestamp ? ((Timestamp) value).getNanos() : -1);
+			} else if (value instanceof Boolean) {
+				out.writeByte(T_BOOLEAN);
+				out.writeBoolean(((Boolean) value).booleanValue());
+			} else if (value instanceof byte[]) {
+				out.writeByte(T_BYTES);
+				writeBytes((byte[]) value);
+			} else {
+				out.writeByte(T_STRING);
+				writeBytes(value.toString().getBytes(UTF_8));
+			}
+		}
+
+		private void writeBytes(final byte[] value) throws IOException {
+			out.writeInt(value.length);
+			out.write(value);
+		}
+
+		private void writeFully(final ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Reads the events of a log back in the order they were written
+	 */
+	static final class Reader implements Closeable {
+		private final File log;
+		private final RandomAccessFile file;
+		private final MappedBlockReader blocks;
+		private final Map<Integer, String> statements = new HashMap<Integer, String>();
+		private ByteBuffer block;
+
+		Reader(final File log) throws IOException {
+			this.log = log;
+			file = new RandomAccessFile(log, "r");
+			blocks = new MappedBlockReader(file.getChannel());
+			ByteBuffer header = blocks.next(8);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				IOUtils.closeQuietly(file);
+				throw new IOException(log + " is not a workload log this version can read");
+			}
+		}
+
+		/**
+		 * @return the next event or null at the end of the log
+		 */
+		Event next() throws IOException {
+			while (true) {
+				if (block == null || !block.hasRemaining()) {
+					if (!blocks.hasNext()) {
+						return null;
+					}
+					block = blocks.next();
+				}
+				byte type = block.get();
+				if (type == RECORD_STATEMENT) {
+					statements.put(Integer.valueOf(block.getInt()), new String(readBytes(block), UTF_8));
+				} else if (type == RECORD_EXECUTION) {
+					return readExecution();
+				} else {
+					throw new IOException("Unexpected record " + (char) type + " in " + log);
+				}
+			}
+		}
+
+		public void close() throws IOException {
+			file.close();
+		}
+
+		private Event readExecution() throws IOException {
+			Integer id = Integer.valueOf(block.getInt());
+			String sql = statements.get(id);
+			if (sql == null) {
+				throw new IOException("Execution of unknown statement " + id + " in " + log);
+			}
+			long threadId = block.getLong();
+			long offset = block.getLong();
+			long elapsed = block.getLong();
+			boolean failed = block.get() != 0;
+			short count = block.getShort();
+			Object[] parameters = null;
+			if (count != NO_PARAMETERS) {
+				parameters = new Object[count];
+				for (int i = 0; i < count; i++) {
+					parameters[i] = readValue();
+				}
+			}
+			return new Event(sql, parameters, threadId, offset, elapsed, failed);
+		}
+
+		private Object readValue() throws IOException {
+			byte code = block.get();
+			switch (code) {
+			case T_NULL:
+				return null;
+			case T_LONG:
+				return Long.valueOf(block.getLong());
+			case T_DOUBLE:
+				return Double.valueOf(block.getDouble());
+			case T_DECIMAL:
+				int scale = block.getInt();
+				return new BigDecimal(new BigInteger(readBytes(block)), scale);
+			case T_TIMESTAMP:
+				Timestamp ts = new Timestamp(block.getLong());
+				int nanos = block.getInt();
+				if (nanos >= 0) {
+					ts.setNanos(nanos);
+				}
+				return ts;
+			case T_BOOLEAN:
+				return Boolean.valueOf(block.get() != 0);
+			case T_BYTES:
+				return readBytes(block);
+			case T_STRING:
+				return new String(readBytes(block), UTF_8);
+			default:
+				throw new IOException("Unknown value type " + code + " in " + log);
+			}
+		}
+
+		private static byte[] readBytes(final ByteBuffer buffer) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package mem.test.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Re-drives a workload captured by {@link WorkloadCapture} against a
+ * database and reports throughput and latency percentiles. <br/><br/>
+ * Usage: <code>WorkloadReplay &lt;database name&gt; &lt;log&gt; [workers] [speed up]</code>
+ * replays against the named {@link MemTest} database. <br/><br/>
+ * Each captured thread's executions go to the same worker, in order, so a
+ * DAO's insert still comes before its update; a thread is picked by its
+ * captured id, so using more workers than there were threads leaves some
+ * idle. Each worker keeps one connection and reuses its prepared statements.
+ * <br/><br/>
+ * With a speed up the executions are released at their captured offsets
+ * divided by it, e.g. 2 runs the workload in half the time, and latency is
+ * measured from when the execution was due, so a worker falling behind
+ * shows up in the percentiles. With a speed up of 0 everything is released
+ * as fast as the workers take it and latency is just the execution time.
+ * Query results are read to the end.
+ *
+ */
+public final class WorkloadReplay {
+
+	private static final Log LOG = LogFactory.getLog(WorkloadReplay.class);
+
+	private static final int WORKER_QUEUE_SIZE = 1024;
+
+	private static final int LOGGED_ERRORS = 10;
+
+	/**
+	 *
+	 */
+	private WorkloadReplay() {
+	}
+
+	/**
+	 * @param args
+	 *            database name, log file, then optionally the number of
+	 *            workers (default 4) and the speed up (default 0, as fast as
+	 *            possible)
+	 */
+	public static void main(final String... args) throws IOException {
+		if (args.length < 2) {
+			LOG.error("Usage: WorkloadReplay <database name> <log> [workers] [speed up]");
+			return;
+		}
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		double speedUp = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+		Result result = replay(new File(args[1]), MemTest.getARDataSource(args[0]), workers,
+				speedUp);
+		LOG.info("Replayed " + args[1] + "\n" + result);
+	}
+
+	/**
+	 * @param log
+	 *            the captured workload
+	 * @param dataSource
+	 *            the database to run it against
+	 * @param workers
+	 *            how many threads to run it on
+	 * @param speedUp
+	 *            how much faster than captured to release the executions, 0
+	 *            or less for as fast as possible
+	 * @return throughput and latencies
+	 * @throws IOException
+	 *             if there was a problem reading the log
+	 */
+	public static Result replay(final File log, final DataSource dataSource, final int workers,
+			final double speedUp) throws IOException {
+		if (workers < 1) {
+			throw new IllegalArgumentException("Need at least one worker, not " + workers);
+		}
+		Result result = new Result();
+		Worker[] pool = new Worker[workers];
+		for (int i = 0; i < workers; i++) {
+			pool[i] = new Worker(i, dataSource, result);
+			pool[i].start();
+		}
+
+		WorkloadLog.Reader reader = new WorkloadLog.Reader(log);
+		long start = System.nanoTime();
+		long firstOffset = -1;
+		try {
+			WorkloadLog.Event event;
+			while ((event = reader.next()) != null) {
+				long due = 0;
+				if (speedUp > 0) {
+					if (firstOffset < 0) {
+						firstOffset = event.getOffsetNanos();
+					}
+					due = start + (long) ((event.getOffsetNanos() - firstOffset) / speedUp);
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				int worker = (int) ((event.getThreadId() & Long.MAX_VALUE) % workers);
+				pool[worker].put(new Task(event, due));
+			}
+		} finally {
+			reader.close();
+			for (Worker worker : pool) {
+				worker.put(Task.STOP);
+			}
+			for (Worker worker : pool) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			result.elapsedNanos = System.nanoTime() - start;
+		}
+		return result;
+	}
+
+	/**
+	 * An execution and when it was due to start, 0 if whenever
+	 */
+	private static final class Task {
+		private static final Task STOP = new Task(null, 0);
+
+		private final WorkloadLog.Event event;
+		private final long due;
+
+		Task(final WorkloadLog.Event event, final long due) {
+			this.event = event;
+			this.due = due;
+		}
+	}
+
+	/**
+	 * Runs the executions of the captured threads assigned to it
+	 */
+	private static final class Worker extends Thread {
+		private final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(WORKER_QUEUE_SIZE);
+		private final DataSource dataSource;
+		private final Result result;
+		private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+		Worker(final int index, final DataSource dataSource, final Result result) {
+			super("WorkloadReplay-" + index);
+			this.dataSource = dataSource;
+			this.result = result;
+		}
+
+		void put(final Task task) {
+			try {
+				queue.put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while replaying", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			Connection c = null;
+			try {
+				c = dataSource.getConnection();
+				Task task;
+				while ((task = queue.take()) != Task.STOP) {
+					long start = task.due == 0 ? System.nanoTime() : task.due;
+					try {
+						execute(c, task.event);
+					} catch (SQLException e) {
+						result.error(task.event, e);
+					}
+					result.latency.record(System.nanoTime() - start);
+					result.statements.increment();
+				}
+			} catch (SQLException e) {
+				LOG.error("Replay worker could not get a connection", e);
+				drainOnFailure();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				for (PreparedStatement ps : statements.values()) {
+					closeQuietly(ps);
+				}
+				if (c != null) {
+					try {
+						c.close();
+					} catch (SQLException e) {
+						LOG.warn("Could not close replay connection", e);
+					}
+				}
+			}
+		}
+
+		private void execute(final Connection c, final WorkloadLog.Event event)
+				throws SQLException {
+			Object[] parameters = event.getParameters();
+			if (parameters == null) {
+				Statement s = c.createStatement();
+				try {
+					if (s.execute(event.getSql())) {
+						drain(s.getResultSet());
+					}
+				} finally {
+					s.close();
+				}
+				return;
+			}
+
+			PreparedStatement ps = statements.get(event.getSql());
+			if (ps == null) {
+				ps = c.prepareStatement(event.getSql());
+				statements.put(event.getSql(), ps);
+			}
+			for (int i = 0; i < parameters.length; i++) {
+				if (parameters[i] == null) {
+					ps.setNull(i + 1, Types.NULL);
+				} else {
+					ps.setObject(i + 1, parameters[i]);
+				}
+			}
+			if (ps.execute()) {
+				drain(ps.getResultSet());
+			}
+		}
+
+		private static void drain(final ResultSet rs) throws SQLException {
+			try {
+				while (rs.next()) {
+					// reading the rows is part of the cost
+				}
+			} finally {
+				rs.close();
+			}
+		}
+
+		/**
+		 * Keep taking tasks so the reader isn't blocked forever
+		 */
+		private void drainOnFailure() {
+			try {
+				Task task;
+				while ((task = queue.take()) != Task.STOP) {
+					result.error(task.event, null);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private static void closeQuietly(final Statement s) {
+			try {
+				s.close();
+			} catch (SQLException e) {
+				LOG.debug("Could not close statement", e);
+			}
+		}
+	}
+
+	/**
+	 * What a replay did
+	 */
+	public static final class Result {
+		private final StripedCounter statements = new StripedCounter();
+		private final StripedCounter errors = new StripedCounter();
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private volatile long elapsedNanos;
+
+		void error(final WorkloadLog.Event event, final SQLException e) {
+			errors.increment();
+			if (e != null && errors.sum() <= LOGGED_ERRORS) {
+				String expected = event.isFailed() ? " (it failed when captured too)" : "";
+				LOG.warn("Replay of " + event.getSql() + " failed" + expected, e);
+			}
+		}
+
+		/**
+		 * @return how many executions were replayed
+		 */
+		public long getStatements() {
+			return statements.sum();
+		}
+
+		/**
+		 * @return how many of them threw
+		 */
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		/**
+		 * @return how long the whole replay took
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return executions per second
+		 */
+		public double getThroughput() {
+			return elapsedNanos <= 0 ? 0 : getStatements() * 1000000000d / elapsedNanos;
+		}
+
+		/**
+		 * @return latency of each execution
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d executions (%d errors) in %d ms, %.0f/sec%n"
+					+ "latency us: p50 %d p99 %d p999 %d max %d", getStatements(), getErrors(),
+					elapsedNanos / 1000000L, getThroughput(),
+					latency.getPercentileNanos(50) / 1000L, latency.getPercentileNanos(99) / 1000L,
+					latency.getPercentileNanos(99.9) / 1000L, latency.getMaxNanos() / 1000L);
+		}
+	}
+}
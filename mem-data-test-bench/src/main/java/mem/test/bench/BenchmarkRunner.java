@@ -0,0 +1,40 @@
+package mem.test.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Entry point of benchmarks.jar. Runs JMH with JSON results written to
+ * target/jmh-result.json unless the arguments say otherwise, so that runs
+ * can be compared with each other. Any JMH option can be passed, e.g.
+ * <code>java -jar target/benchmarks.jar Translation -rff before.json</code>
+ *
+ */
+public final class BenchmarkRunner {
+
+	private static final String DEFAULT_RESULT = "target/jmh-result.json";
+
+	/**
+	 *
+	 */
+	private BenchmarkRunner() {
+	}
+
+	public static void main(final String... args) throws Exception {
+		List<String> jmhArgs = new ArrayList<String>();
+		List<String> given = Arrays.asList(args);
+		if (!given.contains("-rf")) {
+			jmhArgs.add("-rf");
+			jmhArgs.add("json");
+		}
+		if (!given.contains("-rff")) {
+			jmhArgs.add("-rff");
+			jmhArgs.add(DEFAULT_RESULT);
+		}
+		jmhArgs.addAll(given);
+		Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+	}
+}
@@ -0,0 +1,99 @@
+package mem.test.bench;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import mem.test.db.ExecuteSQL;
+import mem.test.db.MemTest;
+import mem.test.db.TestJdbcTemplateWrapper;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Building databases: running a script through {@link ExecuteSQL} and
+ * creating a whole {@link MemTest} database. Uses the synthetic
+ * createDartTables.sql of this module. Every invocation gets a database of
+ * its own, so these are measured one shot at a time.
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+public class DatabaseBenchmark {
+
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	/**
+	 * A fresh empty database per invocation
+	 */
+	@State(Scope.Thread)
+	public static class ScriptState {
+		private BasicDataSource dataSource;
+		private JdbcTemplate template;
+
+		@Setup(Level.Invocation)
+		public void setUp() {
+			dataSource = new BasicDataSource();
+			dataSource.setDriverClassName("org.hsqldb.jdbcDriver");
+			dataSource.setUrl("jdbc:hsqldb:mem:script" + DATABASES.incrementAndGet()
+					+ ";sql.syntax_ora=true");
+			dataSource.setUsername("sa");
+			dataSource.setPassword("");
+			template = new TestJdbcTemplateWrapper(new JdbcTemplate(dataSource));
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown() throws SQLException {
+			template.execute("shutdown");
+			dataSource.close();
+		}
+	}
+
+	/**
+	 * A fresh MemTest name per invocation
+	 */
+	@State(Scope.Thread)
+	public static class MemTestState {
+		private String name;
+
+		@Setup(Level.Invocation)
+		public void setUp() {
+			name = "memtest" + DATABASES.incrementAndGet();
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown() {
+			MemTest.shutdownDatabase(name);
+		}
+	}
+
+	@Benchmark
+	public JdbcTemplate executeSqlFile(final ScriptState state) throws IOException {
+		ExecuteSQL.executeSQLFile("createDartTables.sql", state.template);
+		return state.template;
+	}
+
+	@Benchmark
+	public DataSource memTestCreateDatabase(final MemTestState state) throws IOException {
+		return MemTest.getARDataSource(state.name);
+	}
+}
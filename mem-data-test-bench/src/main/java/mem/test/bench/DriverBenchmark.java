@@ -0,0 +1,149 @@
+package mem.test.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import mem.test.db.HsqlSqlDriver;
+
+import org.apache.commons.lang.StringUtils;
+import org.hsqldb.jdbc.JDBCDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@link HsqlSqlDriver} connection proxy: the sql swap on a hit and on a
+ * miss, and proxied against raw JDBC calls.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DriverBenchmark {
+
+	private static final String URL = "jdbc:hsqldb:mem:driverbench;sql.syntax_ora=true";
+
+	private static final String HIT_SQL = "select id from bench where id = ?";
+	private static final String MISS_SQL = "select id, name from bench where id = ?";
+	private static final String QUERY = "select id from bench where id = 1";
+
+	private static final String HIT_KEY = StringUtils.deleteWhitespace(HIT_SQL).toLowerCase();
+
+	private Connection proxied;
+	private Connection raw;
+	private Statement proxiedStatement;
+	private Statement rawStatement;
+	private Map<String, String> oldToNewMap;
+	private String replacedSql;
+
+	@Setup
+	public void setUp() throws SQLException {
+		Properties props = new Properties();
+		props.put("user", "sa");
+		props.put("password", "");
+
+		HsqlSqlDriver driver = new HsqlSqlDriver();
+		// swap the hit sql for itself so both paths run the same statement
+		oldToNewMap = driver.getOldToNewMap();
+		replacedSql = oldToNewMap.put(HIT_KEY, HIT_SQL);
+
+		proxied = driver.connect(URL, props);
+		// loading HsqlSqlDriver put it in DriverManager in place of the stock
+		// driver, so ask the stock driver directly
+		raw = new JDBCDriver().connect(URL, props);
+
+		Statement s = raw.createStatement();
+		s.execute("create table bench (id integer primary key, name varchar(20))");
+		s.execute("insert into bench values (1, 'one')");
+		s.close();
+
+		proxiedStatement = proxied.createStatement();
+		rawStatement = raw.createStatement();
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		rawStatement.execute("shutdown");
+		proxied.close();
+		raw.close();
+		if (replacedSql == null) {
+			oldToNewMap.remove(HIT_KEY);
+		} else {
+			oldToNewMap.put(HIT_KEY, replacedSql);
+		}
+	}
+
+	@Benchmark
+	public String fixArgsHit() throws SQLException {
+		// nativeSQL is a single String argument call, so it goes through
+		// fixArgs without touching the database
+		return proxied.nativeSQL(HIT_SQL);
+	}
+
+	@Benchmark
+	public String fixArgsMiss() throws SQLException {
+		return proxied.nativeSQL(MISS_SQL);
+	}
+
+	@Benchmark
+	public String nativeSqlRaw() throws SQLException {
+		return raw.nativeSQL(MISS_SQL);
+	}
+
+	@Benchmark
+	public int prepareAndQueryProxied() throws SQLException {
+		return prepareAndQuery(proxied);
+	}
+
+	@Benchmark
+	public int prepareAndQueryRaw() throws SQLException {
+		return prepareAndQuery(raw);
+	}
+
+	@Benchmark
+	public int statementQueryProxied() throws SQLException {
+		return query(proxiedStatement);
+	}
+
+	@Benchmark
+	public int statementQueryRaw() throws SQLException {
+		return query(rawStatement);
+	}
+
+	private static int prepareAndQuery(final Connection c) throws SQLException {
+		PreparedStatement ps = c.prepareStatement(HIT_SQL);
+		try {
+			ps.setInt(1, 1);
+			ResultSet rs = ps.executeQuery();
+			int id = rs.next() ? rs.getInt(1) : -1;
+			rs.close();
+			return id;
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static int query(final Statement s) throws SQLException {
+		ResultSet rs = s.executeQuery(QUERY);
+		int id = rs.next() ? rs.getInt(1) : -1;
+		rs.close();
+		return id;
+	}
+}
@@ -0,0 +1,108 @@
+package mem.test.bench;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A model object shaped like the ones the DAO tests build with
+ * TestObjectFactory
+ *
+ */
+public class SampleBean {
+
+	public enum Status {
+		OPEN, CLOSED
+	}
+
+	private long id;
+	private Integer version;
+	private String name;
+	private String description;
+	private double amount;
+	private boolean active;
+	private Date created;
+	private UUID key;
+	private Status status;
+	private List<String> tags;
+
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public Integer getVersion() {
+		return version;
+	}
+
+	public void setVersion(Integer version) {
+		this.version = version;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	public double getAmount() {
+		return amount;
+	}
+
+	public void setAmount(double amount) {
+		this.amount = amount;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public void setActive(boolean active) {
+		this.active = active;
+	}
+
+	public Date getCreated() {
+		return created;
+	}
+
+	public void setCreated(Date created) {
+		this.created = created;
+	}
+
+	public UUID getKey() {
+		return key;
+	}
+
+	public void setKey(UUID key) {
+		this.key = key;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	public List<String> getTags() {
+		return tags;
+	}
+
+	public void setTags(List<String> tags) {
+		this.tags = tags;
+	}
+}
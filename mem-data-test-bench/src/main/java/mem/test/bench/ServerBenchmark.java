@@ -0,0 +1,81 @@
+package mem.test.bench;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import mem.test.db.MemDataSourceFactory;
+import mem.test.db.MemTest;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Round trip of a small query to a database served by
+ * {@link MemDataSourceFactory}: from this JVM through the factory, which
+ * goes in-process, and through a pool of <code>hsql://</code> connections
+ * over loopback as another process would.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+
+	private static final String NAME = "serverbench";
+
+	private static final int PORT = 9437;
+
+	private static final String QUERY = "select NAME from REMEDIATION_TYPE where ID = ?";
+
+	private BasicDataSource network;
+	private JdbcTemplate inProcessTemplate;
+	private JdbcTemplate networkTemplate;
+
+	@Setup
+	public void setUp() throws IOException {
+		String url = MemDataSourceFactory.serve(NAME, PORT);
+		DataSource inProcess = MemDataSourceFactory.getDataSource(url);
+		inProcessTemplate = new JdbcTemplate(inProcess);
+
+		network = new BasicDataSource();
+		network.setDriverClassName("org.hsqldb.jdbcDriver");
+		network.setUrl(url);
+		network.setUsername("sa");
+		network.setPassword("");
+		networkTemplate = new JdbcTemplate(network);
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		network.close();
+		MemDataSourceFactory.stop();
+		MemTest.shutdownDatabase(NAME);
+	}
+
+	@Benchmark
+	public String inProcess() {
+		return inProcessTemplate.queryForObject(QUERY, String.class, 1);
+	}
+
+	@Benchmark
+	public String network() {
+		return networkTemplate.queryForObject(QUERY, String.class, 1);
+	}
+}
@@ -0,0 +1,59 @@
+package mem.test.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mem.test.TestObjectFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Random object generation with {@link TestObjectFactory}
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TestObjectFactoryBenchmark {
+
+	private SampleBean template;
+
+	@Setup
+	public void setUp() {
+		template = new SampleBean();
+		template.setName("fixed");
+		template.setId(7);
+	}
+
+	@Benchmark
+	public SampleBean getObject() {
+		return TestObjectFactory.getObject(SampleBean.class);
+	}
+
+	@Benchmark
+	public SampleBean getObjectWithTemplate() {
+		return TestObjectFactory.getObject(SampleBean.class, template);
+	}
+
+	@Benchmark
+	public List<SampleBean> getObjectList() {
+		return TestObjectFactory.getObject(SampleBean.class, 100);
+	}
+
+	@Benchmark
+	public String getRandomString() {
+		return TestObjectFactory.getRandomString(10);
+	}
+}
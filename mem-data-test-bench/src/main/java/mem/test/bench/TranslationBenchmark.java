@@ -0,0 +1,129 @@
+package mem.test.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mem.test.db.TestJdbcTemplateWrapper;
+import mem.test.db.TransformToHSQL;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Oracle to HSQL translation: the per query conversion done by
+ * {@link TestJdbcTemplateWrapper} and the full script translation done by
+ * {@link TransformToHSQL#transformSQL(String)}.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranslationBenchmark {
+
+	/**
+	 * Queries the DAOs typically send, one per translation rule plus one that
+	 * needs nothing
+	 */
+	private static final String[] QUERIES = new String[] {
+			"select * from remediation r where r.id = ? and r.status = ?",
+			"insert into remediation (id, name) values (remediation_seq.nextval, ?)",
+			"select r.*, count(*) over() total from remediation r where r.type = ?",
+			"select * from remediation where rownum <= 10 order by id",
+			"select a.id, b.name, count(*) over(partition by a.id) c from a, b "
+					+ "where a.id = b.id and rownum < 100 and a.seq = seq_a.nextval" };
+
+	@State(Scope.Benchmark)
+	public static class QueryState {
+		@Param({"0", "1", "2", "3", "4"})
+		public int query;
+
+		private String sql;
+		private ExposedWrapper wrapper;
+
+		@Setup
+		public void setUp() {
+			sql = QUERIES[query];
+			wrapper = new ExposedWrapper();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ScriptState {
+		@Param({"1000", "10000"})
+		public int statements;
+
+		private String script;
+
+		@Setup
+		public void setUp() {
+			script = syntheticScript(statements);
+		}
+	}
+
+	@Benchmark
+	public String convertSql(final QueryState state) {
+		return state.wrapper.convert(state.sql);
+	}
+
+	@Benchmark
+	public String transformScript(final ScriptState state) {
+		return TransformToHSQL.transformSQL(state.script);
+	}
+
+	/**
+	 * A script shaped like createDartTables.sql, the same every run
+	 */
+	static String syntheticScript(final int statements) {
+		Random random = new Random(42);
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < statements; i++) {
+			switch (random.nextInt(5)) {
+			case 0:
+				b.append("create table T").append(i).append(" (ID number(12) not null, ")
+						.append("NAME varchar2(100), AMOUNT number(12,2), CREATED date, ")
+						.append("UPDATED timestamp(6), NOTE clob )");
+				break;
+			case 1:
+				b.append("create sequence T").append(i).append("_SEQ start with 1 increment by 1");
+				break;
+			case 2:
+				b.append("grant select on T").append(i).append(" to DART_READ");
+				break;
+			case 3:
+				b.append("alter table T").append(i).append(" add (EXTRA varchar2(10))");
+				break;
+			default:
+				b.append("insert into T").append(i).append(" (ID, NAME, CREATED) values (")
+						.append(random.nextInt(100000)).append(", 'name ").append(i)
+						.append("', date '2014-01-01' )");
+			}
+			b.append(";\n");
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Gets at the protected convertSql
+	 */
+	static final class ExposedWrapper extends TestJdbcTemplateWrapper {
+		ExposedWrapper() {
+			super(new JdbcTemplate());
+		}
+
+		String convert(final String s) {
+			return convertSql(s);
+		}
+	}
+}
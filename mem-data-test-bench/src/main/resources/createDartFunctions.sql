@@ -0,0 +1 @@
+create sequence BENCH_FUNCTION_SEQ start with 1 increment by 1;
@@ -0,0 +1,197 @@
+-- Synthetic stand-in for the DART schema so the benchmarks can create
+-- MemTest databases. Oracle syntax on purpose, it goes through TransformToHSQL.
+create table REMEDIATION_TYPE (
+	ID number(10) not null primary key,
+	NAME varchar2(50) not null,
+	CREATED date default sysdate
+);
+
+create table BENCH_TABLE_01 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references REMEDIATION_TYPE(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_01_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_01 to DART_READ;
+
+create table BENCH_TABLE_02 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_01(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_02_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_02 to DART_READ;
+
+create table BENCH_TABLE_03 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_02(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_03_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_03 to DART_READ;
+
+create table BENCH_TABLE_04 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_03(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_04_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_04 to DART_READ;
+
+create table BENCH_TABLE_05 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_04(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_05_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_05 to DART_READ;
+
+create table BENCH_TABLE_06 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_05(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_06_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_06 to DART_READ;
+
+create table BENCH_TABLE_07 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_06(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_07_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_07 to DART_READ;
+
+create table BENCH_TABLE_08 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_07(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_08_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_08 to DART_READ;
+
+create table BENCH_TABLE_09 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_08(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_09_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_09 to DART_READ;
+
+create table BENCH_TABLE_10 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_09(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_10_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_10 to DART_READ;
+
+create table BENCH_TABLE_11 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_10(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_11_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_11 to DART_READ;
+
+create table BENCH_TABLE_12 (
+	ID number(12) not null primary key,
+	PARENT_ID number(12) not null references BENCH_TABLE_11(ID),
+	CODE varchar2(20),
+	DESCRIPTION varchar2(400),
+	AMOUNT number(12,2),
+	QUANTITY integer,
+	CREATED timestamp(6),
+	UPDATED date
+);
+
+create sequence BENCH_TABLE_12_SEQ start with 1 increment by 1 cache 20;
+
+grant select on BENCH_TABLE_12 to DART_READ;
+
+insert into REMEDIATION_TYPE (ID, NAME, CREATED) values (1, 'Manual', sysdate );
+
+insert into REMEDIATION_TYPE (ID, NAME, CREATED) values (2, 'Automatic', sysdate );
+
+insert into REMEDIATION_TYPE (ID, NAME, CREATED) values (3, 'Escalated', sysdate );
+
+insert into REMEDIATION_TYPE (ID, NAME, CREATED) values (4, 'Waived', sysdate );
+
+insert into REMEDIATION_TYPE (ID, NAME, CREATED) values (5, 'Closed', sysdate );